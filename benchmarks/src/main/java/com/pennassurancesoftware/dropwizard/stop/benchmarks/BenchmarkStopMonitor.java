@@ -0,0 +1,38 @@
+package com.pennassurancesoftware.dropwizard.stop.benchmarks;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import com.pennassurancesoftware.dropwizard.stop.InFlightTracker;
+import com.pennassurancesoftware.dropwizard.stop.StopConfiguration;
+import com.pennassurancesoftware.dropwizard.stop.StopMonitor;
+
+/**
+ * A {@link StopMonitor} that makes its port known and doesn't exit the JVM running the benchmark.
+ */
+class BenchmarkStopMonitor extends StopMonitor {
+   private volatile ServerSocket serverSocket;
+
+   BenchmarkStopMonitor( StopConfiguration stopConfiguration, InFlightTracker inFlight ) {
+      super( stopConfiguration, inFlight );
+   }
+
+   @Override
+   protected ServerSocket createSocketServer( int port ) throws IOException {
+      serverSocket = super.createSocketServer( port );
+      return serverSocket;
+   }
+
+   @Override
+   protected void exitNow() {
+      // The benchmark carries on.
+   }
+
+   int getLocalPort() {
+      return serverSocket.getLocalPort();
+   }
+
+   void close() throws IOException {
+      serverSocket.close();
+   }
+}
@@ -0,0 +1,43 @@
+package com.pennassurancesoftware.dropwizard.stop.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Speak the control protocol the way {@link com.pennassurancesoftware.dropwizard.stop.StopCommand} does:
+ * one connection per command, the key and the command each on a line, one line back.
+ */
+final class ControlClient {
+   private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+   private ControlClient() {}
+
+   static String send( int port, String key, String command ) throws IOException {
+      Socket socket = new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+      try {
+         socket.setTcpNoDelay( true );
+         OutputStream out = socket.getOutputStream();
+         out.write( ( key + "\r\n" + command + "\r\n" ).getBytes( UTF_8 ) );
+         out.flush();
+         return readLine( socket.getInputStream() );
+      }
+      finally {
+         socket.close();
+      }
+   }
+
+   private static String readLine( InputStream in ) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int b;
+      while( ( b = in.read() ) >= 0 && b != '\n' ) {
+         if( b != '\r' ) {
+            line.append( ( char )b );
+         }
+      }
+      return line.toString();
+   }
+}
@@ -0,0 +1,77 @@
+package com.pennassurancesoftware.dropwizard.stop.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pennassurancesoftware.dropwizard.stop.InFlightTracker;
+import com.pennassurancesoftware.dropwizard.stop.StopConfiguration;
+
+/**
+ * The cost of a control command over loopback, from the client writing the command to it reading the reply.
+ * Run with {@code -prof gc} to see the allocation per command, client and monitor together.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class ControlPlaneBenchmark {
+   @Param({ "false", "true" })
+   public boolean nonBlocking;
+
+   private Server server;
+   private BenchmarkStopMonitor monitor;
+   private StopConfiguration stopConfiguration;
+
+   @Setup
+   public void setUp() throws Exception {
+      server = new Server();
+      server.start();
+      stopConfiguration = new StopConfiguration();
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( nonBlocking );
+      monitor = new BenchmarkStopMonitor( stopConfiguration, new InFlightTracker() );
+      monitor.serverStarted( server );
+   }
+
+   @TearDown
+   public void tearDown() throws Exception {
+      monitor.close();
+      server.stop();
+   }
+
+   /**
+    * Round-trip latency of a single 'status' probe.
+    */
+   @Benchmark
+   @BenchmarkMode(Mode.SampleTime)
+   @OutputTimeUnit(TimeUnit.MICROSECONDS)
+   public String statusRoundTrip() throws IOException {
+      return ControlClient.send( monitor.getLocalPort(), stopConfiguration.getKey(), "status" );
+   }
+
+   /**
+    * Throughput of 'status' probes while several supervisors poll at once.
+    */
+   @Benchmark
+   @BenchmarkMode(Mode.Throughput)
+   @OutputTimeUnit(TimeUnit.SECONDS)
+   @Threads(8)
+   public String statusUnderConcurrentPolling() throws IOException {
+      return ControlClient.send( monitor.getLocalPort(), stopConfiguration.getKey(), "status" );
+   }
+}
@@ -0,0 +1,121 @@
+package com.pennassurancesoftware.dropwizard.stop.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pennassurancesoftware.dropwizard.stop.InFlightTracker;
+import com.pennassurancesoftware.dropwizard.stop.StopConfiguration;
+
+/**
+ * The cost of a 'status' probe on a pipelined connection, each supervisor keeping its connection open,
+ * to compare with the connection per probe of {@link ControlPlaneBenchmark}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class PipelinedStatusBenchmark {
+   private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+   private static final byte[] STATUS = "status\r\n".getBytes( UTF_8 );
+
+   private Server server;
+   private BenchmarkStopMonitor monitor;
+   private StopConfiguration stopConfiguration;
+
+   @Setup
+   public void setUp() throws Exception {
+      server = new Server();
+      server.start();
+      stopConfiguration = new StopConfiguration();
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      monitor = new BenchmarkStopMonitor( stopConfiguration, new InFlightTracker() );
+      monitor.serverStarted( server );
+   }
+
+   @TearDown
+   public void tearDown() throws Exception {
+      monitor.close();
+      server.stop();
+   }
+
+   /**
+    * One supervisor's pipelined connection.
+    */
+   @State(Scope.Thread)
+   public static class Connection {
+      private Socket socket;
+      private OutputStream out;
+      private InputStream in;
+      private final byte[] reply = new byte[ 16 ];
+
+      @Setup
+      public void open( PipelinedStatusBenchmark benchmark ) throws IOException {
+         socket = new Socket( InetAddress.getByName( "127.0.0.1" ), benchmark.monitor.getLocalPort() );
+         socket.setTcpNoDelay( true );
+         out = socket.getOutputStream();
+         in = socket.getInputStream();
+         out.write( ( benchmark.stopConfiguration.getKey() + "\r\npipeline\r\n" ).getBytes( UTF_8 ) );
+         readLine();
+      }
+
+      @TearDown
+      public void close() throws IOException {
+         socket.close();
+      }
+
+      int status() throws IOException {
+         out.write( STATUS );
+         return readLine();
+      }
+
+      private int readLine() throws IOException {
+         int length = 0;
+         int b;
+         while( ( b = in.read() ) >= 0 && b != '\n' ) {
+            reply[ length++ % reply.length ] = ( byte )b;
+         }
+         return length;
+      }
+   }
+
+   /**
+    * Round-trip latency of a single 'status' probe.
+    */
+   @Benchmark
+   @BenchmarkMode(Mode.SampleTime)
+   @OutputTimeUnit(TimeUnit.MICROSECONDS)
+   public int statusRoundTrip( Connection connection ) throws IOException {
+      return connection.status();
+   }
+
+   /**
+    * Throughput of 'status' probes while several supervisors poll at once.
+    */
+   @Benchmark
+   @BenchmarkMode(Mode.Throughput)
+   @OutputTimeUnit(TimeUnit.SECONDS)
+   @Threads(8)
+   public int statusUnderConcurrentPolling( Connection connection ) throws IOException {
+      return connection.status();
+   }
+}
@@ -0,0 +1,136 @@
+package com.pennassurancesoftware.dropwizard.stop.benchmarks;
+
+import io.dropwizard.util.Duration;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pennassurancesoftware.dropwizard.stop.InFlightFilter;
+import com.pennassurancesoftware.dropwizard.stop.InFlightTracker;
+import com.pennassurancesoftware.dropwizard.stop.StopConfiguration;
+
+/**
+ * End to end latency of a 'stop' against an embedded Jetty {@link Server}, from the command being sent to the
+ * 'Stopped' reply, with idle keep-alive connections and requests in flight when the stop arrives.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+public class StopLatencyBenchmark {
+   private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+   @Param({ "0", "100" })
+   public int idleConnections;
+
+   @Param({ "0", "10" })
+   public int activeConnections;
+
+   @Param({ "50" })
+   public int requestMillis;
+
+   private Server server;
+   private BenchmarkStopMonitor monitor;
+   private StopConfiguration stopConfiguration;
+   private final List<Socket> clients = new ArrayList<Socket>();
+
+   @Setup(Level.Invocation)
+   public void setUp() throws Exception {
+      InFlightTracker inFlight = new InFlightTracker();
+      server = new Server();
+      ServerConnector connector = new ServerConnector( server );
+      connector.setHost( "127.0.0.1" );
+      server.addConnector( connector );
+      ServletContextHandler context = new ServletContextHandler();
+      context.addFilter( new FilterHolder( new InFlightFilter( inFlight ) ), "/*", EnumSet.of( DispatcherType.REQUEST ) );
+      context.addServlet( new ServletHolder( new SlowServlet( requestMillis ) ), "/*" );
+      server.setHandler( context );
+      server.start();
+
+      for( int i = 0; i < idleConnections; i++ ) {
+         clients.add( new Socket( InetAddress.getByName( "127.0.0.1" ), connector.getLocalPort() ) );
+      }
+      for( int i = 0; i < activeConnections; i++ ) {
+         Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), connector.getLocalPort() );
+         client.getOutputStream().write( "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes( UTF_8 ) );
+         clients.add( client );
+      }
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 );
+      while( inFlight.get() < activeConnections && System.nanoTime() < deadline ) {
+         Thread.sleep( 1 );
+      }
+
+      stopConfiguration = new StopConfiguration();
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setWait( Duration.seconds( 10 ) );
+      monitor = new BenchmarkStopMonitor( stopConfiguration, inFlight );
+      monitor.serverStarted( server );
+   }
+
+   @TearDown(Level.Invocation)
+   public void tearDown() throws Exception {
+      for( Socket client : clients ) {
+         client.close();
+      }
+      clients.clear();
+      monitor.close();
+      server.stop();
+   }
+
+   @Benchmark
+   public String issueStop() throws IOException {
+      return ControlClient.send( monitor.getLocalPort(), stopConfiguration.getKey(), "stop" );
+   }
+
+   private static class SlowServlet extends HttpServlet {
+      private static final long serialVersionUID = 1L;
+      private final int requestMillis;
+
+      private SlowServlet( int requestMillis ) {
+         this.requestMillis = requestMillis;
+      }
+
+      @Override
+      protected void doGet( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+         try {
+            Thread.sleep( requestMillis );
+         }
+         catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+         }
+         response.getWriter().write( "done" );
+      }
+   }
+}
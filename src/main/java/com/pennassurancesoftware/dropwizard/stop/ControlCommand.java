@@ -0,0 +1,87 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The commands understood by the {@link StopMonitor}.
+ * Each keeps its encoded name so a command line can be matched straight from the bytes that were read.
+ */
+enum ControlCommand {
+   STOP("stop"),
+   DRAIN("drain"),
+   STATUS("status"),
+   /** Whether the server should be sent traffic: warmed up and not stopping. */
+   READY("ready"),
+   /** Drain and stop the connectors, but keep the JVM running. */
+   QUIESCE("quiesce"),
+   /** Reopen the connectors after a 'quiesce'. */
+   RESUME("resume"),
+   /** Release the stop port to the instance that sent it, then stop. */
+   HANDOVER("handover"),
+   /** Keep the connection open for further commands, each answered on its own line. */
+   PIPELINE("pipeline"),
+   /** End a pipelined connection. */
+   QUIT("quit"),
+   /** Stream progress frames while the stop command that follows it runs. */
+   WATCH("watch");
+
+   private static final ControlCommand[] VALUES = values();
+
+   private final String name;
+   private final byte[] bytes;
+
+   private ControlCommand( String name ) {
+      this.name = name;
+      this.bytes = name.getBytes( Charset.forName( "UTF-8" ) );
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * @return the names of all the commands, in the order they are declared.
+    */
+   static List<String> names() {
+      List<String> names = new ArrayList<String>( VALUES.length );
+      for( ControlCommand command : VALUES ) {
+         names.add( command.name );
+      }
+      return Collections.unmodifiableList( names );
+   }
+
+   /**
+    * Match the command without decoding the bytes.
+    * @param buffer holding the line.
+    * @param from index of the first byte of the line.
+    * @param to index just past the last byte of the line, without its terminator.
+    * @return the command or null if it isn't known.
+    */
+   static ControlCommand match( ByteBuffer buffer, int from, int to ) {
+      for( ControlCommand command : VALUES ) {
+         if( equals( command.bytes, buffer, from, to ) ) {
+            return command;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * @return true if the bytes between the indexes are exactly the expected ones.
+    */
+   static boolean equals( byte[] expected, ByteBuffer buffer, int from, int to ) {
+      if( to - from != expected.length ) {
+         return false;
+      }
+      for( int i = 0; i < expected.length; i++ ) {
+         if( buffer.get( from + i ) != expected[ i ] ) {
+            return false;
+         }
+      }
+      return true;
+   }
+}
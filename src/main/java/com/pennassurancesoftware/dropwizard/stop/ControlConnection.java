@@ -0,0 +1,149 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A control connection served by the selector of the {@link StopMonitor}.
+ * The bytes of the request are collected without blocking until complete lines are available,
+ * and the replies are written out as the channel allows.  Replies are copied into a buffer kept for the life
+ * of the connection, so a pipelined connection can serve command after command without allocating.
+ */
+class ControlConnection {
+   private static final int MAX_REQUEST_SIZE = 1024;
+   private static final int MAX_REPLY_SIZE = 1024;
+
+   private final SocketChannel channel;
+   private long deadline;
+   private final LineBuffer request = new LineBuffer( MAX_REQUEST_SIZE );
+   private final ByteBuffer reply = ByteBuffer.allocate( MAX_REPLY_SIZE );
+   private boolean authorized;
+   private boolean pipelined;
+   private boolean closing;
+   private boolean watching;
+
+   /**
+    * @param channel that was accepted.
+    * @param deadline in {@link System#nanoTime()} terms, after which the connection should be closed.
+    */
+   ControlConnection( SocketChannel channel, long deadline ) {
+      this.channel = channel;
+      this.deadline = deadline;
+   }
+
+   SocketChannel getChannel() {
+      return channel;
+   }
+
+   /**
+    * @return true once the key line has been read and accepted.
+    */
+   boolean isAuthorized() {
+      return authorized;
+   }
+
+   void authorize() {
+      this.authorized = true;
+   }
+
+   /**
+    * @return true if the connection stays open for further commands.
+    */
+   boolean isPipelined() {
+      return pipelined;
+   }
+
+   void pipeline() {
+      this.pipelined = true;
+   }
+
+   /**
+    * @return true if a stop issued on the connection should stream its progress.
+    */
+   boolean isWatching() {
+      return watching;
+   }
+
+   void watch() {
+      this.watching = true;
+   }
+
+   /**
+    * @return true if the connection should be closed once the queued replies are written.
+    */
+   boolean isClosing() {
+      return closing;
+   }
+
+   void closeWhenFlushed() {
+      this.closing = true;
+   }
+
+   boolean isExpired( long now ) {
+      return now - deadline > 0;
+   }
+
+   /**
+    * @param deadline in {@link System#nanoTime()} terms, after which the connection should be closed.
+    */
+   void setDeadline( long deadline ) {
+      this.deadline = deadline;
+   }
+
+   /**
+    * @return the lines read from the connection that haven't been handled yet.
+    */
+   LineBuffer getRequest() {
+      return request;
+   }
+
+   /**
+    * Read whatever is available on the channel.
+    * @return false if the client closed the connection or sent more than a request can hold.
+    * @throws IOException if the read failed.
+    */
+   boolean read() throws IOException {
+      return request.read( channel );
+   }
+
+   /**
+    * Queue a reply to be written by {@link #flush()}.
+    * @param bytes of the reply.
+    * @return false if there isn't room for the reply until the queued ones are written.
+    */
+   boolean queue( byte[] bytes ) {
+      if( reply.remaining() < bytes.length ) {
+         return false;
+      }
+      reply.put( bytes );
+      return true;
+   }
+
+   /**
+    * Write as much of the queued replies as the channel will take.
+    * @return true if nothing is left to write.
+    * @throws IOException if the write failed.
+    */
+   boolean flush() throws IOException {
+      reply.flip();
+      try {
+         if( reply.hasRemaining() ) {
+            channel.write( reply );
+         }
+         return !reply.hasRemaining();
+      }
+      finally {
+         reply.compact();
+      }
+   }
+
+   void close() {
+      try {
+         channel.close();
+      }
+      catch( IOException e ) {
+         // Nothing more can be done with the connection.
+      }
+   }
+}
@@ -0,0 +1,24 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+/**
+ * Long-lived sessions, such as WebSockets or server-sent event streams, that never finish on their own and so have
+ * to be closed for the {@link StopPhase#DRAIN} phase to complete.  Register them with
+ * {@link StopBundle#addDrainable(Drainable)}.<p/>
+ * The drain closes the sessions in batches of {@link StopConfiguration#getDrainBatchSize()}, so that clients
+ * reconnecting elsewhere don't all arrive at once and a few thousand sessions don't hold up the drain.
+ */
+public interface Drainable {
+   /**
+    * @return the number of sessions still open.
+    */
+   int getOpenSessions();
+
+   /**
+    * Close up to the given number of the open sessions cleanly, for a WebSocket with a 1001 'going away' close
+    * frame.
+    * @param max sessions to close.
+    * @return the number of sessions that were closed cleanly.  Those that failed to close should no longer be
+    *         counted as open either.
+    */
+   int closeSessions( int max );
+}
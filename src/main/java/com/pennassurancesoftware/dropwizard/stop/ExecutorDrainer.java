@@ -0,0 +1,133 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drain the executors of the application in the {@link StopPhase#DRAIN_EXECUTORS} phase, after the requests that
+ * could queue work on them have drained and before the server and its managed components are stopped.<p/>
+ * Register the executors made with {@code environment.lifecycle().executorService(...)} or
+ * {@code scheduledExecutorService(...)} as they are built, for example
+ * <pre>
+ *    ExecutorService mail = stopBundle.getExecutorDrainer().register( "mail",
+ *          environment.lifecycle().executorService( "mail-%d" ).build() );
+ * </pre>
+ * The phase stops their intake, so a task submitted from then on is rejected, and lets them run what is queued
+ * until the budget of the phase runs out.  The tasks that never started are then handed to the
+ * {@link SpillHandler}, if there is one, and otherwise dropped with a warning.  A scheduled executor only runs
+ * the delayed tasks that are due within the budget; its periodic tasks are cancelled.  The stop report gives the
+ * tasks that were queued, those run and those spilled, and the rate at which they were run.  The tasks queued and
+ * run are only counted for a {@link ThreadPoolExecutor}, which is what the builders of Dropwizard make.
+ */
+public class ExecutorDrainer {
+   private static final Logger LOGGER = LoggerFactory.getLogger( ExecutorDrainer.class );
+
+   private final Map<String, ExecutorService> executors = new LinkedHashMap<String, ExecutorService>();
+   private volatile SpillHandler spillHandler;
+
+   /**
+    * Register an executor to drain.
+    * @param name of the executor, unique within the drainer.
+    * @param executor to drain.
+    * @return the executor.
+    */
+   public synchronized <E extends ExecutorService> E register( String name, E executor ) {
+      if( executors.containsKey( name ) ) {
+         throw new IllegalArgumentException( "An executor named '" + name + "' is already registered." );
+      }
+      executors.put( name, executor );
+      return executor;
+   }
+
+   /**
+    * @param spillHandler to hand the tasks that didn't run to, or null to drop them.
+    */
+   public void setSpillHandler( SpillHandler spillHandler ) {
+      this.spillHandler = spillHandler;
+   }
+
+   /**
+    * @return true if there are executors to drain.
+    */
+   public boolean isEnabled() {
+      return !getExecutors().isEmpty();
+   }
+
+   /**
+    * Drain the executors.  The stop sequence does this in the {@link StopPhase#DRAIN_EXECUTORS} phase.
+    * @param deadline in {@link System#nanoTime()} terms, after which the tasks still queued are spilled.
+    * @param report to add the tasks queued, run and spilled to.
+    * @return true if every executor ran all of its tasks before the deadline.
+    * @throws InterruptedException if interrupted waiting for the tasks.
+    */
+   public boolean drain( long deadline, StopReport report ) throws InterruptedException {
+      Map<String, ExecutorService> draining = getExecutors();
+      long start = System.nanoTime();
+      long queued = 0;
+      long completedBefore = 0;
+      for( ExecutorService executor : draining.values() ) {
+         if( executor instanceof ThreadPoolExecutor ) {
+            queued += ( ( ThreadPoolExecutor )executor ).getQueue().size();
+            completedBefore += ( ( ThreadPoolExecutor )executor ).getCompletedTaskCount();
+         }
+         executor.shutdown();
+      }
+
+      boolean completed = true;
+      for( ExecutorService executor : draining.values() ) {
+         completed &= executor.awaitTermination( Math.max( 0, deadline - System.nanoTime() ), TimeUnit.NANOSECONDS );
+      }
+      long elapsed = System.nanoTime() - start;
+
+      long executed = 0;
+      int spilled = 0;
+      for( Map.Entry<String, ExecutorService> entry : draining.entrySet() ) {
+         ExecutorService executor = entry.getValue();
+         if( !executor.isTerminated() ) {
+            List<Runnable> left = executor.shutdownNow();
+            spilled += left.size();
+            spill( entry.getKey(), left );
+         }
+         if( executor instanceof ThreadPoolExecutor ) {
+            executed += ( ( ThreadPoolExecutor )executor ).getCompletedTaskCount();
+         }
+      }
+      executed -= completedBefore;
+      report.add( "tasksQueued", queued );
+      report.add( "tasksRun", executed );
+      report.add( "tasksSpilled", spilled );
+      report.add( "taskRate", ( elapsed > 0 ? executed * TimeUnit.SECONDS.toNanos( 1 ) / elapsed : 0 ) + "/s" );
+      return completed;
+   }
+
+   private void spill( String name, List<Runnable> tasks ) {
+      if( tasks.isEmpty() ) {
+         return;
+      }
+      SpillHandler handler = spillHandler;
+      if( handler == null ) {
+         LOGGER.warn( "Dropping " + tasks.size() + " task(s) still queued on executor '" + name + "', as there is no " +
+               "spill handler." );
+         return;
+      }
+      try {
+         handler.spill( name, tasks );
+         LOGGER.info( "Spilled " + tasks.size() + " task(s) still queued on executor '" + name + "'." );
+      }
+      catch( Exception e ) {
+         LOGGER.error( "Error occurred spilling " + tasks.size() + " task(s) still queued on executor '" + name +
+               "'.  They are lost.", e );
+      }
+   }
+
+   private synchronized Map<String, ExecutorService> getExecutors() {
+      return new LinkedHashMap<String, ExecutorService>( executors );
+   }
+}
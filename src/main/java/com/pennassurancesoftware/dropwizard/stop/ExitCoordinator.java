@@ -0,0 +1,240 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exit the JVM by running the exit tasks registered here, and the JVM shutdown hooks, in parallel under one
+ * deadline.<p/>
+ * The tasks are added as shutdown hooks when the exit starts, and {@link System#exit(int)} is called on a thread
+ * of its own, so the JVM runs them alongside its own hooks, such as those restoring the console and deleting files
+ * on exit.  If the hooks are still running at the deadline the JVM is halted.<p/>
+ * How long each task took is logged, and any still running at the deadline are named.  So are the threads started
+ * since the exit began that are still running then, which are the JVM's hooks and what they started, each with
+ * its stack trace.
+ */
+public class ExitCoordinator {
+   private static final Logger LOGGER = LoggerFactory.getLogger( ExitCoordinator.class );
+   /** The budget of an exit that isn't given one. */
+   public static final long DEFAULT_BUDGET_NANOS = TimeUnit.SECONDS.toNanos( 30 );
+   /** How long the report of the tasks is given once the deadline has passed, before the JVM is halted. */
+   private static final long REPORT_GRACE_MS = 100;
+
+   private final Map<String, Runnable> tasks = new LinkedHashMap<String, Runnable>();
+   private final Map<String, Long> exitNanos = new LinkedHashMap<String, Long>();
+   private final AtomicBoolean exiting = new AtomicBoolean();
+
+   /**
+    * Register a task to run on exit, alongside the JVM shutdown hooks.
+    * @param name of the task, unique within the coordinator.
+    * @param task to run.
+    */
+   public synchronized void register( String name, Runnable task ) {
+      if( tasks.containsKey( name ) ) {
+         throw new IllegalArgumentException( "An exit task named '" + name + "' is already registered." );
+      }
+      tasks.put( name, task );
+   }
+
+   /**
+    * @return how long each task and hook took, in nanoseconds, once the exit has run.  The ones still running
+    *         at the deadline are missing.
+    */
+   public synchronized Map<String, Long> getExitNanos() {
+      return Collections.unmodifiableMap( new LinkedHashMap<String, Long>( exitNanos ) );
+   }
+
+   /**
+    * Run the exit tasks and shutdown hooks, halting if they are still running once the budget is used up.
+    * Only the first call does anything.
+    * @param status to exit with.
+    * @param budget in nanoseconds for the tasks and hooks, or negative for the {@link #DEFAULT_BUDGET_NANOS}.
+    * @throws InterruptedException if interrupted while waiting on the tasks, the JVM has been halted regardless.
+    */
+   public void exit( final int status, long budget ) throws InterruptedException {
+      if( !exiting.compareAndSet( false, true ) ) {
+         return;
+      }
+      final long exitBudget = budget < 0 ? DEFAULT_BUDGET_NANOS : budget;
+      final long deadline = System.nanoTime() + exitBudget;
+      final StopEvents.Span span = StopEvents.exit( status, exitBudget );
+      final List<ExitTask> running = new ArrayList<ExitTask>();
+      synchronized( this ) {
+         for( Map.Entry<String, Runnable> task : tasks.entrySet() ) {
+            running.add( new ExitTask( task.getKey(), task.getValue() ) );
+         }
+      }
+      for( ExitTask task : running ) {
+         hook( task.thread );
+      }
+      // A hook itself, so that the JVM waits for the report before it halts.
+      Thread reporting = new Thread( "Exit Report" ) {
+         @Override
+         public void run() {
+            try {
+               List<String> stragglers = new ArrayList<String>();
+               for( ExitTask task : running ) {
+                  if( !task.await( Math.max( 0, deadline - System.nanoTime() ) ) ) {
+                     stragglers.add( task.name );
+                  }
+               }
+               report( running, stragglers, exitBudget );
+               span.end( stragglers.isEmpty() );
+            }
+            catch( InterruptedException e ) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      };
+      hook( reporting );
+
+      Thread exit = new Thread( "Exiting" ) {
+         @Override
+         public void run() {
+            exitJvm( status );
+         }
+      };
+      exit.setDaemon( true );
+      Set<Thread> ignored = new HashSet<Thread>( Thread.getAllStackTraces().keySet() );
+      ignored.add( reporting );
+      ignored.add( exit );
+      for( ExitTask task : running ) {
+         ignored.add( task.thread );
+      }
+      try {
+         exit.start();
+         TimeUnit.NANOSECONDS.timedJoin( exit, Math.max( 1, deadline - System.nanoTime() ) );
+         if( exit.isAlive() ) {
+            reporting.join( REPORT_GRACE_MS );
+            LOGGER.warn( "Shutdown hooks still running after the exit budget of " +
+                  TimeUnit.NANOSECONDS.toMillis( exitBudget ) + "ms.  Halting." );
+            for( Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet() ) {
+               if( !ignored.contains( thread.getKey() ) ) {
+                  stillRunning( thread.getKey(), thread.getValue() );
+               }
+            }
+         }
+      }
+      finally {
+         halt( status );
+      }
+   }
+
+   /**
+    * Have the JVM run the thread as a shutdown hook, or just start it if the JVM is already shutting down.
+    */
+   private void hook( Thread thread ) {
+      try {
+         addShutdownHook( thread );
+      }
+      catch( IllegalStateException e ) {
+         thread.start();
+      }
+   }
+
+   private void report( List<ExitTask> running, List<String> stragglers, long budget ) {
+      StringBuilder times = new StringBuilder();
+      synchronized( this ) {
+         for( ExitTask task : running ) {
+            if( task.nanos >= 0 ) {
+               exitNanos.put( task.name, task.nanos );
+               times.append( ' ' ).append( task.name ).append( '=' )
+                     .append( TimeUnit.NANOSECONDS.toMillis( task.nanos ) ).append( "ms" );
+            }
+         }
+      }
+      LOGGER.info( "Exit tasks took" + ( times.length() > 0 ? times : " nothing" ) );
+      if( !stragglers.isEmpty() ) {
+         LOGGER.warn( "Halting with " + stragglers + " still running after " +
+               TimeUnit.NANOSECONDS.toMillis( budget ) + "ms." );
+      }
+   }
+
+   /**
+    * Log a shutdown hook, or a thread one started, that is still running at the deadline.  A seam so that the class
+    * can be tested.
+    * @param thread still running.
+    * @param stack of the thread.
+    */
+   protected void stillRunning( Thread thread, StackTraceElement[] stack ) {
+      StringBuilder trace = new StringBuilder( "Still running at the exit deadline: '" + thread.getName() + "'" );
+      for( StackTraceElement element : stack ) {
+         trace.append( "\n\tat " ).append( element );
+      }
+      LOGGER.warn( trace.toString() );
+   }
+
+   /**
+    * @param hook to run on exit.  A seam so that the class can be tested.
+    * @throws IllegalStateException if the JVM is already shutting down.
+    */
+   protected void addShutdownHook( Thread hook ) {
+      Runtime.getRuntime().addShutdownHook( hook );
+   }
+
+   /**
+    * Exit, running the shutdown hooks.  Doesn't return unless overridden.  A seam so that the class can be tested.
+    */
+   protected void exitJvm( int status ) {
+      System.exit( status );
+   }
+
+   // Make a seam so that the class can be tested.
+   protected void halt( int status ) {
+      Runtime.getRuntime().halt( status );
+   }
+
+   private static class ExitTask {
+      private final String name;
+      private final Runnable task;
+      private final Thread thread;
+      private final CountDownLatch done = new CountDownLatch( 1 );
+      private volatile long nanos = -1;
+
+      private ExitTask( String name, Runnable task ) {
+         this.name = name;
+         this.task = task;
+         this.thread = thread();
+      }
+
+      private Thread thread() {
+         Thread thread = new Thread( "Exit " + name ) {
+            @Override
+            public void run() {
+               long start = System.nanoTime();
+               try {
+                  task.run();
+               }
+               catch( RuntimeException e ) {
+                  LOGGER.warn( "Error running exit task " + name + ".  Continuing the exit.", e );
+               }
+               finally {
+                  nanos = System.nanoTime() - start;
+                  done.countDown();
+               }
+            }
+         };
+         thread.setDaemon( true );
+         return thread;
+      }
+
+      /**
+       * @param timeout in nanoseconds.
+       * @return true if the task finished.
+       */
+      private boolean await( long timeout ) throws InterruptedException {
+         return done.await( timeout, TimeUnit.NANOSECONDS );
+      }
+   }
+}
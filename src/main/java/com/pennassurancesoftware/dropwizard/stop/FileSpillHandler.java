@@ -0,0 +1,94 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Append the tasks spilled to a local file, one line each, as
+ * <pre>
+ * spilled-millis TAB executor TAB task
+ * </pre>
+ * where the task is written by the {@link TaskFormat}, by default as its {@code toString()}.  The queue only holds
+ * what the executor put on it: a task handed to {@code execute()} is the task itself, but one handed to
+ * {@code submit()} is wrapped in a {@link java.util.concurrent.FutureTask} that doesn't give the task back, so it
+ * is written as {@code FutureTask@hash} and can't be replayed.  Tasks that should be replayed after the restart
+ * are best handed to {@code execute()}, or queued as a {@link java.util.concurrent.RunnableFuture} of the
+ * application's own, from the executor's {@code newTaskFor(...)}, with a format that writes what identifies the
+ * work, such as the id of a job.  The file is synced once the tasks of an executor are written.
+ */
+public class FileSpillHandler implements SpillHandler {
+   private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+   /**
+    * Write a task as its {@code toString()}.
+    */
+   public static final TaskFormat TO_STRING = new TaskFormat() {
+      @Override
+      public String format( Runnable task ) {
+         return String.valueOf( task );
+      }
+   };
+
+   /**
+    * How a task is written, on one line, so that it can be replayed from the file.
+    */
+   public interface TaskFormat {
+      /**
+       * @param task that never started, as it was queued on the executor.
+       * @return what identifies the task.  Line breaks are replaced with spaces.
+       */
+      String format( Runnable task );
+   }
+
+   private final File file;
+   private final TaskFormat format;
+
+   /**
+    * @param file to append to, created if there isn't one yet.
+    */
+   public FileSpillHandler( File file ) {
+      this( file, TO_STRING );
+   }
+
+   /**
+    * @param file to append to, created if there isn't one yet.
+    * @param format to write each task in.
+    */
+   public FileSpillHandler( File file, TaskFormat format ) {
+      this.file = file;
+      this.format = format;
+   }
+
+   /**
+    * @return the file the tasks are appended to.
+    */
+   public File getFile() {
+      return file;
+   }
+
+   @Override
+   public synchronized void spill( String executor, List<Runnable> tasks ) throws IOException {
+      File directory = file.getAbsoluteFile().getParentFile();
+      if( directory != null && !directory.isDirectory() && !directory.mkdirs() ) {
+         throw new IOException( "Could not create " + directory );
+      }
+      FileOutputStream out = new FileOutputStream( file, true );
+      try {
+         Writer writer = new OutputStreamWriter( out, UTF_8 );
+         long now = System.currentTimeMillis();
+         for( Runnable task : tasks ) {
+            writer.write( now + "\t" + executor + "\t" + String.valueOf( format.format( task ) ).replace( '\n', ' ' ) + "\n" );
+         }
+         writer.flush();
+         out.getFD().sync();
+      }
+      finally {
+         out.close();
+      }
+   }
+}
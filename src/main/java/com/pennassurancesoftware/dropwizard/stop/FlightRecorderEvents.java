@@ -0,0 +1,198 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.Timespan;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Java Flight Recorder events of the stop.  Only {@link StopEvents} uses this class, and only once it has
+ * found JFR on the JVM, as loading it anywhere else would fail.
+ */
+final class FlightRecorderEvents {
+   private static final Logger LOGGER = LoggerFactory.getLogger( FlightRecorderEvents.class );
+
+   private FlightRecorderEvents() {}
+
+   static boolean isInitialized() {
+      return FlightRecorder.isInitialized();
+   }
+
+   static void command( String command ) {
+      CommandEvent event = new CommandEvent();
+      if( event.isEnabled() ) {
+         event.command = command;
+         event.commit();
+      }
+   }
+
+   static void authentication( boolean authorized ) {
+      AuthenticationEvent event = new AuthenticationEvent();
+      if( event.isEnabled() ) {
+         event.authorized = authorized;
+         event.commit();
+      }
+   }
+
+   static StopEvents.Span phase( StopPhase phase, long budget ) {
+      PhaseEvent event = new PhaseEvent();
+      if( !event.isEnabled() ) {
+         return StopEvents.NONE;
+      }
+      event.phase = phase.getLabel();
+      event.budget = TimeUnit.NANOSECONDS.toMillis( budget );
+      event.begin();
+      return event;
+   }
+
+   static StopEvents.Span managedStop( String component ) {
+      ManagedStopEvent event = new ManagedStopEvent();
+      if( !event.isEnabled() ) {
+         return StopEvents.NONE;
+      }
+      event.component = component;
+      event.begin();
+      return event;
+   }
+
+   static StopEvents.Span exit( int status, long budget ) {
+      ExitEvent event = new ExitEvent();
+      if( !event.isEnabled() ) {
+         return StopEvents.NONE;
+      }
+      event.status = status;
+      event.budget = budget < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis( budget );
+      event.begin();
+      return event;
+   }
+
+   /**
+    * Record with the JVM's 'profile' settings, which include these events, for the length of the stop.
+    */
+   static StopEvents.Recording startRecording( final File directory ) {
+      final Recording recording;
+      try {
+         if( !FlightRecorder.isAvailable() ) {
+            return StopEvents.NO_RECORDING;
+         }
+         // Registered up front, as registering one once the recording has started can leave its events out.
+         FlightRecorder.register( CommandEvent.class );
+         FlightRecorder.register( AuthenticationEvent.class );
+         FlightRecorder.register( PhaseEvent.class );
+         FlightRecorder.register( ManagedStopEvent.class );
+         FlightRecorder.register( ExitEvent.class );
+         recording = new Recording( Configuration.getConfiguration( "profile" ) );
+         recording.setName( "Stop" );
+         recording.start();
+      }
+      catch( Exception e ) {
+         LOGGER.warn( "Could not start a flight recording of the stop.  Stopping without one.", e );
+         return StopEvents.NO_RECORDING;
+      }
+      return new StopEvents.Recording() {
+         @Override
+         public void finish( boolean dump ) {
+            try {
+               recording.stop();
+               if( dump ) {
+                  File file = new File( directory,
+                        "stop-" + new SimpleDateFormat( "yyyyMMdd-HHmmss" ).format( new Date() ) + ".jfr" );
+                  if( !directory.isDirectory() && !directory.mkdirs() ) {
+                     throw new IOException( "Could not create " + directory );
+                  }
+                  recording.dump( file.toPath() );
+                  LOGGER.info( "The stop ran over its budget.  Dumped the flight recording of it to " + file );
+               }
+            }
+            catch( Exception e ) {
+               LOGGER.warn( "Could not dump the flight recording of the stop.", e );
+            }
+            finally {
+               recording.close();
+            }
+         }
+      };
+   }
+
+   /**
+    * An event that times something with a budget.
+    */
+   abstract static class SpanEvent extends Event implements StopEvents.Span {
+      @Label("Completed")
+      @Description("False if it ran out of its budget or failed")
+      boolean completed;
+
+      @Override
+      public void end( boolean completed ) {
+         this.completed = completed;
+         commit();
+      }
+   }
+
+   @Name("com.pennassurancesoftware.dropwizard.stop.ControlCommand")
+   @Label("Control Command")
+   @Description("A command received by the stop monitor")
+   @Category({ "Dropwizard", "Stop" })
+   static class CommandEvent extends Event {
+      @Label("Command")
+      String command;
+   }
+
+   @Name("com.pennassurancesoftware.dropwizard.stop.Authentication")
+   @Label("Control Authentication")
+   @Description("The key sent to the stop monitor checked")
+   @Category({ "Dropwizard", "Stop" })
+   static class AuthenticationEvent extends Event {
+      @Label("Authorized")
+      boolean authorized;
+   }
+
+   @Name("com.pennassurancesoftware.dropwizard.stop.Phase")
+   @Label("Stop Phase")
+   @Description("A phase of the stop sequence")
+   @Category({ "Dropwizard", "Stop" })
+   static class PhaseEvent extends SpanEvent {
+      @Label("Phase")
+      String phase;
+
+      @Label("Budget")
+      @Timespan(Timespan.MILLISECONDS)
+      long budget;
+   }
+
+   @Name("com.pennassurancesoftware.dropwizard.stop.ManagedStop")
+   @Label("Managed Stop")
+   @Description("A managed component stopped")
+   @Category({ "Dropwizard", "Stop" })
+   static class ManagedStopEvent extends SpanEvent {
+      @Label("Component")
+      String component;
+   }
+
+   @Name("com.pennassurancesoftware.dropwizard.stop.Exit")
+   @Label("Exit")
+   @Description("The exit tasks and shutdown hooks run before the JVM halts")
+   @Category({ "Dropwizard", "Stop" })
+   static class ExitEvent extends SpanEvent {
+      @Label("Status")
+      int status;
+
+      @Label("Budget")
+      @Timespan(Timespan.MILLISECONDS)
+      long budget;
+   }
+}
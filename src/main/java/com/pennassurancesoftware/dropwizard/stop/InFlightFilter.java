@@ -0,0 +1,92 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Keep the {@link InFlightTracker} up to date with the requests the application is serving, and record how long
+ * each took in its {@link LatencyHistogram}.  An asynchronous request stays in flight until its
+ * {@link javax.servlet.AsyncContext} completes, and is handed to the tracker so the drain can complete it early.
+ * Once the stop has started to stop accepting, a response that isn't yet committed when the request is done
+ * asks for 'Connection: close', so the client doesn't reuse the connection.  Each request carries the
+ * {@link StopDeadline} of the stop, for resources that should wrap up before the drain gives up on them.
+ * {@link StopBundle} installs this filter in front of every application request.
+ */
+public class InFlightFilter implements Filter {
+   private final InFlightTracker tracker;
+   private final StopState state;
+   private final StopDeadline deadline;
+
+   public InFlightFilter( InFlightTracker tracker ) {
+      this( tracker, null );
+   }
+
+   /**
+    * @param tracker of the requests in flight.
+    * @param state of the stop, or null not to close the connections while it is under way.
+    */
+   public InFlightFilter( InFlightTracker tracker, StopState state ) {
+      this.tracker = tracker;
+      this.state = state;
+      this.deadline = state != null ? new StopDeadline( state ) : null;
+   }
+
+   @Override
+   public void init( FilterConfig filterConfig ) throws ServletException {}
+
+   @Override
+   public void doFilter( ServletRequest request, ServletResponse response, FilterChain chain ) throws IOException, ServletException {
+      final long start = System.nanoTime();
+      tracker.enter();
+      boolean async = false;
+      if( deadline != null ) {
+         request.setAttribute( StopDeadline.ATTRIBUTE, deadline );
+      }
+      try {
+         chain.doFilter( request, response );
+         if( state != null && state.isShedding() && !response.isCommitted() &&
+               response instanceof HttpServletResponse ) {
+            ( ( HttpServletResponse )response ).setHeader( "Connection", "close" );
+         }
+         if( request.isAsyncStarted() ) {
+            // The context can't complete before this dispatch returns, so the listener can't miss it.
+            tracker.enterAsync( request.getAsyncContext() );
+            async = true;
+            request.getAsyncContext().addListener( new AsyncListener() {
+               @Override
+               public void onComplete( AsyncEvent event ) {
+                  tracker.exitAsync( event.getAsyncContext() );
+                  tracker.getLatencies().record( System.nanoTime() - start );
+               }
+
+               @Override
+               public void onTimeout( AsyncEvent event ) {}
+
+               @Override
+               public void onError( AsyncEvent event ) {}
+
+               @Override
+               public void onStartAsync( AsyncEvent event ) {}
+            } );
+         }
+      }
+      finally {
+         if( !async ) {
+            tracker.exit();
+            tracker.getLatencies().record( System.nanoTime() - start );
+         }
+      }
+   }
+
+   @Override
+   public void destroy() {}
+}
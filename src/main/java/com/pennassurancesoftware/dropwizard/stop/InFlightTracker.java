@@ -0,0 +1,157 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Count the requests that are in flight so that the {@link StopMonitor} can stop waiting as soon as
+ * the last one completes.<p/>
+ * The count is striped across padded slots selected by the calling thread, so that request threads
+ * rarely contend on the same cache line.  Only the total of all the slots is meaningful.
+ */
+public class InFlightTracker {
+   private static final Logger LOGGER = LoggerFactory.getLogger( InFlightTracker.class );
+   // Eight longs to a 64 byte cache line.
+   private static final int PADDING = 8;
+   private static final long MAX_IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+   private final int mask;
+   private final AtomicLongArray counts;
+   private final Object idle = new Object();
+   private final LatencyHistogram latencies = new LatencyHistogram();
+   private final Set<AsyncContext> async = Collections.newSetFromMap( new ConcurrentHashMap<AsyncContext, Boolean>() );
+   private volatile boolean waiting;
+
+   public InFlightTracker() {
+      int stripes = Integer.highestOneBit( Math.max( 1, Runtime.getRuntime().availableProcessors() ) * 2 - 1 ) << 1;
+      this.mask = stripes - 1;
+      this.counts = new AtomicLongArray( stripes * PADDING );
+   }
+
+   /**
+    * Record that a request has started.
+    */
+   public void enter() {
+      counts.incrementAndGet( slot() );
+   }
+
+   /**
+    * Record that a request has completed.
+    */
+   public void exit() {
+      counts.decrementAndGet( slot() );
+      if( waiting ) {
+         synchronized( idle ) {
+            idle.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Record that a request which has {@link #enter() entered} carries on asynchronously in the given context.
+    * @param context of the request.
+    */
+   public void enterAsync( AsyncContext context ) {
+      async.add( context );
+   }
+
+   /**
+    * Record that an asynchronous request has completed.
+    * @param context of the request.
+    */
+   public void exitAsync( AsyncContext context ) {
+      if( async.remove( context ) ) {
+         exit();
+      }
+   }
+
+   /**
+    * @return the number of asynchronous requests in flight, such as long-polls.
+    */
+   public int getAsync() {
+      return async.size();
+   }
+
+   /**
+    * Complete the asynchronous requests in flight, answering those that haven't started their response with a 503
+    * so that the client retries elsewhere.
+    * @return the number of requests completed.
+    */
+   public int completeAsync() {
+      int completed = 0;
+      for( AsyncContext context : async ) {
+         try {
+            ServletResponse response = context.getResponse();
+            if( !response.isCommitted() && response instanceof HttpServletResponse ) {
+               ( ( HttpServletResponse )response ).sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+            }
+            context.complete();
+            completed++;
+         }
+         catch( Exception e ) {
+            // Completed by the application in the meantime.
+            LOGGER.debug( "Could not complete an asynchronous request.", e );
+         }
+      }
+      return completed;
+   }
+
+   /**
+    * @return how long the requests that completed took.
+    */
+   public LatencyHistogram getLatencies() {
+      return latencies;
+   }
+
+   /**
+    * @return the number of requests in flight.
+    */
+   public long get() {
+      long total = 0;
+      for( int i = 0; i < counts.length(); i += PADDING ) {
+         total += counts.get( i );
+      }
+      return total;
+   }
+
+   /**
+    * Wait for the requests in flight to complete.
+    * @param timeout the most to wait.
+    * @param unit of the timeout.
+    * @return true if nothing was in flight before the timeout ran out.
+    * @throws InterruptedException if interrupted while waiting.
+    */
+   public boolean awaitIdle( long timeout, TimeUnit unit ) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos( timeout );
+      waiting = true;
+      try {
+         synchronized( idle ) {
+            while( get() > 0 ) {
+               long remaining = deadline - System.nanoTime();
+               if( remaining <= 0 ) {
+                  return false;
+               }
+               TimeUnit.NANOSECONDS.timedWait( idle, Math.min( remaining, MAX_IDLE_POLL_NANOS ) );
+            }
+         }
+         return true;
+      }
+      finally {
+         waiting = false;
+      }
+   }
+
+   private int slot() {
+      return ( ( int )Thread.currentThread().getId() & mask ) * PADDING;
+   }
+}
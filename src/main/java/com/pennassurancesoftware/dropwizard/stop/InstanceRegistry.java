@@ -0,0 +1,459 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A registry of the {@link StopMonitor}s running on the host, so that the {@link StopCommand} can find an
+ * instance by the name of its application or its process id, whatever port it was given.<p/>
+ * The registry is one file shared by every instance, memory mapped and laid out as
+ * <pre>
+ * header: magic(int) version(int) slots(int) slot-size(int), padded to 64 bytes
+ * slot:   used(byte) state(byte) port(int) pid(long) key-fingerprint(long) registered-millis(long)
+ *         name-length(short) name(bytes) socket-length(short) socket(bytes), padded to 512 bytes
+ * </pre>
+ * An instance claims a slot while holding a lock on the header, which keeps the writers of every process out of
+ * each other's way, and then holds a lock on its slot for as long as it is registered.  The operating system
+ * releases the locks of a process that dies, so a slot that is marked used but that can be locked belongs to an
+ * instance that went without unregistering, and is reclaimed.  Only the owner of a slot changes it afterwards,
+ * each time with a single byte write that nobody can see half done.<p/>
+ * Every registry of the same file in the JVM shares one mapping of it, as closing any channel to a file can
+ * release the locks held through the others.
+ */
+public class InstanceRegistry {
+   private static final Logger LOGGER = LoggerFactory.getLogger( InstanceRegistry.class );
+   private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+   private static final int MAGIC = 0x44575352;
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 64;
+   private static final int SLOT_SIZE = 512;
+   private static final int SLOTS = 256;
+   private static final int USED = 0;
+   private static final int STATE = 1;
+   private static final int PORT = 2;
+   private static final int PID = 6;
+   private static final int FINGERPRINT = 14;
+   private static final int REGISTERED = 22;
+   private static final int NAME = 30;
+   private static final int NAME_SIZE = 128;
+   private static final int SOCKET = NAME + 2 + NAME_SIZE;
+   private static final int SOCKET_SIZE = SLOT_SIZE - SOCKET - 2;
+   private static final Map<File, Mapping> MAPPINGS = new HashMap<File, Mapping>();
+
+   /**
+    * The state an instance publishes.
+    */
+   public enum State {
+      SERVING, STOPPING, QUIESCED
+   }
+
+   private final File file;
+
+   /**
+    * @param file of the registry, created if there isn't one yet.
+    */
+   public InstanceRegistry( File file ) {
+      this.file = file;
+   }
+
+   /**
+    * @return the registry file.
+    */
+   public File getFile() {
+      return file;
+   }
+
+   /**
+    * @param key the {@link StopMonitor} expects.
+    * @return a fingerprint of the key, with which the {@link StopCommand} can tell if it has the key of an
+    *         instance before sending it.
+    */
+   public static long fingerprint( String key ) {
+      try {
+         return ByteBuffer.wrap( MessageDigest.getInstance( "SHA-256" ).digest( key.getBytes( UTF_8 ) ) ).getLong();
+      }
+      catch( NoSuchAlgorithmException e ) {
+         throw new IllegalStateException( "The JVM has no SHA-256.", e );
+      }
+   }
+
+   /**
+    * Register an instance, taking over the slot of one that has gone if the registry is otherwise full.
+    * @param instance to register.
+    * @return the registration, to publish the state of the instance with and to close when it stops.
+    * @throws IOException if the registry couldn't be written or is full.
+    */
+   public Registration register( Instance instance ) throws IOException {
+      byte[] name = bytes( instance.getName(), NAME_SIZE, "name" );
+      byte[] socket = bytes( instance.getSocket(), SOCKET_SIZE, "socket" );
+      Mapping mapping = open( file );
+      Registration registration = null;
+      try {
+         synchronized( mapping ) {
+            FileLock header = mapping.channel.lock( 0, HEADER_SIZE, false );
+            try {
+               for( int slot = 0; slot < SLOTS && registration == null; slot++ ) {
+                  FileLock lock = tryLock( mapping, slot );
+                  if( lock != null ) {
+                     reclaim( mapping, slot );
+                     write( mapping, slot, instance, name, socket );
+                     registration = new Registration( mapping, slot, lock );
+                  }
+               }
+            }
+            finally {
+               header.release();
+            }
+         }
+      }
+      finally {
+         if( registration == null ) {
+            close( mapping );
+         }
+      }
+      if( registration == null ) {
+         throw new IOException( "The stop registry " + file + " is full, with " + SLOTS + " instances registered." );
+      }
+      return registration;
+   }
+
+   /**
+    * @return the instances registered, reclaiming the slots of any that have gone.
+    * @throws IOException if the registry couldn't be read.
+    */
+   public List<Instance> getInstances() throws IOException {
+      List<Instance> instances = new ArrayList<Instance>();
+      Mapping mapping = open( file );
+      try {
+         synchronized( mapping ) {
+            FileLock header = mapping.channel.lock( 0, HEADER_SIZE, false );
+            try {
+               for( int slot = 0; slot < SLOTS; slot++ ) {
+                  if( mapping.buffer.get( offset( slot ) + USED ) == 0 ) {
+                     continue;
+                  }
+                  FileLock lock = tryLock( mapping, slot );
+                  if( lock == null ) {
+                     instances.add( read( mapping, slot ) );
+                  }
+                  else {
+                     reclaim( mapping, slot );
+                     lock.release();
+                  }
+               }
+            }
+            finally {
+               header.release();
+            }
+         }
+      }
+      finally {
+         close( mapping );
+      }
+      return instances;
+   }
+
+   /**
+    * @param name of the application.
+    * @return the instances of the application registered.
+    * @throws IOException if the registry couldn't be read.
+    */
+   public List<Instance> find( String name ) throws IOException {
+      List<Instance> found = new ArrayList<Instance>();
+      for( Instance instance : getInstances() ) {
+         if( name.equals( instance.getName() ) ) {
+            found.add( instance );
+         }
+      }
+      return found;
+   }
+
+   /**
+    * @param pid of the process.
+    * @return the instance registered by the process, or null if it hasn't registered.
+    * @throws IOException if the registry couldn't be read.
+    */
+   public Instance find( long pid ) throws IOException {
+      for( Instance instance : getInstances() ) {
+         if( instance.getPid() == pid ) {
+            return instance;
+         }
+      }
+      return null;
+   }
+
+   private static byte[] bytes( String value, int max, String field ) {
+      byte[] bytes = value != null ? value.getBytes( UTF_8 ) : new byte[0];
+      if( bytes.length > max ) {
+         throw new IllegalArgumentException( "The " + field + " '" + value + "' is longer than the " + max +
+               " bytes the stop registry has room for." );
+      }
+      return bytes;
+   }
+
+   private static int offset( int slot ) {
+      return HEADER_SIZE + slot * SLOT_SIZE;
+   }
+
+   /**
+    * @return the lock on the slot, or null if a live instance, in this JVM or another, holds it.
+    */
+   private static FileLock tryLock( Mapping mapping, int slot ) throws IOException {
+      try {
+         return mapping.channel.tryLock( offset( slot ), SLOT_SIZE, false );
+      }
+      catch( OverlappingFileLockException e ) {
+         return null;
+      }
+   }
+
+   private static void reclaim( Mapping mapping, int slot ) {
+      if( mapping.buffer.get( offset( slot ) + USED ) != 0 ) {
+         LOGGER.info( "Reclaiming the stop registration of " + read( mapping, slot ) + ", as it has gone." );
+         mapping.buffer.put( offset( slot ) + USED, ( byte )0 );
+      }
+   }
+
+   private static void write( Mapping mapping, int slot, Instance instance, byte[] name, byte[] socket ) {
+      ByteBuffer buffer = mapping.buffer.duplicate();
+      buffer.position( offset( slot ) + STATE );
+      buffer.put( ( byte )instance.getState().ordinal() );
+      buffer.putInt( instance.getPort() );
+      buffer.putLong( instance.getPid() );
+      buffer.putLong( instance.getFingerprint() );
+      buffer.putLong( System.currentTimeMillis() );
+      buffer.putShort( ( short )name.length );
+      buffer.put( name );
+      buffer.position( offset( slot ) + SOCKET );
+      buffer.putShort( ( short )socket.length );
+      buffer.put( socket );
+      // Marked used last, so the slot is never seen half written.
+      mapping.buffer.put( offset( slot ) + USED, ( byte )1 );
+   }
+
+   private static Instance read( Mapping mapping, int slot ) {
+      ByteBuffer buffer = mapping.buffer.duplicate();
+      buffer.position( offset( slot ) + STATE );
+      State state = State.values()[buffer.get()];
+      int port = buffer.getInt();
+      long pid = buffer.getLong();
+      long fingerprint = buffer.getLong();
+      buffer.getLong();
+      byte[] name = new byte[buffer.getShort()];
+      buffer.get( name );
+      buffer.position( offset( slot ) + SOCKET );
+      byte[] socket = new byte[buffer.getShort()];
+      buffer.get( socket );
+      return new Instance( new String( name, UTF_8 ), pid, port,
+            socket.length > 0 ? new String( socket, UTF_8 ) : null, fingerprint, state );
+   }
+
+   private static Mapping open( File file ) throws IOException {
+      File key = file.getCanonicalFile();
+      synchronized( MAPPINGS ) {
+         Mapping mapping = MAPPINGS.get( key );
+         if( mapping == null ) {
+            mapping = new Mapping( key );
+            MAPPINGS.put( key, mapping );
+         }
+         mapping.references++;
+         return mapping;
+      }
+   }
+
+   private static void close( Mapping mapping ) {
+      synchronized( MAPPINGS ) {
+         if( --mapping.references > 0 ) {
+            return;
+         }
+         MAPPINGS.remove( mapping.file );
+      }
+      try {
+         mapping.channel.close();
+      }
+      catch( IOException e ) {
+         LOGGER.debug( "Error trying to close the stop registry.  Continue anyway.", e );
+      }
+   }
+
+   /**
+    * The mapping of a registry file, shared by everything in the JVM using the file.
+    */
+   private static class Mapping {
+      private final File file;
+      private final FileChannel channel;
+      private final MappedByteBuffer buffer;
+      private int references;
+
+      private Mapping( File file ) throws IOException {
+         this.file = file;
+         long size = HEADER_SIZE + ( long )SLOTS * SLOT_SIZE;
+         boolean created = !file.exists();
+         if( !created && file.length() != 0 && file.length() != size ) {
+            throw new IOException( file + " isn't a stop registry." );
+         }
+         RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+         this.channel = raf.getChannel();
+         try {
+            if( created ) {
+               file.setReadable( false, false );
+               file.setWritable( false, false );
+               file.setReadable( true, true );
+               file.setWritable( true, true );
+            }
+            this.buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+            FileLock header = channel.lock( 0, HEADER_SIZE, false );
+            try {
+               if( buffer.getInt( 0 ) == 0 ) {
+                  buffer.putInt( 4, VERSION );
+                  buffer.putInt( 8, SLOTS );
+                  buffer.putInt( 12, SLOT_SIZE );
+                  buffer.putInt( 0, MAGIC );
+               }
+               else if( buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION ) {
+                  throw new IOException( file + " isn't a stop registry, or is one of another version." );
+               }
+            }
+            finally {
+               header.release();
+            }
+         }
+         catch( IOException e ) {
+            channel.close();
+            throw e;
+         }
+      }
+   }
+
+   /**
+    * The registration of an instance.
+    */
+   public static final class Registration implements Closeable {
+      private final Mapping mapping;
+      private final int slot;
+      private final FileLock lock;
+      private boolean closed;
+
+      private Registration( Mapping mapping, int slot, FileLock lock ) {
+         this.mapping = mapping;
+         this.slot = slot;
+         this.lock = lock;
+      }
+
+      /**
+       * @param state of the instance, for the {@link StopCommand} and anyone else reading the registry.
+       */
+      public synchronized void setState( State state ) {
+         if( !closed ) {
+            mapping.buffer.put( offset( slot ) + STATE, ( byte )state.ordinal() );
+         }
+      }
+
+      /**
+       * Unregister the instance.
+       */
+      @Override
+      public synchronized void close() throws IOException {
+         if( closed ) {
+            return;
+         }
+         closed = true;
+         mapping.buffer.put( offset( slot ) + USED, ( byte )0 );
+         try {
+            lock.release();
+         }
+         finally {
+            InstanceRegistry.close( mapping );
+         }
+      }
+   }
+
+   /**
+    * A {@link StopMonitor} that can be stopped, registered or not.
+    */
+   public static class Instance {
+      private final String name;
+      private final long pid;
+      private final int port;
+      private final String socket;
+      private final long fingerprint;
+      private final State state;
+
+      /**
+       * @param name of the application.
+       * @param pid of the process.
+       * @param port of the stop monitor, or -1 if it is on a socket.
+       * @param socket path of the stop monitor, or null if it is on a port.
+       * @param fingerprint of its key, see {@link InstanceRegistry#fingerprint(String)}, or 0 if not known.
+       * @param state of the instance.
+       */
+      public Instance( String name, long pid, int port, String socket, long fingerprint, State state ) {
+         this.name = name;
+         this.pid = pid;
+         this.port = port;
+         this.socket = socket;
+         this.fingerprint = fingerprint;
+         this.state = state;
+      }
+
+      /**
+       * @return the stop monitor on a local port, about which nothing else is known.
+       */
+      static Instance atPort( int port ) {
+         return new Instance( null, 0, port, null, 0, State.SERVING );
+      }
+
+      /**
+       * @return the stop monitor on a Unix domain socket, about which nothing else is known.
+       */
+      static Instance atSocket( File socket ) {
+         return new Instance( null, 0, -1, socket.getPath(), 0, State.SERVING );
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      public long getPid() {
+         return pid;
+      }
+
+      public int getPort() {
+         return port;
+      }
+
+      public String getSocket() {
+         return socket;
+      }
+
+      public long getFingerprint() {
+         return fingerprint;
+      }
+
+      public State getState() {
+         return state;
+      }
+
+      @Override
+      public String toString() {
+         return ( pid > 0 ? "pid=" + pid + " " : "" ) + ( socket != null ? "socket=" + socket : "port=" + port );
+      }
+   }
+}
@@ -0,0 +1,83 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A streaming histogram of request latencies, cheap enough to record every request into.<p/>
+ * Latencies are counted in log-linear buckets: eight to each power of two, so a percentile is reported
+ * to within 12.5% of the latencies recorded.  Latencies over 2^41 nanoseconds, about 36.6 minutes, are
+ * counted as that.
+ */
+public class LatencyHistogram {
+   private static final int SUB_BUCKET_BITS = 3;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int MAX_EXPONENT = 40;
+
+   private final AtomicLongArray counts = new AtomicLongArray( index( ( 1L << ( MAX_EXPONENT + 1 ) ) - 1 ) + 1 );
+
+   /**
+    * @param nanos a request took.
+    */
+   public void record( long nanos ) {
+      counts.incrementAndGet( index( Math.max( 0, nanos ) ) );
+   }
+
+   /**
+    * @return the number of latencies recorded.
+    */
+   public long getCount() {
+      long count = 0;
+      for( int i = 0; i < counts.length(); i++ ) {
+         count += counts.get( i );
+      }
+      return count;
+   }
+
+   /**
+    * @param percentile between 0 and 100.
+    * @return the latency in nanoseconds that the given percentage of the requests took no longer than,
+    *         or zero if none have been recorded.
+    */
+   public long getValueAtPercentile( double percentile ) {
+      long[] snapshot = new long[ counts.length() ];
+      long total = 0;
+      for( int i = 0; i < snapshot.length; i++ ) {
+         snapshot[ i ] = counts.get( i );
+         total += snapshot[ i ];
+      }
+      if( total == 0 ) {
+         return 0;
+      }
+      long target = Math.max( 1, ( long )Math.ceil( total * Math.min( 100, percentile ) / 100 ) );
+      long seen = 0;
+      for( int i = 0; i < snapshot.length; i++ ) {
+         seen += snapshot[ i ];
+         if( seen >= target ) {
+            return highestValue( i );
+         }
+      }
+      return highestValue( snapshot.length - 1 );
+   }
+
+   private static int index( long nanos ) {
+      if( nanos < SUB_BUCKETS ) {
+         return ( int )nanos;
+      }
+      int exponent = Math.min( MAX_EXPONENT, 63 - Long.numberOfLeadingZeros( nanos ) );
+      if( exponent == MAX_EXPONENT ) {
+         nanos = Math.min( nanos, ( 1L << ( MAX_EXPONENT + 1 ) ) - 1 );
+      }
+      int subBucket = ( int )( ( nanos >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 ) );
+      return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+   }
+
+   private static long highestValue( int index ) {
+      if( index < SUB_BUCKETS ) {
+         return index;
+      }
+      int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      int subBucket = index % SUB_BUCKETS;
+      int shift = exponent - SUB_BUCKET_BITS;
+      return ( ( ( long )( SUB_BUCKETS + subBucket ) ) << shift ) + ( 1L << shift ) - 1;
+   }
+}
@@ -0,0 +1,99 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The bytes read from a control connection, matched a line at a time in place rather than decoded,
+ * so the buffer can be reused from command to command.
+ */
+class LineBuffer {
+   private final ByteBuffer buffer;
+
+   /**
+    * @param capacity the longest run of unhandled lines that can be held.
+    */
+   LineBuffer( int capacity ) {
+      this.buffer = ByteBuffer.allocate( capacity );
+   }
+
+   /**
+    * Read whatever is available on the channel.
+    * @return false if the client closed the connection or sent more than the buffer can hold.
+    * @throws IOException if the read failed.
+    */
+   boolean read( ReadableByteChannel channel ) throws IOException {
+      if( !buffer.hasRemaining() ) {
+         return false;
+      }
+      return channel.read( buffer ) >= 0;
+   }
+
+   /**
+    * Block until a complete line has been read.
+    * @return the index of the line's '\n' or -1 if the stream ended or the line is too long.
+    * @throws IOException if the read failed or timed out.
+    */
+   int readLine( InputStream in ) throws IOException {
+      int newline = nextLine();
+      while( newline < 0 && buffer.hasRemaining() ) {
+         int read = in.read( buffer.array(), buffer.position(), buffer.remaining() );
+         if( read < 0 ) {
+            return -1;
+         }
+         buffer.position( buffer.position() + read );
+         newline = nextLine();
+      }
+      return newline;
+   }
+
+   /**
+    * Find the next complete line in what has been read so far.
+    * @return the index of the line's '\n' or -1 if a complete line hasn't arrived yet.
+    */
+   int nextLine() {
+      int end = buffer.position();
+      for( int i = 0; i < end; i++ ) {
+         if( buffer.get( i ) == '\n' ) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * @param newline index returned by {@link #nextLine()}.
+    * @return true if the line is exactly the expected bytes, ignoring its terminator.
+    */
+   boolean lineEquals( byte[] expected, int newline ) {
+      return ControlCommand.equals( expected, buffer, 0, lineLength( newline ) );
+   }
+
+   /**
+    * @param newline index returned by {@link #nextLine()}.
+    * @return the command on the line or null if it isn't known.
+    */
+   ControlCommand command( int newline ) {
+      return ControlCommand.match( buffer, 0, lineLength( newline ) );
+   }
+
+   /**
+    * Discard a line that has been handled.
+    * @param newline index returned by {@link #nextLine()}.
+    */
+   void consume( int newline ) {
+      buffer.flip();
+      buffer.position( newline + 1 );
+      buffer.compact();
+   }
+
+   void clear() {
+      buffer.clear();
+   }
+
+   private int lineLength( int newline ) {
+      return newline > 0 && buffer.get( newline - 1 ) == '\r' ? newline - 1 : newline;
+   }
+}
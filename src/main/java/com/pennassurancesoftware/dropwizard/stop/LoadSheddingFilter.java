@@ -0,0 +1,57 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import io.dropwizard.util.Duration;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import com.codahale.metrics.Meter;
+
+/**
+ * Turn new requests away with a 503 and a 'Retry-After' once the stop has started to stop accepting,
+ * so that clients retry on another node straight away rather than racing the drain.
+ * Requests are still served while the node waits out its deregistration delay.
+ * {@link StopBundle} installs this filter in front of every application request.
+ */
+public class LoadSheddingFilter implements Filter {
+   private final StopState state;
+   private final String retryAfter;
+   private final Meter shed;
+
+   /**
+    * @param state of the stop.
+    * @param retryAfter to tell clients, rounded up to whole seconds.
+    * @param shed marked for each request turned away.
+    */
+   public LoadSheddingFilter( StopState state, Duration retryAfter, Meter shed ) {
+      this.state = state;
+      this.retryAfter = String.valueOf( ( retryAfter.toMilliseconds() + 999 ) / 1000 );
+      this.shed = shed;
+   }
+
+   @Override
+   public void init( FilterConfig filterConfig ) throws ServletException {}
+
+   @Override
+   public void doFilter( ServletRequest request, ServletResponse response, FilterChain chain ) throws IOException, ServletException {
+      if( state.isShedding() && response instanceof HttpServletResponse ) {
+         shed.mark();
+         HttpServletResponse httpResponse = ( HttpServletResponse )response;
+         httpResponse.setHeader( "Retry-After", retryAfter );
+         httpResponse.setHeader( "Connection", "close" );
+         httpResponse.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+         return;
+      }
+      chain.doFilter( request, response );
+   }
+
+   @Override
+   public void destroy() {}
+}
@@ -0,0 +1,87 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where the {@link StopMonitor} serves the stop port from.  Whichever is used, a stop runs on a non-daemon
+ * thread of its own, so the JVM can't exit before the stop finishes.
+ */
+public enum MonitorExecutor {
+   /** A platform thread of its own, the default. */
+   THREAD,
+   /** A thread borrowed from the Jetty server's thread pool for as long as the server runs. */
+   JETTY,
+   /** A virtual thread, where the JVM has them (Java 21 and later).  Otherwise a platform thread. */
+   VIRTUAL;
+
+   private static final Logger LOGGER = LoggerFactory.getLogger( MonitorExecutor.class );
+   private static final String THREAD_NAME = "StopMonitor";
+
+   /**
+    * @param server the monitor stops.
+    * @return the executor to run the monitor on.
+    */
+   Executor executor( LifeCycle server ) {
+      switch( this ) {
+         case JETTY:
+            if( server instanceof Server && ( ( Server )server ).getThreadPool() != null ) {
+               return ( ( Server )server ).getThreadPool();
+            }
+            LOGGER.warn( "No Jetty thread pool to run the stop monitor on.  Using a thread of its own." );
+            return platformThread();
+         case VIRTUAL:
+            Executor virtual = virtualThread();
+            if( virtual != null ) {
+               return virtual;
+            }
+            LOGGER.warn( "Virtual threads aren't available.  Running the stop monitor on a thread of its own." );
+            return platformThread();
+         default:
+            return platformThread();
+      }
+   }
+
+   private static Executor platformThread() {
+      return new Executor() {
+         @Override
+         public void execute( Runnable command ) {
+            // Not a daemon, like the server's own threads.
+            Thread thread = new Thread( command, THREAD_NAME );
+            thread.setDaemon( false );
+            thread.start();
+         }
+      };
+   }
+
+   /**
+    * @return an executor that starts a virtual thread for each task, or null if the JVM doesn't have them.
+    */
+   private static Executor virtualThread() {
+      try {
+         final Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+         Class<?> builderClass = Class.forName( "java.lang.Thread$Builder" );
+         builderClass.getMethod( "name", String.class ).invoke( builder, THREAD_NAME );
+         final Method start = builderClass.getMethod( "start", Runnable.class );
+         return new Executor() {
+            @Override
+            public void execute( Runnable command ) {
+               try {
+                  start.invoke( builder, command );
+               }
+               catch( Exception e ) {
+                  throw new IllegalStateException( "Unable to start a virtual thread", e );
+               }
+            }
+         };
+      }
+      catch( Exception e ) {
+         return null;
+      }
+   }
+}
@@ -0,0 +1,131 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import io.dropwizard.util.Duration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The time each {@link StopPhase} is given.  Time a phase doesn't use is handed on to the next phase.
+ * A phase without a budget may use whatever is left of {@link StopConfiguration#getWait()}, and no phase
+ * before the exit runs past that overall wait.  The {@link StopPhase#DEREGISTER} phase isn't budgeted here, as it
+ * always lasts {@link StopConfiguration#getDeregistrationDelay()}.
+ */
+public class PhaseBudgetConfiguration {
+   @JsonProperty
+   private Duration stopAccepting;
+
+   @JsonProperty
+   private Duration drain;
+
+   @JsonProperty
+   private Duration drainExecutors;
+
+   @JsonProperty
+   private Duration snapshot;
+
+   @JsonProperty
+   private Duration stopManaged;
+
+   @JsonProperty
+   private Duration flush;
+
+   @JsonProperty
+   private Duration exit;
+
+   /**
+    * @param phase to find the budget of.
+    * @return the budget of the phase or null if it doesn't have one.
+    */
+   public Duration getBudget( StopPhase phase ) {
+      switch( phase ) {
+         case STOP_ACCEPTING:
+            return stopAccepting;
+         case DRAIN:
+            return drain;
+         case DRAIN_EXECUTORS:
+            return drainExecutors;
+         case SNAPSHOT:
+            return snapshot;
+         case STOP_MANAGED:
+            return stopManaged;
+         case FLUSH:
+            return flush;
+         case EXIT:
+            return exit;
+         default:
+            return null;
+      }
+   }
+
+   public Duration getStopAccepting() {
+      return stopAccepting;
+   }
+
+   public void setStopAccepting( Duration stopAccepting ) {
+      this.stopAccepting = stopAccepting;
+   }
+
+   public Duration getDrain() {
+      return drain;
+   }
+
+   public void setDrain( Duration drain ) {
+      this.drain = drain;
+   }
+
+   /**
+    * The tasks still queued on the executors of the {@link ExecutorDrainer} once this budget is used up are
+    * handed to its {@link SpillHandler}.
+    * @return {@link Duration}
+    */
+   public Duration getDrainExecutors() {
+      return drainExecutors;
+   }
+
+   public void setDrainExecutors( Duration drainExecutors ) {
+      this.drainExecutors = drainExecutors;
+   }
+
+   /**
+    * A snapshot that isn't written within this budget is discarded, so the next instance starts without it.
+    * @return {@link Duration}
+    */
+   public Duration getSnapshot() {
+      return snapshot;
+   }
+
+   public void setSnapshot( Duration snapshot ) {
+      this.snapshot = snapshot;
+   }
+
+   public Duration getStopManaged() {
+      return stopManaged;
+   }
+
+   public void setStopManaged( Duration stopManaged ) {
+      this.stopManaged = stopManaged;
+   }
+
+   public Duration getFlush() {
+      return flush;
+   }
+
+   public void setFlush( Duration flush ) {
+      this.flush = flush;
+   }
+
+   /**
+    * The exit runs after the 'Stopped' reply has been sent, so it isn't bound by the overall wait.
+    * The shutdown hooks and the tasks of the {@link ExitCoordinator} run in parallel, and once the exit budget
+    * is used up the JVM is halted without waiting for the ones still running.
+    * Without an exit budget the exit is given 30 seconds.
+    * @return {@link Duration}
+    */
+   public Duration getExit() {
+      return exit;
+   }
+
+   public void setExit( Duration exit ) {
+      this.exit = exit;
+   }
+}
@@ -0,0 +1,97 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write a progress frame to a client that is watching a stop, at a fixed interval until the stop is done:
+ * <pre>
+ * Progress phase=drain inFlight=3 remaining=1200ms
+ * </pre>
+ * The remaining time is what is left of the wait before the stop gives up on the phases that are still to run.
+ * A client that goes away just stops the frames, the stop carries on, and one that stops reading has its
+ * connection closed once the stop is done rather than holding up the exit.
+ */
+class ProgressReporter extends Thread {
+   private static final Logger LOGGER = LoggerFactory.getLogger( ProgressReporter.class );
+   private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+   private final OutputStream out;
+   private final Closeable connection;
+   private final StopState state;
+   private final InFlightTracker inFlight;
+   private final long intervalNanos;
+   private final CountDownLatch done = new CountDownLatch( 1 );
+
+   /**
+    * @param out to write the frames to.
+    * @param connection that out writes to, closed if a frame can't be written in time.
+    * @param state of the stop.
+    * @param inFlight requests.
+    * @param intervalNanos between frames.
+    */
+   ProgressReporter( OutputStream out, Closeable connection, StopState state, InFlightTracker inFlight,
+         long intervalNanos ) {
+      super( "Stop Progress" );
+      setDaemon( true );
+      this.out = out;
+      this.connection = connection;
+      this.state = state;
+      this.inFlight = inFlight;
+      this.intervalNanos = intervalNanos;
+   }
+
+   @Override
+   public void run() {
+      try {
+         do {
+            out.write( frame().getBytes( UTF_8 ) );
+            out.flush();
+         }
+         while( !done.await( intervalNanos, TimeUnit.NANOSECONDS ) );
+      }
+      catch( IOException e ) {
+         LOGGER.info( "Stopped sending stop progress, as the client went away.  Continuing the stop." );
+      }
+      catch( InterruptedException e ) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Stop sending frames and wait for the one being written, so that whatever is written next follows it.
+    * A frame still not written after the timeout is blocked on a client that isn't reading, so the connection
+    * is closed to let it go.
+    * @param timeoutMs to wait for the frame being written.
+    * @return true if the frames are done and the connection can be written to, false if it was closed.
+    * @throws InterruptedException if interrupted while waiting.
+    */
+   boolean finish( long timeoutMs ) throws InterruptedException {
+      done.countDown();
+      join( Math.max( 1, timeoutMs ) );
+      if( !isAlive() ) {
+         return true;
+      }
+      LOGGER.warn( "The stop progress client hasn't read a frame in " + timeoutMs + "ms, closing the connection." );
+      try {
+         connection.close();
+      }
+      catch( IOException e ) {
+         LOGGER.info( "Error closing the stop progress connection.", e );
+      }
+      return false;
+   }
+
+   private String frame() {
+      StopPhase phase = state.getPhase();
+      return "Progress phase=" + ( phase != null ? phase.getLabel() : "starting" ) + " inFlight=" + inFlight.get() +
+            " remaining=" + TimeUnit.NANOSECONDS.toMillis( state.getRemainingNanos() ) + "ms\r\n";
+   }
+}
@@ -0,0 +1,45 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import io.dropwizard.jetty.HttpConnectorFactory;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import com.fasterxml.jackson.annotation.JsonTypeName;
+
+/**
+ * An HTTP connector bound with SO_REUSEPORT, so a new instance of the application can take over the port
+ * without a gap, see {@link StopConfiguration#isHandover()}.  Configured like the 'http' connector:
+ *
+ * <pre>
+ * server:
+ *   applicationConnectors:
+ *     - type: http-reuseport
+ *       port: 8080
+ * </pre>
+ */
+@JsonTypeName("http-reuseport")
+public class ReusePortHttpConnectorFactory extends HttpConnectorFactory {
+   @Override
+   protected ServerConnector buildConnector( Server server, Scheduler scheduler, ByteBufferPool bufferPool,
+         String name, ThreadPool threadPool, ConnectionFactory... factories ) {
+      final ServerConnector connector = new ReusePortServerConnector( server, threadPool, scheduler, bufferPool,
+            getAcceptorThreads(), getSelectorThreads(), factories );
+      connector.setPort( getPort() );
+      connector.setHost( getBindHost() );
+      if( getAcceptQueueSize() != null ) {
+         connector.setAcceptQueueSize( getAcceptQueueSize() );
+      }
+      connector.setReuseAddress( isReuseAddress() );
+      if( getSoLingerTime() != null ) {
+         connector.setSoLingerTime( ( int )getSoLingerTime().toSeconds() );
+      }
+      connector.setIdleTimeout( getIdleTimeout().toMilliseconds() );
+      connector.setName( name );
+      return connector;
+   }
+}
@@ -0,0 +1,131 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ServerConnector} that binds its port with SO_REUSEPORT, so that a new instance of the application
+ * can bind the same port and take connections while the old one is still draining.
+ * The option is only available on Linux from Java 9, elsewhere the port is bound as usual and a warning logged.
+ * Connections the kernel has queued on the old instance's socket when it closes are reset, so the old instance
+ * should stop accepting only once the new one is serving.
+ */
+public class ReusePortServerConnector extends ServerConnector {
+   private static final Logger LOGGER = LoggerFactory.getLogger( ReusePortServerConnector.class );
+   private static final SocketOption<Boolean> SO_REUSEPORT = findReusePort();
+
+   private volatile ServerSocketChannel acceptChannel;
+   private volatile int localPort = -1;
+
+   public ReusePortServerConnector( Server server, Executor executor, Scheduler scheduler, ByteBufferPool bufferPool,
+         int acceptors, int selectors, ConnectionFactory... factories ) {
+      super( server, executor, scheduler, bufferPool, acceptors, selectors, factories );
+   }
+
+   /**
+    * @return true if the running JVM can set SO_REUSEPORT.
+    */
+   public static boolean isReusePortSupported() {
+      return SO_REUSEPORT != null;
+   }
+
+   @SuppressWarnings("unchecked")
+   private static SocketOption<Boolean> findReusePort() {
+      try {
+         return ( SocketOption<Boolean> )StandardSocketOptions.class.getField( "SO_REUSEPORT" ).get( null );
+      }
+      catch( Exception e ) {
+         return null;
+      }
+   }
+
+   @Override
+   public void open() throws IOException {
+      if( acceptChannel != null ) {
+         return;
+      }
+      if( getAcceptors() == 0 ) {
+         // Jetty would hand its own accept channel to a selector, and there isn't one.
+         throw new IllegalStateException( "A connector bound with SO_REUSEPORT needs at least one acceptor thread" );
+      }
+      ServerSocketChannel channel = ServerSocketChannel.open();
+      try {
+         if( SO_REUSEPORT != null && channel.supportedOptions().contains( SO_REUSEPORT ) ) {
+            channel.setOption( SO_REUSEPORT, Boolean.TRUE );
+         }
+         else {
+            LOGGER.warn( "SO_REUSEPORT isn't supported here, so port " + getPort() + " can't be shared with " +
+                  "another instance." );
+         }
+         channel.socket().setReuseAddress( getReuseAddress() );
+         InetSocketAddress address = getHost() == null
+               ? new InetSocketAddress( getPort() )
+               : new InetSocketAddress( getHost(), getPort() );
+         channel.socket().bind( address, getAcceptQueueSize() );
+      }
+      catch( IOException e ) {
+         channel.close();
+         throw e;
+      }
+      localPort = channel.socket().getLocalPort();
+      addBean( channel );
+      acceptChannel = channel;
+   }
+
+   @Override
+   public void accept( int acceptorID ) throws IOException {
+      ServerSocketChannel channel = acceptChannel;
+      if( channel != null && channel.isOpen() ) {
+         SocketChannel accepted = channel.accept();
+         accepted.configureBlocking( false );
+         configure( accepted.socket() );
+         getSelectorManager().accept( accepted );
+      }
+   }
+
+   @Override
+   public void close() {
+      ServerSocketChannel channel = acceptChannel;
+      acceptChannel = null;
+      if( channel != null ) {
+         removeBean( channel );
+         try {
+            channel.close();
+         }
+         catch( IOException e ) {
+            LOGGER.warn( "Error closing " + this, e );
+         }
+      }
+      localPort = -2;
+      super.close();
+   }
+
+   @Override
+   public boolean isOpen() {
+      ServerSocketChannel channel = acceptChannel;
+      return channel != null && channel.isOpen();
+   }
+
+   @Override
+   public int getLocalPort() {
+      return localPort;
+   }
+
+   @Override
+   public Object getTransport() {
+      return acceptChannel;
+   }
+}
@@ -0,0 +1,251 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Start and stop {@link Managed} components in the order of their dependencies, stopping the components
+ * that don't depend on each other at the same time on a bounded pool of threads.<p/>
+ * A component is started after the components it depends on and stopped before them.  For example a
+ * producer that writes through a connection pool would be registered as depending on the pool:
+ * <pre>
+    coordinator.register( "pool", pool );
+    coordinator.register( "producer", producer, "pool" );
+ * </pre>
+ * Components registered here should not also be registered with {@code environment.lifecycle()}, as
+ * {@link StopBundle} manages the coordinator itself.  The coordinator waits no longer than its budget for the
+ * components to stop, and names those still stopping when it gives up.
+ */
+public class ShutdownCoordinator implements Managed {
+   private static final Logger LOGGER = LoggerFactory.getLogger( ShutdownCoordinator.class );
+
+   private final Map<String, Component> components = new LinkedHashMap<String, Component>();
+   private final Map<String, Long> stopNanos = new ConcurrentHashMap<String, Long>();
+   private final AtomicBoolean stopped = new AtomicBoolean();
+   private int threads = 4;
+   private long budgetNanos = TimeUnit.SECONDS.toNanos( 30 );
+
+   /**
+    * Register a component.
+    * @param name of the component, unique within the coordinator.
+    * @param managed component.
+    * @param dependsOn names of the components this one uses, and so has to be stopped before.
+    */
+   public synchronized void register( String name, Managed managed, String... dependsOn ) {
+      if( components.containsKey( name ) ) {
+         throw new IllegalArgumentException( "A component named '" + name + "' is already registered." );
+      }
+      components.put( name, new Component( name, managed, Arrays.asList( dependsOn ) ) );
+   }
+
+   /**
+    * @param threads the most components to stop at the same time.
+    */
+   public void setThreads( int threads ) {
+      this.threads = threads;
+   }
+
+   /**
+    * @param budget the most the coordinator waits for the components to stop.
+    */
+   public void setBudget( Duration budget ) {
+      this.budgetNanos = budget.toNanoseconds();
+   }
+
+   /**
+    * @return how long each component took to stop, in nanoseconds, once the coordinator has stopped.
+    */
+   public Map<String, Long> getStopNanos() {
+      return Collections.unmodifiableMap( stopNanos );
+   }
+
+   /**
+    * Start the components, each after the components it depends on.
+    * @throws IllegalStateException if a dependency isn't registered or the dependencies form a cycle.
+    */
+   @Override
+   public synchronized void start() throws Exception {
+      for( Component component : startOrder() ) {
+         component.managed.start();
+      }
+   }
+
+   /**
+    * Stop the components, each once the components that depend on it have stopped, for no longer than the budget.
+    * Stopping more than once does nothing.
+    */
+   @Override
+   public void stop() throws Exception {
+      if( !stopped.compareAndSet( false, true ) ) {
+         return;
+      }
+      final Map<String, Component> stopping;
+      synchronized( this ) {
+         stopping = new LinkedHashMap<String, Component>( components );
+      }
+      if( stopping.isEmpty() ) {
+         return;
+      }
+
+      final Map<String, AtomicInteger> dependents = new LinkedHashMap<String, AtomicInteger>();
+      for( String name : stopping.keySet() ) {
+         dependents.put( name, new AtomicInteger() );
+      }
+      for( Component component : stopping.values() ) {
+         for( String dependency : component.dependsOn ) {
+            if( dependents.containsKey( dependency ) ) {
+               dependents.get( dependency ).incrementAndGet();
+            }
+         }
+      }
+
+      final long start = System.nanoTime();
+      final CountDownLatch done = new CountDownLatch( stopping.size() );
+      final Map<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+      for( String name : stopping.keySet() ) {
+         pending.put( name, Boolean.TRUE );
+      }
+      final ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, stopping.size() ), new ThreadFactory() {
+         private final AtomicInteger count = new AtomicInteger();
+
+         @Override
+         public Thread newThread( Runnable runnable ) {
+            // Daemons, so that a component that never stops can't keep the JVM from exiting.
+            Thread thread = new Thread( runnable, "Stopping Managed-" + count.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+         }
+      } );
+      boolean completed;
+      try {
+         for( Map.Entry<String, AtomicInteger> entry : dependents.entrySet() ) {
+            if( entry.getValue().get() == 0 ) {
+               submit( executor, stopping.get( entry.getKey() ), stopping, dependents, pending, done );
+            }
+         }
+         completed = done.await( budgetNanos, TimeUnit.NANOSECONDS );
+      }
+      finally {
+         executor.shutdown();
+      }
+      long millis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+      if( completed ) {
+         LOGGER.info( "Stopped " + stopping.size() + " managed component(s) in " + millis + "ms." );
+      }
+      else {
+         LOGGER.warn( "Gave up waiting for the managed components to stop after " + millis + "ms.  Still stopping, " +
+               "or waiting on those that are: " + pending.keySet() );
+      }
+   }
+
+   private void submit( final ExecutorService executor, final Component component, final Map<String, Component> stopping,
+         final Map<String, AtomicInteger> dependents, final Map<String, Boolean> pending, final CountDownLatch done ) {
+      try {
+         executor.execute( new Runnable() {
+            @Override
+            public void run() {
+               long start = System.nanoTime();
+               StopEvents.Span span = StopEvents.managedStop( component.name );
+               boolean failed = true;
+               try {
+                  component.managed.stop();
+                  failed = false;
+               }
+               catch( Exception e ) {
+                  LOGGER.warn( "Error occurred while stopping " + component.name + ".  Continuing the stop.", e );
+               }
+               finally {
+                  span.end( !failed );
+                  long elapsed = System.nanoTime() - start;
+                  stopNanos.put( component.name, elapsed );
+                  LOGGER.info( "Stopped " + component.name + " in " + TimeUnit.NANOSECONDS.toMillis( elapsed ) + "ms." );
+                  stopped( component, executor, stopping, dependents, pending, done );
+               }
+            }
+         } );
+      }
+      catch( RejectedExecutionException e ) {
+         // The coordinator gave up waiting, and the component is left running.
+      }
+   }
+
+   /**
+    * Count the component as stopped and stop the components it depends on that no longer have dependents.
+    */
+   private void stopped( Component component, ExecutorService executor, Map<String, Component> stopping,
+         Map<String, AtomicInteger> dependents, Map<String, Boolean> pending, CountDownLatch done ) {
+      try {
+         for( String dependency : component.dependsOn ) {
+            AtomicInteger remaining = dependents.get( dependency );
+            if( remaining != null && remaining.decrementAndGet() == 0 ) {
+               submit( executor, stopping.get( dependency ), stopping, dependents, pending, done );
+            }
+         }
+      }
+      finally {
+         pending.remove( component.name );
+         done.countDown();
+      }
+   }
+
+   private List<Component> startOrder() {
+      List<Component> order = new ArrayList<Component>();
+      Map<String, Boolean> visited = new LinkedHashMap<String, Boolean>();
+      for( Component component : components.values() ) {
+         visit( component, visited, order );
+      }
+      return order;
+   }
+
+   private void visit( Component component, Map<String, Boolean> visited, List<Component> order ) {
+      Boolean done = visited.get( component.name );
+      if( Boolean.TRUE.equals( done ) ) {
+         return;
+      }
+      if( Boolean.FALSE.equals( done ) ) {
+         throw new IllegalStateException( "The dependencies of '" + component.name + "' form a cycle." );
+      }
+      visited.put( component.name, Boolean.FALSE );
+      for( String dependency : component.dependsOn ) {
+         Component required = components.get( dependency );
+         if( required == null ) {
+            throw new IllegalStateException( "'" + component.name + "' depends on '" + dependency +
+                  "', which isn't registered." );
+         }
+         visit( required, visited, order );
+      }
+      visited.put( component.name, Boolean.TRUE );
+      order.add( component );
+   }
+
+   private static class Component {
+      private final String name;
+      private final Managed managed;
+      private final List<String> dependsOn;
+
+      private Component( String name, Managed managed, List<String> dependsOn ) {
+         this.name = name;
+         this.managed = managed;
+         this.dependsOn = dependsOn;
+      }
+   }
+}
@@ -0,0 +1,347 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write the state of the {@link Snapshottable} components to local files during the stop, and restore it when
+ * the next instance starts.<p/>
+ * Each snapshot is a file of its own, {@code <name>.snapshot} in the configured directory, laid out as
+ * <pre>
+ * magic(int) version(int) created-millis(long) payload(bytes) payload-length(long) crc32-of-payload(long)
+ * </pre>
+ * It is streamed to a temporary file, synced and renamed into place, so a stop that runs out of its budget
+ * leaves no snapshot rather than a partial one.  It is restored from a memory mapping of the file, and only if
+ * the checksum matches, the version is the component's and it is younger than the configured maximum age.  A
+ * snapshot is deleted once it has been read, whether or not it could be restored, so it is never used twice.<p/>
+ * {@link StopBundle} manages the store, restoring the snapshots in the background once the server starts.
+ */
+public class SnapshotStore implements Managed {
+   private static final Logger LOGGER = LoggerFactory.getLogger( SnapshotStore.class );
+   private static final int MAGIC = 0x44575353;
+   private static final int HEADER_SIZE = 16;
+   private static final int TRAILER_SIZE = 16;
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final Pattern NAME = Pattern.compile( "[A-Za-z0-9._-]+" );
+   private static final String SUFFIX = ".snapshot";
+
+   private final Map<String, Snapshottable> components = new LinkedHashMap<String, Snapshottable>();
+   private volatile File directory;
+   private volatile long maxAgeMillis = TimeUnit.HOURS.toMillis( 1 );
+
+   /**
+    * Register a component to snapshot.
+    * @param component to snapshot.
+    */
+   public synchronized void register( Snapshottable component ) {
+      String name = component.getSnapshotName();
+      if( name == null || !NAME.matcher( name ).matches() ) {
+         throw new IllegalArgumentException( "'" + name + "' isn't a valid snapshot name." );
+      }
+      if( components.containsKey( name ) ) {
+         throw new IllegalArgumentException( "A snapshot named '" + name + "' is already registered." );
+      }
+      components.put( name, component );
+   }
+
+   /**
+    * @param directory to keep the snapshots in, or null to neither write nor restore them.
+    */
+   public void setDirectory( File directory ) {
+      this.directory = directory;
+   }
+
+   /**
+    * @param maxAge of a snapshot that is still restored.
+    */
+   public void setMaxAge( Duration maxAge ) {
+      this.maxAgeMillis = maxAge.toMilliseconds();
+   }
+
+   /**
+    * @return true if there are components to snapshot and somewhere to keep the snapshots.
+    */
+   public boolean isEnabled() {
+      return directory != null && !getComponents().isEmpty();
+   }
+
+   /**
+    * Restore the snapshots in the background, so the server doesn't wait on them to start serving.
+    */
+   @Override
+   public void start() {
+      if( !isEnabled() ) {
+         return;
+      }
+      Thread restoring = new Thread( "Restoring Snapshots" ) {
+         @Override
+         public void run() {
+            for( Snapshottable component : getComponents() ) {
+               restore( component );
+            }
+         }
+      };
+      restoring.setDaemon( true );
+      restoring.start();
+   }
+
+   @Override
+   public void stop() {}
+
+   /**
+    * Restore a component from its snapshot, if it has one that is fit to be restored.
+    * @param component to restore.
+    * @return true if the component was restored.
+    */
+   public boolean restore( Snapshottable component ) {
+      File file = file( component );
+      if( file == null || !file.isFile() ) {
+         return false;
+      }
+      long start = System.nanoTime();
+      try {
+         RandomAccessFile in = new RandomAccessFile( file, "r" );
+         try {
+            ByteBuffer payload = map( component, in.getChannel() );
+            if( payload == null ) {
+               return false;
+            }
+            component.restoreSnapshot( new ByteBufferInputStream( payload ) );
+            LOGGER.info( "Restored '" + component.getSnapshotName() + "' from its snapshot of " + payload.limit() +
+                  " bytes in " + TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) + "ms" );
+            return true;
+         }
+         finally {
+            in.close();
+         }
+      }
+      catch( Exception e ) {
+         LOGGER.warn( "Error occurred while restoring '" + component.getSnapshotName() + "' from its snapshot.", e );
+         return false;
+      }
+      finally {
+         if( !file.delete() ) {
+            LOGGER.warn( "Could not delete the snapshot " + file + "." );
+         }
+      }
+   }
+
+   /**
+    * Write the snapshot of each component in turn, giving up on those that would finish after the deadline.
+    * The stop sequence does this in the {@link StopPhase#SNAPSHOT} phase.
+    * @param deadline in {@link System#nanoTime()} terms.
+    * @return the number of snapshots written.
+    */
+   public int write( long deadline ) {
+      File dir = directory;
+      if( dir == null || ( !dir.isDirectory() && !dir.mkdirs() ) ) {
+         LOGGER.warn( "Can't write snapshots to " + dir + "." );
+         return 0;
+      }
+      int written = 0;
+      for( Snapshottable component : getComponents() ) {
+         if( System.nanoTime() >= deadline ) {
+            break;
+         }
+         written += write( component, deadline ) ? 1 : 0;
+      }
+      return written;
+   }
+
+   /**
+    * @return the number of components registered.
+    */
+   int size() {
+      return getComponents().size();
+   }
+
+   private boolean write( Snapshottable component, long deadline ) {
+      File file = file( component );
+      File temp = new File( file.getPath() + ".tmp" );
+      long start = System.nanoTime();
+      try {
+         FileOutputStream fileOut = new FileOutputStream( temp );
+         try {
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fileOut, BUFFER_SIZE ) );
+            out.writeInt( MAGIC );
+            out.writeInt( component.getSnapshotVersion() );
+            out.writeLong( System.currentTimeMillis() );
+            PayloadOutputStream payload = new PayloadOutputStream( out );
+            component.writeSnapshot( payload );
+            out.writeLong( payload.length );
+            out.writeLong( payload.crc.getValue() );
+            out.flush();
+            fileOut.getFD().sync();
+         }
+         finally {
+            fileOut.close();
+         }
+         if( System.nanoTime() >= deadline ) {
+            LOGGER.info( "Discarding the snapshot of '" + component.getSnapshotName() + "', as it ran out of time." );
+            delete( temp );
+            return false;
+         }
+         if( !temp.renameTo( file ) && !( file.delete() && temp.renameTo( file ) ) ) {
+            throw new IOException( "Could not rename " + temp + " to " + file );
+         }
+         LOGGER.info( "Wrote the snapshot of '" + component.getSnapshotName() + "' in " +
+               TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) + "ms" );
+         return true;
+      }
+      catch( Exception e ) {
+         LOGGER.warn( "Error occurred while writing the snapshot of '" + component.getSnapshotName() + "'.", e );
+         delete( temp );
+         return false;
+      }
+   }
+
+   /**
+    * @return the payload of the snapshot, or null if it isn't fit to be restored.
+    */
+   private ByteBuffer map( Snapshottable component, FileChannel channel ) throws IOException {
+      long size = channel.size();
+      if( size < HEADER_SIZE + TRAILER_SIZE || size > Integer.MAX_VALUE ) {
+         return discard( component, "it is " + size + " bytes" );
+      }
+      ByteBuffer snapshot = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+      if( snapshot.getInt( 0 ) != MAGIC ) {
+         return discard( component, "it isn't a snapshot" );
+      }
+      int version = snapshot.getInt( 4 );
+      if( version != component.getSnapshotVersion() ) {
+         return discard( component, "it is version " + version + " rather than " + component.getSnapshotVersion() );
+      }
+      long age = System.currentTimeMillis() - snapshot.getLong( 8 );
+      if( age > maxAgeMillis ) {
+         return discard( component, "it is " + age + "ms old" );
+      }
+      long length = snapshot.getLong( ( int )size - TRAILER_SIZE );
+      long checksum = snapshot.getLong( ( int )size - 8 );
+      if( length != size - HEADER_SIZE - TRAILER_SIZE ) {
+         return discard( component, "it is incomplete" );
+      }
+
+      snapshot.position( HEADER_SIZE );
+      snapshot.limit( HEADER_SIZE + ( int )length );
+      ByteBuffer payload = snapshot.slice();
+      if( crc( payload.duplicate() ) != checksum ) {
+         return discard( component, "its checksum doesn't match" );
+      }
+      return payload;
+   }
+
+   private ByteBuffer discard( Snapshottable component, String reason ) {
+      LOGGER.info( "Discarding the snapshot of '" + component.getSnapshotName() + "', as " + reason + "." );
+      return null;
+   }
+
+   private static long crc( ByteBuffer buffer ) {
+      CRC32 crc = new CRC32();
+      byte[] chunk = new byte[Math.min( BUFFER_SIZE, buffer.remaining() )];
+      while( buffer.hasRemaining() ) {
+         int length = Math.min( chunk.length, buffer.remaining() );
+         buffer.get( chunk, 0, length );
+         crc.update( chunk, 0, length );
+      }
+      return crc.getValue();
+   }
+
+   private File file( Snapshottable component ) {
+      File dir = directory;
+      return dir == null ? null : new File( dir, component.getSnapshotName() + SUFFIX );
+   }
+
+   private void delete( File file ) {
+      if( file.exists() && !file.delete() ) {
+         LOGGER.warn( "Could not delete " + file + "." );
+      }
+   }
+
+   private synchronized List<Snapshottable> getComponents() {
+      return new ArrayList<Snapshottable>( components.values() );
+   }
+
+   /**
+    * Count and checksum the payload on its way out, and keep the component from closing the file.
+    */
+   private static class PayloadOutputStream extends FilterOutputStream {
+      private final CRC32 crc = new CRC32();
+      private long length;
+
+      PayloadOutputStream( OutputStream out ) {
+         super( out );
+      }
+
+      @Override
+      public void write( int b ) throws IOException {
+         out.write( b );
+         crc.update( b );
+         length++;
+      }
+
+      @Override
+      public void write( byte[] b, int off, int len ) throws IOException {
+         out.write( b, off, len );
+         crc.update( b, off, len );
+         length += len;
+      }
+
+      @Override
+      public void close() throws IOException {
+         flush();
+      }
+   }
+
+   private static class ByteBufferInputStream extends InputStream {
+      private final ByteBuffer buffer;
+
+      ByteBufferInputStream( ByteBuffer buffer ) {
+         this.buffer = buffer;
+      }
+
+      @Override
+      public int read() {
+         return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read( byte[] b, int off, int len ) {
+         if( len == 0 ) {
+            return 0;
+         }
+         if( !buffer.hasRemaining() ) {
+            return -1;
+         }
+         int count = Math.min( len, buffer.remaining() );
+         buffer.get( b, off, count );
+         return count;
+      }
+
+      @Override
+      public int available() {
+         return buffer.remaining();
+      }
+   }
+}
@@ -0,0 +1,40 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A component, such as a large in-memory cache, whose state is worth carrying over to the next instance of the
+ * application rather than rebuilding.  Register it with the {@link StopBundle#getSnapshotStore()}.<p/>
+ * The {@link SnapshotStore} asks for a snapshot in the {@link StopPhase#SNAPSHOT} phase of the stop, and hands
+ * a snapshot that is intact, current and of the same version back when the next instance starts.
+ */
+public interface Snapshottable {
+   /**
+    * @return the name of the snapshot, unique within the store, made of letters, digits, '.', '_' and '-'.
+    */
+   String getSnapshotName();
+
+   /**
+    * @return the version of the format {@link #writeSnapshot(OutputStream)} writes.  A snapshot of any other
+    *         version is discarded rather than restored.
+    */
+   int getSnapshotVersion();
+
+   /**
+    * Write the state of the component.  The requests have drained by now, but the managed components are still
+    * running.
+    * @param out to write to, buffered.  Don't close it.
+    * @throws IOException if the state couldn't be written.  The snapshot is then discarded.
+    */
+   void writeSnapshot( OutputStream out ) throws IOException;
+
+   /**
+    * Restore the state of the component.  This runs in the background once the server has started, so the
+    * component may be in use at the same time.
+    * @param in to read the state from, as written by {@link #writeSnapshot(OutputStream)}.
+    * @throws IOException if the state couldn't be read.
+    */
+   void restoreSnapshot( InputStream in ) throws IOException;
+}
@@ -0,0 +1,17 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.util.List;
+
+/**
+ * Take the tasks still queued on an executor of the {@link ExecutorDrainer} when the
+ * {@link StopPhase#DRAIN_EXECUTORS} phase runs out of budget, so that they can be run again later rather than
+ * being lost.  See {@link FileSpillHandler} for one that appends them to a local file.
+ */
+public interface SpillHandler {
+   /**
+    * @param executor the name the executor was registered under.
+    * @param tasks that never started, in the order they were queued.
+    * @throws Exception if the tasks couldn't be spilled, in which case they are lost.
+    */
+   void spill( String executor, List<Runnable> tasks ) throws Exception;
+}
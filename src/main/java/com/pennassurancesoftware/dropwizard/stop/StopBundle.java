@@ -2,10 +2,27 @@ package com.pennassurancesoftware.dropwizard.stop;
 
 import io.dropwizard.Configuration;
 import io.dropwizard.ConfiguredBundle;
+import io.dropwizard.metrics.ReporterFactory;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
 import io.dropwizard.util.Generics;
 
+import java.io.File;
+import java.io.Flushable;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterRegistration;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+
 /**
  * Optional functionality to coordinate a graceful stop of the service.<p/>
  * To add this functionality, you should add this bundle during the Service initialization.
@@ -31,6 +48,16 @@ import io.dropwizard.util.Generics;
  *
  */
 public abstract class StopBundle<T extends Configuration> implements ConfiguredBundle<T>, ConfigurationStrategy<T> {
+   private final List<Flushable> flushables = new CopyOnWriteArrayList<Flushable>();
+   private final List<Drainable> drainables = new CopyOnWriteArrayList<Drainable>();
+   private final List<ScheduledReporter> reporters = new CopyOnWriteArrayList<ScheduledReporter>();
+   private final ShutdownCoordinator shutdownCoordinator = new ShutdownCoordinator();
+   private final ExitCoordinator exitCoordinator = new ExitCoordinator();
+   private final SnapshotStore snapshotStore = new SnapshotStore();
+   private final ExecutorDrainer executorDrainer = new ExecutorDrainer();
+   private final WarmUpCoordinator warmUp = new WarmUpCoordinator();
+   private Executor monitorExecutor;
+
    @Override
    public final void initialize( Bootstrap<?> bootstrap ) {
       final Class<T> klass = Generics.getTypeParameter( getClass(), Configuration.class );
@@ -40,6 +67,145 @@ public abstract class StopBundle<T extends Configuration> implements ConfiguredB
    @Override
    public void run( T configuration, Environment environment ) throws Exception {
       final StopConfiguration stopConfig = getStopConfiguration( configuration );
-      environment.lifecycle().addServerLifecycleListener( new StopMonitor( stopConfig ) );
+      final InFlightTracker inFlight = new InFlightTracker();
+      final StopMonitor monitor = new StopMonitor( stopConfig, inFlight );
+      monitor.setApplicationName( environment.getName() );
+      if( stopConfig.isShedLoad() ) {
+         // Ahead of the in-flight filter, so requests turned away aren't counted.
+         final Meter shed = environment.metrics().meter( MetricRegistry.name( StopMonitor.class, "shed" ) );
+         addFilter( environment, "stop-load-shedding",
+               new LoadSheddingFilter( monitor.getStopState(), stopConfig.getRetryAfter(), shed ) );
+      }
+      addFilter( environment, "stop-in-flight", new InFlightFilter( inFlight, monitor.getStopState() ) );
+      shutdownCoordinator.setThreads( stopConfig.getShutdownThreads() );
+      Duration managedBudget = stopConfig.getPhases().getBudget( StopPhase.STOP_MANAGED );
+      managedBudget = managedBudget != null ? managedBudget : stopConfig.getWait();
+      if( managedBudget.getQuantity() > 0 ) {
+         shutdownCoordinator.setBudget( managedBudget );
+      }
+      environment.lifecycle().manage( shutdownCoordinator );
+      if( stopConfig.getSnapshotDirectory() != null ) {
+         snapshotStore.setDirectory( new File( stopConfig.getSnapshotDirectory() ) );
+      }
+      snapshotStore.setMaxAge( stopConfig.getSnapshotMaxAge() );
+      environment.lifecycle().manage( snapshotStore );
+      monitor.setFlushables( flushables );
+      // Dropwizard's own reporters aren't within reach, so build the same ones again to report the stop.
+      for( ReporterFactory factory : configuration.getMetricsFactory().getReporters() ) {
+         addReporter( factory.build( environment.metrics() ) );
+      }
+      monitor.setReporters( reporters );
+      monitor.setDrainables( drainables );
+      monitor.setSnapshotStore( snapshotStore );
+      if( stopConfig.getSpillFile() != null ) {
+         executorDrainer.setSpillHandler( new FileSpillHandler( new File( stopConfig.getSpillFile() ) ) );
+      }
+      monitor.setExecutorDrainer( executorDrainer );
+      monitor.setWarmUp( warmUp );
+      monitor.setExitCoordinator( exitCoordinator );
+      if( monitorExecutor != null ) {
+         monitor.setExecutor( monitorExecutor );
+      }
+      monitor.setMetricRegistry( environment.metrics() );
+      environment.healthChecks().register( "stop", new StopHealthCheck( monitor.getStopState() ) );
+      environment.lifecycle().addServerLifecycleListener( monitor );
+
+      warmUp.setIterations( stopConfig.getWarmUpIterations() );
+      warmUp.setBudget( stopConfig.getWarmUpBudget() );
+      warmUp.setMetricRegistry( environment.metrics() );
+      environment.healthChecks().register( "warm-up", new WarmUpHealthCheck( warmUp ) );
+      environment.lifecycle().addServerLifecycleListener( warmUp );
+   }
+
+   /**
+    * The coordinator that stops the components registered with it in parallel, in the order of their
+    * dependencies, during the {@link StopPhase#STOP_MANAGED} phase.
+    * @return {@link ShutdownCoordinator}
+    */
+   public ShutdownCoordinator getShutdownCoordinator() {
+      return shutdownCoordinator;
+   }
+
+   /**
+    * The coordinator that runs the exit tasks registered with it, alongside the JVM shutdown hooks, in the
+    * {@link StopPhase#EXIT} phase.
+    * @return {@link ExitCoordinator}
+    */
+   public ExitCoordinator getExitCoordinator() {
+      return exitCoordinator;
+   }
+
+   /**
+    * The store the components whose state should survive a restart, such as large caches, register with.  Their
+    * snapshots are written in the {@link StopPhase#SNAPSHOT} phase and restored in the background when the next
+    * instance starts, provided {@link StopConfiguration#getSnapshotDirectory()} is set.
+    * @return {@link SnapshotStore}
+    */
+   public SnapshotStore getSnapshotStore() {
+      return snapshotStore;
+   }
+
+   /**
+    * The drainer the executors of the application, such as those built with
+    * {@code environment.lifecycle().executorService(...)}, register with, so that the tasks queued on them are run
+    * in the {@link StopPhase#DRAIN_EXECUTORS} phase of the stop, and those that don't get to run are spilled
+    * rather than dropped.  Give it a {@link SpillHandler} of your own, or configure
+    * {@link StopConfiguration#getSpillFile()}.
+    * @return {@link ExecutorDrainer}
+    */
+   public ExecutorDrainer getExecutorDrainer() {
+      return executorDrainer;
+   }
+
+   /**
+    * The coordinator the workloads that warm the application up after a restart register with.  Until they
+    * have run the 'ready' command and the 'warm-up' health check report the node as not ready.
+    * @return {@link WarmUpCoordinator}
+    */
+   public WarmUpCoordinator getWarmUpCoordinator() {
+      return warmUp;
+   }
+
+   /**
+    * Serve the stop port on the given executor, such as a pool shared with the rest of the application, rather
+    * than the one {@link StopConfiguration#getMonitorExecutor()} names.
+    * @param monitorExecutor to run the {@link StopMonitor} on.
+    */
+   public void setMonitorExecutor( Executor monitorExecutor ) {
+      this.monitorExecutor = monitorExecutor;
+   }
+
+   /**
+    * Close the given long-lived sessions, such as WebSockets, in the {@link StopPhase#DRAIN} phase of the stop.
+    * @param drainable to drain.
+    */
+   public void addDrainable( Drainable drainable ) {
+      drainables.add( drainable );
+   }
+
+   /**
+    * Have the given metrics reporter report once more in the {@link StopPhase#STOP_MANAGED} phase of the stop,
+    * before the managed components are stopped, so that the stop and drain metrics get reported.  The reporters
+    * of the metrics configuration are added already.
+    * @param reporter to report from.
+    */
+   public void addReporter( ScheduledReporter reporter ) {
+      reporters.add( reporter );
+   }
+
+   /**
+    * Flush the given output in the {@link StopPhase#FLUSH} phase of the stop, just before the exit.
+    * Buffered log appenders are good candidates.
+    * @param flushable to flush.
+    */
+   public void addFlushable( Flushable flushable ) {
+      flushables.add( flushable );
+   }
+
+   private static void addFilter( Environment environment, String name, Filter filter ) {
+      FilterRegistration.Dynamic registration = environment.servlets().addFilter( name, filter );
+      // Otherwise Jetty turns async support off for every request passing through the filter.
+      registration.setAsyncSupported( true );
+      registration.addMappingForUrlPatterns( EnumSet.of( DispatcherType.REQUEST ), true, "/*" );
    }
 }
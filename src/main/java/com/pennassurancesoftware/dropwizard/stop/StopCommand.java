@@ -5,6 +5,7 @@ import io.dropwizard.cli.ConfiguredCommand;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.util.Duration;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
@@ -14,8 +15,22 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.Argument;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.ArgumentType;
 import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +40,16 @@ import org.slf4j.LoggerFactory;
  * This command will allow a fairly graceful shutdown of the service without using SIGINT.
  * Users would not use this class directly, but instead add {@link StopBundle} during the
  * service initialization.  See {@link StopBundle} for an example of how to set this up.
+ * With '--ports' it stops several servers on the host, all at once or in rolling waves, and reports how each went.
+ * Before each rolling wave after the first it waits for the servers already stopped to be replaced, that is for
+ * enough of them to answer 'READY' to the 'ready' command, so that the wave can't leave too few serving.
+ * With '--watch' it logs the progress of each stop as the {@link StopMonitor} reports it, so that when the wait runs
+ * out it is clear how far the server got.
+ * With a {@link StopConfiguration#getSocketPath() socket path} configured it connects over that Unix domain socket
+ * rather than the port, to the instance given by '--pid' if the path is per instance.
+ * With a {@link StopConfiguration#getRegistryFile() registry file} configured it looks the instances up in the
+ * {@link InstanceRegistry}: the one given by '--pid', or those of the application given by '--name', which is this
+ * application's if the port is 0.  It won't send the key to an instance whose key fingerprint is another.
  */
 public class StopCommand<T extends Configuration> extends ConfiguredCommand<T> {
    private static final Logger LOGGER = LoggerFactory.getLogger( StopCommand.class );
@@ -32,6 +57,13 @@ public class StopCommand<T extends Configuration> extends ConfiguredCommand<T> {
    private static final int ERR_TIMEDOUT_WAITING = 2;
    private static final int ERR_NOT_STOPPED = 3;
    private static final int ERR_UNKNOWN = 4;
+   /** Some of the servers stopped and some didn't, or they failed in different ways. */
+   private static final int ERR_PARTIAL = 5;
+   private static final int DEFAULT_PARALLELISM = 4;
+   private static final long EXIT_BUDGET_NANOS = TimeUnit.SECONDS.toNanos( 5 );
+   private static final Duration DEFAULT_REPLACE_TIMEOUT = Duration.minutes( 1 );
+   private static final long REPLACE_POLL_MS = 500;
+   private static final int READY_TIMEOUT_MS = 1000;
    private final ConfigurationStrategy<T> strategy;
    private final Class<T> configurationClass;
 
@@ -50,53 +82,363 @@ public class StopCommand<T extends Configuration> extends ConfiguredCommand<T> {
       return this.configurationClass;
    }
 
+   @Override
+   public void configure( Subparser subparser ) {
+      super.configure( subparser );
+      subparser.addArgument( "--drain" )
+            .action( Arguments.storeTrue() )
+            .help( "Take the server out of rotation and wait for the deregistration delay before stopping it." );
+      subparser.addArgument( "--watch" )
+            .action( Arguments.storeTrue() )
+            .help( "Log the progress of the stop as it goes: the phase, the requests in flight and the time left." );
+      subparser.addArgument( "--pid" )
+            .type( Integer.class )
+            .help( "Stop the instance with this process id, as registered in the registryFile or when the " +
+                  "configured socketPath has '{pid}' in it." );
+      subparser.addArgument( "--name" )
+            .help( "Stop the instances of the application with this name registered in the registryFile." );
+      subparser.addArgument( "--ports" )
+            .type( Integer.class )
+            .nargs( "+" )
+            .help( "Stop the servers whose stop monitors are on these local ports, rather than the configured one." );
+      subparser.addArgument( "--parallelism" )
+            .type( Integer.class )
+            .setDefault( DEFAULT_PARALLELISM )
+            .help( "The most servers to stop at once." );
+      subparser.addArgument( "--min-serving" )
+            .type( Double.class )
+            .help( "Stop the servers in rolling waves, keeping at least this fraction (0 to 1) of them serving.  " +
+                  "Before each wave after the first, wait for the servers stopped to be replaced until enough " +
+                  "answer 'ready' for the wave to stop.  A wave that fails to stop, or whose servers aren't " +
+                  "replaced within the --replace-timeout, halts the roll." );
+      subparser.addArgument( "--replace-timeout" )
+            .type( new DurationType() )
+            .setDefault( DEFAULT_REPLACE_TIMEOUT )
+            .help( "The most to wait, before each rolling wave after the first, for enough servers to be serving " +
+                  "again, such as '30 seconds'." );
+   }
+
    @Override
    protected void run( Bootstrap<T> bootstrap, Namespace namespace, T configuration ) throws Exception {
       final StopConfiguration stopConfig = strategy.getStopConfiguration( configuration );
-      stop( stopConfig.getPort(), stopConfig.getKey(), stopConfig.getWait() );
+      String command = "stop";
+      Duration timeout = stopConfig.getWait();
+      if( namespace != null && Boolean.TRUE.equals( namespace.getBoolean( "drain" ) ) ) {
+         Duration wait = stopConfig.getWait();
+         command = "drain";
+         timeout = wait.getQuantity() > 0
+               ? Duration.milliseconds( wait.toMilliseconds() + stopConfig.getDeregistrationDelay().toMilliseconds() )
+               : wait;
+      }
+
+      boolean watch = namespace != null && Boolean.TRUE.equals( namespace.getBoolean( "watch" ) );
+      List<Integer> ports = namespace != null ? namespace.<Integer> getList( "ports" ) : null;
+      Integer pid = namespace != null ? namespace.getInt( "pid" ) : null;
+      String name = namespace != null ? namespace.getString( "name" ) : null;
+      Integer parallelism = namespace != null ? namespace.getInt( "parallelism" ) : null;
+      Double minServing = namespace != null ? namespace.getDouble( "min_serving" ) : null;
+      Duration replaceTimeout = namespace != null ? namespace.<Duration> get( "replace_timeout" ) : null;
+      Rolling rolling = minServing != null
+            ? new Rolling( minServing, replaceTimeout != null ? replaceTimeout : DEFAULT_REPLACE_TIMEOUT )
+            : null;
+      parallelism = parallelism != null ? parallelism : DEFAULT_PARALLELISM;
+      int exitCode;
+      if( ports != null && !ports.isEmpty() ) {
+         List<InstanceRegistry.Instance> instances = new ArrayList<InstanceRegistry.Instance>();
+         for( Integer port : ports ) {
+            instances.add( InstanceRegistry.Instance.atPort( port ) );
+         }
+         exitCode = stopAll( instances, stopConfig.getKey(), command, watch, timeout, parallelism, rolling );
+      }
+      else if( stopConfig.getRegistryFile() != null && ( pid != null || name != null || stopConfig.getPort() == 0 ) ) {
+         final InstanceRegistry registry = new InstanceRegistry( new File( stopConfig.getRegistryFile() ) );
+         List<InstanceRegistry.Instance> instances = new ArrayList<InstanceRegistry.Instance>();
+         if( pid != null ) {
+            InstanceRegistry.Instance instance = registry.find( pid );
+            if( instance != null ) {
+               instances.add( instance );
+            }
+         }
+         else {
+            name = name != null ? name : bootstrap.getApplication().getName();
+            instances.addAll( registry.find( name ) );
+            if( rolling != null ) {
+               // The servers replacing those stopped register under the same name.
+               final String application = name;
+               rolling.lookup = new Callable<List<InstanceRegistry.Instance>>() {
+                  @Override
+                  public List<InstanceRegistry.Instance> call() throws IOException {
+                     return registry.find( application );
+                  }
+               };
+            }
+         }
+         if( instances.isEmpty() ) {
+            error( "No instance " + ( pid != null ? "with pid=" + pid : "of " + name ) + " is registered in " +
+                  registry.getFile() + ".  Are you sure the server is running?", null );
+            exitCode = ERR_NOT_STOPPED;
+         }
+         else {
+            exitCode = stopAll( instances, stopConfig.getKey(), command, watch, timeout, parallelism, rolling );
+         }
+      }
+      else if( stopConfig.getSocketPath() != null ) {
+         if( stopConfig.getSocketPath().contains( UnixDomainSocket.PID ) && pid == null ) {
+            error( "The socketPath " + stopConfig.getSocketPath() + " is per instance.  Give the --pid to stop.", null );
+            exitCode = ERR_LOCALHOST;
+         }
+         else {
+            File socket = UnixDomainSocket.resolve( stopConfig.getSocketPath(), String.valueOf( pid ) );
+            exitCode = stop( InstanceRegistry.Instance.atSocket( socket ), stopConfig.getKey(), command, watch,
+                  timeout ).getExitCode();
+         }
+      }
+      else {
+         exitCode = stop( InstanceRegistry.Instance.atPort( stopConfig.getPort() ), stopConfig.getKey(), command,
+               watch, timeout ).getExitCode();
+      }
+      if( exitCode != 0 ) {
+         exitNow( exitCode );
+      }
    }
 
    /**
-    * Create a socket to connect to the running server and issue the 'stop' command.
+    * Stop each of the servers, reporting how each went.
     *
-    * @param port that the {@link StopMonitor} is on.
-    * @param key that the {@link StopMonitor} will expect before performing the stop command.
-    * @param timeout in seconds for how long to wait for a response from the {@link StopMonitor} before exiting.
-    *                if <= zero no waiting will occur.
+    * @param instances of the {@link StopMonitor}s.
+    * @param key that the {@link StopMonitor}s will expect before performing the stop command.
+    * @param command to issue, 'stop' or 'drain'.
+    * @param watch true to log the progress of each stop.
+    * @param timeout for how long to wait for a response from each {@link StopMonitor}.
+    * @param parallelism the most servers to stop at once.
+    * @param rolling how to stop the servers in rolling waves, or null to stop them all at once.
+    * @return 0 if every server stopped, the error code they all failed with, or {@link #ERR_PARTIAL}.
     */
-   private void stop( int port, String key, Duration timeout ) {
-      stop( getSocket( port ), key, timeout );
+   private int stopAll( List<InstanceRegistry.Instance> instances, final String key, final String command,
+         final boolean watch, final Duration timeout, int parallelism, Rolling rolling ) throws InterruptedException {
+      int waveSize = instances.size();
+      int minServing = 0;
+      if( rolling != null ) {
+         minServing = ( int )Math.ceil( instances.size() * rolling.minServing );
+         waveSize = Math.max( 1, instances.size() - minServing );
+      }
+      long start = System.nanoTime();
+      List<StopResult> results = new ArrayList<StopResult>();
+      ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( parallelism, waveSize ) ) );
+      try {
+         boolean halted = false;
+         for( int from = 0; from < instances.size(); from += waveSize ) {
+            List<InstanceRegistry.Instance> wave = instances.subList( from, Math.min( from + waveSize, instances.size() ) );
+            if( !halted && rolling != null && from > 0 ) {
+               halted = !awaitServing( instances, rolling, key, minServing + wave.size() );
+            }
+            if( halted ) {
+               for( InstanceRegistry.Instance instance : wave ) {
+                  results.add( StopResult.skipped( instance.toString(), ERR_NOT_STOPPED ) );
+               }
+               continue;
+            }
+            List<Future<StopResult>> futures = new ArrayList<Future<StopResult>>();
+            for( final InstanceRegistry.Instance instance : wave ) {
+               futures.add( executor.submit( new Callable<StopResult>() {
+                  @Override
+                  public StopResult call() {
+                     return stop( instance, key, command, watch, timeout );
+                  }
+               } ) );
+            }
+            for( int i = 0; i < futures.size(); i++ ) {
+               StopResult result = getResult( wave.get( i ), futures.get( i ) );
+               results.add( result );
+               halted |= rolling != null && !result.isStopped();
+            }
+            if( halted && from + waveSize < instances.size() ) {
+               LOGGER.error( "Halting the rolling stop, as a server in the last wave didn't stop." );
+            }
+         }
+      }
+      finally {
+         executor.shutdownNow();
+      }
+
+      int stopped = 0;
+      for( StopResult result : results ) {
+         LOGGER.info( result.toString() );
+         stopped += result.isStopped() ? 1 : 0;
+      }
+      LOGGER.info( "Stopped " + stopped + " of " + results.size() + " servers in " +
+            TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) + "ms" );
+      return exitCode( results );
+   }
+
+   /**
+    * Wait for enough servers to be serving for the next wave to stop, counting those that answer 'READY'.
+    * @param instances being stopped, whose replacements come back on the same ports unless the roll looks them up.
+    * @param rolling the roll.
+    * @param key that the {@link StopMonitor}s expect.
+    * @param needed the servers that have to be serving.
+    * @return true if enough were serving before the timeout of the roll.
+    */
+   private boolean awaitServing( List<InstanceRegistry.Instance> instances, Rolling rolling, String key, int needed )
+         throws InterruptedException {
+      long deadline = System.nanoTime() + rolling.timeout.toNanoseconds();
+      while( true ) {
+         int serving = 0;
+         try {
+            for( InstanceRegistry.Instance instance : rolling.lookup != null ? rolling.lookup.call() : instances ) {
+               serving += isReady( instance, key ) ? 1 : 0;
+            }
+         }
+         catch( Exception e ) {
+            LOGGER.warn( "Unable to look up the servers to count those serving.", e );
+         }
+         if( serving >= needed ) {
+            LOGGER.info( serving + " servers are serving.  Stopping the next wave." );
+            return true;
+         }
+         long remaining = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+         if( remaining <= 0 ) {
+            LOGGER.error( "Halting the rolling stop, as only " + serving + " of the " + needed + " servers needed " +
+                  "were serving again after " + rolling.timeout + "." );
+            return false;
+         }
+         TimeUnit.MILLISECONDS.sleep( Math.min( REPLACE_POLL_MS, remaining ) );
+      }
    }
 
+   /**
+    * Ask the server if it is ready for traffic.
+    *
+    * @param instance of the {@link StopMonitor}.
+    * @param key that the {@link StopMonitor} expects.
+    * @return true if it answered 'READY'.
+    */
    // Make a seam so that this class can be tested, mostly.
-   protected Socket getSocket( int port ) {
-      Socket s = null;
+   protected boolean isReady( InstanceRegistry.Instance instance, String key ) {
+      if( instance.getFingerprint() != 0 && instance.getFingerprint() != InstanceRegistry.fingerprint( key ) ) {
+         return false;
+      }
       try {
-         s = new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+         Socket s = instance.getSocket() != null ? getSocket( new File( instance.getSocket() ) ) : getSocket( instance.getPort() );
+         try {
+            s.setSoTimeout( READY_TIMEOUT_MS );
+            OutputStream out = s.getOutputStream();
+            out.write( ( key + "\r\nready\r\n" ).getBytes( Charset.forName( "UTF-8" ) ) );
+            out.flush();
+            String reply = new LineNumberReader( new InputStreamReader( s.getInputStream(), Charset.forName( "UTF-8" ) ) )
+                  .readLine();
+            return "READY".equals( reply );
+         }
+         finally {
+            s.close();
+         }
+      }
+      catch( IOException e ) {
+         return false;
+      }
+   }
+
+   private StopResult getResult( InstanceRegistry.Instance instance, Future<StopResult> future )
+         throws InterruptedException {
+      try {
+         return future.get();
+      }
+      catch( ExecutionException e ) {
+         LOGGER.error( "Unknown issue trying to issue stop command to " + instance, e.getCause() );
+         return new StopResult( instance.toString(), ERR_UNKNOWN, 0, null );
+      }
+   }
+
+   private int exitCode( List<StopResult> results ) {
+      int exitCode = results.get( 0 ).getExitCode();
+      for( StopResult result : results ) {
+         if( result.getExitCode() != exitCode ) {
+            return ERR_PARTIAL;
+         }
+      }
+      return exitCode;
+   }
+
+   /**
+    * Connect to the running server, on its local port or Unix domain socket, and issue the 'stop' command.
+    *
+    * @param instance of the {@link StopMonitor}.
+    * @param key that the {@link StopMonitor} will expect before performing the stop command.
+    * @param command to issue, 'stop' or 'drain'.
+    * @param watch true to log the progress of the stop as it is reported.
+    * @param timeout in seconds for how long to wait for a response from the {@link StopMonitor} before exiting.
+    *                if <= zero no waiting will occur.
+    * @return how the stop went.
+    */
+   private StopResult stop( InstanceRegistry.Instance instance, String key, String command, boolean watch,
+         Duration timeout ) {
+      long start = System.nanoTime();
+      String target = instance.toString();
+      if( instance.getFingerprint() != 0 && instance.getFingerprint() != InstanceRegistry.fingerprint( key ) ) {
+         error( "The instance on " + target + " has another key.  Not sending it this one.  Check the " +
+               "configuration used to stop it is the one it was started with.", null );
+         return new StopResult( target, ERR_NOT_STOPPED, System.nanoTime() - start, null );
+      }
+      Socket s;
+      try {
+         s = instance.getSocket() != null ? getSocket( new File( instance.getSocket() ) ) : getSocket( instance.getPort() );
       }
       catch( IOException e ) {
-         exitWithError( "Error trying to open a socket on local host port=" + port, e, ERR_LOCALHOST );
+         error( "Error trying to connect to the stop monitor on local host " + target, e );
+         return new StopResult( target, ERR_LOCALHOST, System.nanoTime() - start, null );
       }
-      return s;
+      return stop( target, s, key, command, watch, timeout, start );
+   }
+
+   // Make a seam so that this class can be tested, mostly.
+   protected Socket getSocket( int port ) throws IOException {
+      return new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+   }
+
+   // Make a seam so that this class can be tested, mostly.
+   protected Socket getSocket( File socket ) throws IOException {
+      return UnixDomainSocket.connect( socket );
    }
 
-   private void stop( Socket s, String key, Duration timeout ) {
+   private StopResult stop( String target, Socket s, String key, String command, boolean watch, Duration timeout,
+         long start ) {
+      String response = null;
+      String progress = null;
+      int exitCode = 0;
       try {
          long quantity = timeout.getQuantity();
          if( quantity > 0 ) {
             s.setSoTimeout( ( int )timeout.toMilliseconds() );
          }
+         else {
+            // Nobody would read the progress.
+            watch = false;
+         }
          try {
             OutputStream out = s.getOutputStream();
-            out.write( ( key + "\r\nstop\r\n" ).getBytes( Charset.forName( "UTF-8" ) ) );
+            out.write( ( key + "\r\n" + ( watch ? "watch\r\n" : "" ) + command + "\r\n" )
+                  .getBytes( Charset.forName( "UTF-8" ) ) );
             out.flush();
 
             if( quantity > 0 ) {
-               LOGGER.info( "Waiting " + ( quantity > 0 ? ( "up to " + timeout ) : "" ) + " for server to stop" );
+               LOGGER.info( "Waiting " + ( quantity > 0 ? ( "up to " + timeout ) : "" ) + " for server on " +
+                     target + " to stop" );
                LineNumberReader lin = new LineNumberReader( new InputStreamReader( s.getInputStream(), Charset.forName( "UTF-8" ) ) );
-               String response = lin.readLine();
-               if( "Stopped".equals( response ) ) {
-                  LOGGER.info( "Stopped" );
+               response = lin.readLine();
+               long deadline = start + timeout.toNanoseconds();
+               while( watch && response != null && response.startsWith( "Progress" ) ) {
+                  progress = response;
+                  LOGGER.info( target + " " + progress );
+                  // The frames mustn't stretch the wait, so each read only gets what is left of it.
+                  long remaining = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+                  if( remaining <= 0 ) {
+                     throw new SocketTimeoutException( "Out of time waiting for the stop." );
+                  }
+                  s.setSoTimeout( ( int )remaining );
+                  response = lin.readLine();
+               }
+               if( response != null && response.startsWith( "Stopped" ) ) {
+                  LOGGER.info( response );
                }
             }
          }
@@ -105,25 +447,61 @@ public class StopCommand<T extends Configuration> extends ConfiguredCommand<T> {
          }
       }
       catch( SocketTimeoutException e ) {
-         exitWithError( "Timed out waiting for stop confirmation.", null, ERR_TIMEDOUT_WAITING );
+         error( "Timed out waiting for stop confirmation from " + target + "." +
+               ( progress != null ? "  Last reported " + progress : "" ), null );
+         exitCode = ERR_TIMEDOUT_WAITING;
+         response = progress;
       }
       catch( ConnectException e ) {
-         exitWithError( "Connection issue trying to issue stop command.  " +
-               "Are you sure the server is running?", e, ERR_NOT_STOPPED );
+         error( "Connection issue trying to issue stop command to " + target + ".  " +
+               "Are you sure the server is running?", e );
+         exitCode = ERR_NOT_STOPPED;
       }
       catch( Exception e ) {
-         exitWithError( "Unknown issue trying to issue stop command.", e, ERR_UNKNOWN );
+         error( "Unknown issue trying to issue stop command to " + target + ".", e );
+         exitCode = ERR_UNKNOWN;
+      }
+      return new StopResult( target, exitCode, System.nanoTime() - start, response );
+   }
+
+   /**
+    * How to stop the servers in rolling waves.
+    */
+   private static class Rolling {
+      private final double minServing;
+      private final Duration timeout;
+      /** The servers to count those serving among, before each wave after the first, if not those being stopped. */
+      private Callable<List<InstanceRegistry.Instance>> lookup;
+
+      private Rolling( double minServing, Duration timeout ) {
+         this.minServing = minServing;
+         this.timeout = timeout;
       }
    }
 
-   private void exitWithError( String msg, Throwable e, int exitCode ) {
+   /**
+    * A {@link Duration} argument, such as '30 seconds', rejected with the usage if it can't be parsed.
+    */
+   private static class DurationType implements ArgumentType<Duration> {
+      @Override
+      public Duration convert( ArgumentParser parser, Argument arg, String value ) throws ArgumentParserException {
+         try {
+            return Duration.parse( value );
+         }
+         catch( IllegalArgumentException e ) {
+            throw new ArgumentParserException( "'" + value + "' is not a duration, such as '30 seconds'", e, parser,
+                  arg );
+         }
+      }
+   }
+
+   private void error( String msg, Throwable e ) {
       if( e != null ) {
          LOGGER.error( msg, e );
       }
       else {
          LOGGER.error( msg );
       }
-      exitNow( exitCode );
    }
 
    /**
@@ -131,6 +509,11 @@ public class StopCommand<T extends Configuration> extends ConfiguredCommand<T> {
     * @param exitCode that will be reported.
     */
    protected void exitNow( int exitCode ) {
-      System.exit( exitCode );
+      try {
+         new ExitCoordinator().exit( exitCode, EXIT_BUDGET_NANOS );
+      }
+      catch( InterruptedException e ) {
+         Thread.currentThread().interrupt();
+      }
    }
 }
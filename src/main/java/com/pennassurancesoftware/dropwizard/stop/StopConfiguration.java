@@ -4,6 +4,10 @@ import io.dropwizard.util.Duration;
 import io.dropwizard.validation.DurationRange;
 import io.dropwizard.validation.ValidationMethod;
 
+import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -17,6 +21,12 @@ public class StopConfiguration {
    @JsonProperty
    private int port = 8181;
 
+   @JsonProperty
+   private String socketPath;
+
+   @JsonProperty
+   private String registryFile;
+
    @NotNull
    @JsonProperty
    private String key = "server-stop-me";
@@ -25,9 +35,94 @@ public class StopConfiguration {
    @JsonProperty
    private Duration wait = Duration.seconds( 2 );
 
+   @JsonProperty
+   private boolean nonBlocking = false;
+
+   @DurationRange
+   @JsonProperty
+   private Duration readTimeout = Duration.seconds( 5 );
+
+   @Min(1)
+   @JsonProperty
+   private int maxConnections = 64;
+
+   @Min(1)
+   @JsonProperty
+   private int shutdownThreads = 4;
+
+   @NotNull
+   @JsonProperty
+   private Duration deregistrationDelay = Duration.seconds( 0 );
+
+   @JsonProperty
+   private boolean handover = false;
+
+   @DecimalMin("0")
+   @DecimalMax("100")
+   @JsonProperty
+   private Double drainPercentile;
+
+   @JsonProperty
+   private boolean shedLoad = true;
+
+   @NotNull
+   @JsonProperty
+   private Duration retryAfter = Duration.seconds( 1 );
+
+   @NotNull
+   @JsonProperty
+   private MonitorExecutor monitorExecutor = MonitorExecutor.THREAD;
+
+   @Min(1)
+   @JsonProperty
+   private long drainMinSamples = 100;
+
+   @Min(0)
+   @JsonProperty
+   private int warmUpIterations = 100;
+
+   @NotNull
+   @JsonProperty
+   private Duration warmUpBudget = Duration.minutes( 2 );
+
+   @JsonProperty
+   private String snapshotDirectory;
+
+   @NotNull
+   @JsonProperty
+   private Duration snapshotMaxAge = Duration.hours( 1 );
+
+   @JsonProperty
+   private String flightRecordingDirectory;
+
+   @JsonProperty
+   private String spillFile;
+
+   @NotNull
+   @JsonProperty
+   private Duration progressInterval = Duration.milliseconds( 500 );
+
+   @NotNull
+   @JsonProperty
+   private Duration asyncGrace = Duration.seconds( 1 );
+
+   @Min(1)
+   @JsonProperty
+   private int drainBatchSize = 100;
+
+   @NotNull
+   @JsonProperty
+   private Duration drainBatchInterval = Duration.milliseconds( 20 );
+
+   @Valid
+   @NotNull
+   @JsonProperty
+   private PhaseBudgetConfiguration phases = new PhaseBudgetConfiguration();
+
    /**
     * The port that the stop command is executed on.  The {@link StopMonitor} listens on this port
-    * and the {@link StopCommand} issues the stop command on to this port.
+    * and the {@link StopCommand} issues the stop command on to this port.  0 has one assigned when the monitor
+    * starts, which the {@link StopCommand} then looks up in the {@link #getRegistryFile() registry}.
     * @return port
     */
    public int getPort() {
@@ -38,6 +133,36 @@ public class StopConfiguration {
       this.port = port;
    }
 
+   /**
+    * The path of a Unix domain socket that the stop command is executed on instead of the port, so that no port
+    * has to be handed out and only the user the application runs as can connect to it.  '{pid}' in the path is
+    * replaced with the process id of the application, giving each instance on the host a socket of its own; the
+    * {@link StopCommand} is then given the '--pid' of the instance to stop.  Needs Java 16 or later.
+    * @return path of the socket or null to use the port
+    */
+   public String getSocketPath() {
+      return socketPath;
+   }
+
+   public void setSocketPath( String socketPath ) {
+      this.socketPath = socketPath;
+   }
+
+   /**
+    * The file of the {@link InstanceRegistry} that the {@link StopMonitor} registers in, with its process id, the
+    * port or socket it is on, a fingerprint of its key and its state.  With one the {@link StopCommand} finds the
+    * instances to stop by the name of the application, '--name', or by '--pid', whatever port they were given, so
+    * the port can be 0 and assigned when the monitor starts.  Every application on the host can share the file.
+    * @return path of the registry file or null not to register
+    */
+   public String getRegistryFile() {
+      return registryFile;
+   }
+
+   public void setRegistryFile( String registryFile ) {
+      this.registryFile = registryFile;
+   }
+
    /**
     * The key that is used to authorize the stop command.  If the {@link StopMonitor} is configured
     * with a different key than what is used to issue the stop command the stop command is ignored.
@@ -70,9 +195,299 @@ public class StopConfiguration {
       this.wait = wait;
    }
 
-   @ValidationMethod(message = "Port must be in the valid range. =>1025 && <= MAX_VALUE.  i.e. not zero.")
+   /**
+    * When true the {@link StopMonitor} serves the control port from a single selector, so that many control
+    * connections can be handled at once and a slow client can't hold up a 'stop'.  When false (the default)
+    * connections are accepted and served one at a time.  Only the selector based monitor keeps a connection open
+    * for further commands after a 'pipeline' command.
+    * @return true if the selector based monitor should be used
+    */
+   public boolean isNonBlocking() {
+      return nonBlocking;
+   }
+
+   public void setNonBlocking( boolean nonBlocking ) {
+      this.nonBlocking = nonBlocking;
+   }
+
+   /**
+    * The {@link Duration} a control connection has to send the key and the command before the
+    * {@link StopMonitor} gives up on it and closes it.  A pipelined connection is closed once it has been idle
+    * this long.
+    * @return {@link Duration}
+    */
+   public Duration getReadTimeout() {
+      return readTimeout;
+   }
+
+   public void setReadTimeout( Duration readTimeout ) {
+      this.readTimeout = readTimeout;
+   }
+
+   /**
+    * The maximum number of control connections the non-blocking {@link StopMonitor} will serve at once.
+    * Connections over this limit are closed as soon as they are accepted.
+    * @return maximum number of open control connections
+    */
+   public int getMaxConnections() {
+      return maxConnections;
+   }
+
+   public void setMaxConnections( int maxConnections ) {
+      this.maxConnections = maxConnections;
+   }
+
+   /**
+    * The most components of the {@link ShutdownCoordinator} that are stopped at the same time.
+    * @return number of threads
+    */
+   public int getShutdownThreads() {
+      return shutdownThreads;
+   }
+
+   public void setShutdownThreads( int shutdownThreads ) {
+      this.shutdownThreads = shutdownThreads;
+   }
+
+   /**
+    * How long a 'drain' keeps serving after the health check starts failing, so that load balancers can move
+    * traffic to other nodes before the connectors are closed.  This comes before, and in addition to, the
+    * {@link #getWait()}.
+    * @return {@link Duration}
+    */
+   public Duration getDeregistrationDelay() {
+      return deregistrationDelay;
+   }
+
+   public void setDeregistrationDelay( Duration deregistrationDelay ) {
+      this.deregistrationDelay = deregistrationDelay;
+   }
+
+   /**
+    * The budget of each {@link StopPhase} of the stop sequence, within the overall {@link #getWait()}.
+    * @return {@link PhaseBudgetConfiguration}
+    */
+   public PhaseBudgetConfiguration getPhases() {
+      return phases;
+   }
+
+   public void setPhases( PhaseBudgetConfiguration phases ) {
+      this.phases = phases;
+   }
+
+   /**
+    * When true a starting instance asks the instance already on the stop port to hand over to it, once this one's
+    * server has started.  The old instance releases the stop port and stops the same way as for 'stop', while
+    * this one is already taking connections.  For there to be no gap the application connectors of both have
+    * to be bound with SO_REUSEPORT, see {@link ReusePortHttpConnectorFactory}.
+    * @return true if this instance should take over from the one on the stop port
+    */
+   public boolean isHandover() {
+      return handover;
+   }
+
+   public void setHandover( boolean handover ) {
+      this.handover = handover;
+   }
+
+   /**
+    * When set the drain waits no longer than this percentile of the latency of the requests served so far,
+    * still within its budget and the {@link #getWait()}.  The 'Stopped' reply reports the deadline chosen.
+    * Not set (the default) the drain waits for as long as its budget allows.
+    * @return percentile between 0 and 100 or null
+    */
+   public Double getDrainPercentile() {
+      return drainPercentile;
+   }
+
+   public void setDrainPercentile( Double drainPercentile ) {
+      this.drainPercentile = drainPercentile;
+   }
+
+   /**
+    * The requests that have to have been served before the {@link #getDrainPercentile()} is trusted.
+    * With fewer the drain waits for as long as its budget allows.
+    * @return number of requests
+    */
+   public long getDrainMinSamples() {
+      return drainMinSamples;
+   }
+
+   public void setDrainMinSamples( long drainMinSamples ) {
+      this.drainMinSamples = drainMinSamples;
+   }
+
+   /**
+    * When true (the default) new requests are turned away with a 503 once the stop has started to stop accepting,
+    * see {@link LoadSheddingFilter}.
+    * @return true if requests should be shed during the stop
+    */
+   public boolean isShedLoad() {
+      return shedLoad;
+   }
+
+   public void setShedLoad( boolean shedLoad ) {
+      this.shedLoad = shedLoad;
+   }
+
+   /**
+    * The 'Retry-After' sent with the 503 for a request that is turned away during the stop.
+    * @return {@link Duration}
+    */
+   public Duration getRetryAfter() {
+      return retryAfter;
+   }
+
+   public void setRetryAfter( Duration retryAfter ) {
+      this.retryAfter = retryAfter;
+   }
+
+   /**
+    * Where the {@link StopMonitor} serves the stop port from: a thread of its own (the default), a thread of the
+    * Jetty server's pool or a virtual thread.
+    * @return {@link MonitorExecutor}
+    */
+   public MonitorExecutor getMonitorExecutor() {
+      return monitorExecutor;
+   }
+
+   public void setMonitorExecutor( MonitorExecutor monitorExecutor ) {
+      this.monitorExecutor = monitorExecutor;
+   }
+
+   /**
+    * The number of times the {@link WarmUpCoordinator} runs each warm-up workload after the server starts.
+    * @return number of iterations
+    */
+   public int getWarmUpIterations() {
+      return warmUpIterations;
+   }
+
+   public void setWarmUpIterations( int warmUpIterations ) {
+      this.warmUpIterations = warmUpIterations;
+   }
+
+   /**
+    * The most the warm-up may take.  The server is reported ready once it is used up, warmed up or not.
+    * @return {@link Duration}
+    */
+   public Duration getWarmUpBudget() {
+      return warmUpBudget;
+   }
+
+   public void setWarmUpBudget( Duration warmUpBudget ) {
+      this.warmUpBudget = warmUpBudget;
+   }
+
+   /**
+    * The directory the {@link SnapshotStore} keeps its snapshots in.  No snapshots are written or restored
+    * without one.
+    * @return path of the directory or null
+    */
+   public String getSnapshotDirectory() {
+      return snapshotDirectory;
+   }
+
+   public void setSnapshotDirectory( String snapshotDirectory ) {
+      this.snapshotDirectory = snapshotDirectory;
+   }
+
+   /**
+    * The oldest a snapshot can be and still be restored.  Anything older is discarded, as the state it holds
+    * has likely moved on.
+    * @return {@link Duration}
+    */
+   public Duration getSnapshotMaxAge() {
+      return snapshotMaxAge;
+   }
+
+   public void setSnapshotMaxAge( Duration snapshotMaxAge ) {
+      this.snapshotMaxAge = snapshotMaxAge;
+   }
+
+   /**
+    * The directory to dump a Java Flight Recorder recording of a stop that runs over its budget to.  With one,
+    * each stop is recorded from the moment it begins, with the JVM's 'profile' settings.  The stop's own events
+    * are emitted either way, for any recording that is running.  Needs a JVM with JFR, such as Java 8u262 or
+    * later.
+    * @return path of the directory or null not to record the stops
+    */
+   public String getFlightRecordingDirectory() {
+      return flightRecordingDirectory;
+   }
+
+   public void setFlightRecordingDirectory( String flightRecordingDirectory ) {
+      this.flightRecordingDirectory = flightRecordingDirectory;
+   }
+
+   /**
+    * The file the tasks that were still queued on the executors of the {@link ExecutorDrainer}, when the
+    * {@link StopPhase#DRAIN_EXECUTORS} phase ran out of budget, are appended to, see {@link FileSpillHandler}.
+    * Without one they are dropped, unless the application gives the drainer a {@link SpillHandler} of its own.
+    * @return path of the file or null
+    */
+   public String getSpillFile() {
+      return spillFile;
+   }
+
+   public void setSpillFile( String spillFile ) {
+      this.spillFile = spillFile;
+   }
+
+   /**
+    * How often a stop issued with 'watch' sends a progress frame, see {@link StopCommand}'s '--watch'.
+    * @return {@link Duration}
+    */
+   public Duration getProgressInterval() {
+      return progressInterval;
+   }
+
+   public void setProgressInterval( Duration progressInterval ) {
+      this.progressInterval = progressInterval;
+   }
+
+   /**
+    * How long into the {@link StopPhase#DRAIN} phase asynchronous requests, such as long-polls, are left to
+    * complete on their own.  Those still waiting after that are completed, with a 503 if they haven't responded yet.
+    * @return {@link Duration}
+    */
+   public Duration getAsyncGrace() {
+      return asyncGrace;
+   }
+
+   public void setAsyncGrace( Duration asyncGrace ) {
+      this.asyncGrace = asyncGrace;
+   }
+
+   /**
+    * The most sessions of the {@link Drainable}s closed at a time during the {@link StopPhase#DRAIN} phase.
+    * @return number of sessions
+    */
+   public int getDrainBatchSize() {
+      return drainBatchSize;
+   }
+
+   public void setDrainBatchSize( int drainBatchSize ) {
+      this.drainBatchSize = drainBatchSize;
+   }
+
+   /**
+    * The pause between one batch of sessions being closed and the next.
+    * @return {@link Duration}
+    */
+   public Duration getDrainBatchInterval() {
+      return drainBatchInterval;
+   }
+
+   public void setDrainBatchInterval( Duration drainBatchInterval ) {
+      this.drainBatchInterval = drainBatchInterval;
+   }
+
+   @ValidationMethod(message = "Port must be in the valid range. =>1025 && <= MAX_VALUE.  i.e. not zero, " +
+         "unless a socketPath is given, or a registryFile to find the port assigned in.")
    public boolean isPortRangeCorrect() {
-      // @PortRange validation accepts 0 as a valid port.  For the Stop Port that is not a good idea.
-      return port > 0 && port >= 1025;
+      // @PortRange validation accepts 0 as a valid port.  For the Stop Port that is only any good if the
+      // StopCommand can look up the port assigned.
+      return socketPath != null || ( port == 0 && registryFile != null ) || ( port > 0 && port >= 1025 );
    }
 }
@@ -0,0 +1,63 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * How long the request being served has left before the stop gives up waiting for it, so that a long-running
+ * resource, such as a report or a bulk export, can return a partial or cached result, or checkpoint, rather than
+ * be cut off.<p/>
+ * The {@link InFlightFilter} puts it on every request as the {@link #ATTRIBUTE} attribute.  A resource gets it with
+ * <pre>
+ *    StopDeadline deadline = StopDeadline.of( request );
+ *    while( hasMoreRows() ) {
+ *       if( deadline.getRemaining( TimeUnit.MILLISECONDS ) &lt; 500 ) {
+ *          return partialResult();
+ *       }
+ *       ....
+ *    }
+ * </pre>
+ * Reading it is as cheap as reading a volatile field, so it can be checked as often as needed.
+ */
+public class StopDeadline {
+   /** The request attribute the deadline is under. */
+   public static final String ATTRIBUTE = StopDeadline.class.getName();
+
+   private static final StopDeadline NEVER = new StopDeadline( new StopState() );
+
+   private final StopState state;
+
+   /**
+    * @param state of the stop.
+    */
+   public StopDeadline( StopState state ) {
+      this.state = state;
+   }
+
+   /**
+    * @param request being served.
+    * @return the deadline of the request, one that never comes if the {@link InFlightFilter} didn't see it.
+    */
+   public static StopDeadline of( ServletRequest request ) {
+      Object deadline = request.getAttribute( ATTRIBUTE );
+      return deadline instanceof StopDeadline ? ( StopDeadline )deadline : NEVER;
+   }
+
+   /**
+    * @return true once the server is being stopped.
+    */
+   public boolean isStopping() {
+      return state.getPhase() != null;
+   }
+
+   /**
+    * @param unit of the time.
+    * @return the time left before the drain stops waiting for the requests in flight, {@link Long#MAX_VALUE} if
+    *         the server isn't being stopped and zero once the drain is over.
+    */
+   public long getRemaining( TimeUnit unit ) {
+      long nanos = state.getDrainRemainingNanos();
+      return nanos == Long.MAX_VALUE ? Long.MAX_VALUE : unit.convert( nanos, TimeUnit.NANOSECONDS );
+   }
+}
@@ -0,0 +1,168 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import io.dropwizard.lifecycle.JettyManaged;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+
+/**
+ * Emit Java Flight Recorder events as the server is stopped, so that a slow stop can be profiled with the JFR
+ * tools: one for each control command received and each key checked, and timed ones for each {@link StopPhase},
+ * each managed component stopped and the exit.<p/>
+ * The events are only built once the flight recorder has been started, and then only while a recording has them
+ * enabled, so they cost next to nothing otherwise: loading the first event class before then would set up the
+ * flight recorder in the middle of the stop.  They live in {@link FlightRecorderEvents}, which is only loaded on
+ * a JVM that has JFR (Java 8u262 and later), so that on any other JVM this does nothing.
+ */
+final class StopEvents {
+   private static final boolean AVAILABLE = isAvailable();
+
+   /**
+    * Something being timed, ended once it is done.
+    */
+   interface Span {
+      /**
+       * @param completed false if it ran out of its budget or failed.
+       */
+      void end( boolean completed );
+   }
+
+   /**
+    * A flight recording of a stop.
+    */
+   interface Recording {
+      /**
+       * Stop recording.
+       * @param dump true to write the recording out, as the stop ran over its budget.
+       */
+      void finish( boolean dump );
+   }
+
+   static final Span NONE = new Span() {
+      @Override
+      public void end( boolean completed ) {}
+   };
+
+   static final Recording NO_RECORDING = new Recording() {
+      @Override
+      public void finish( boolean dump ) {}
+   };
+
+   private StopEvents() {}
+
+   /**
+    * @return true if the JVM has JFR and it has been started, by a recording or by {@link #startRecording(String)}.
+    */
+   static boolean isEnabled() {
+      return AVAILABLE && FlightRecorderEvents.isInitialized();
+   }
+
+   /**
+    * @param command received, or null if it wasn't one the monitor knows.
+    */
+   static void command( String command ) {
+      if( isEnabled() ) {
+         FlightRecorderEvents.command( command );
+      }
+   }
+
+   /**
+    * @param authorized true if the key matched.
+    */
+   static void authentication( boolean authorized ) {
+      if( isEnabled() ) {
+         FlightRecorderEvents.authentication( authorized );
+      }
+   }
+
+   /**
+    * @param phase starting.
+    * @param budget of the phase in nanoseconds.
+    * @return the span to end once the phase is done.
+    */
+   static Span phase( StopPhase phase, long budget ) {
+      return isEnabled() ? FlightRecorderEvents.phase( phase, budget ) : NONE;
+   }
+
+   /**
+    * @param component being stopped.
+    * @return the span to end once the component has stopped.
+    */
+   static Span managedStop( String component ) {
+      return isEnabled() ? FlightRecorderEvents.managedStop( component ) : NONE;
+   }
+
+   /**
+    * @param status the JVM exits with.
+    * @param budget of the exit in nanoseconds, or negative if it isn't bound.
+    * @return the span to end just before the JVM halts.
+    */
+   static Span exit( int status, long budget ) {
+      return isEnabled() ? FlightRecorderEvents.exit( status, budget ) : NONE;
+   }
+
+   /**
+    * Start recording the stop.
+    * @param directory to dump the recording in, or null not to record.
+    * @return the recording.
+    */
+   static Recording startRecording( String directory ) {
+      return AVAILABLE && directory != null ? FlightRecorderEvents.startRecording( new File( directory ) )
+            : NO_RECORDING;
+   }
+
+   /**
+    * Time the stop of each component managed by {@code environment.lifecycle()}, as the server stops them.
+    * @param server that was started.
+    */
+   static void watchManaged( Server server ) {
+      if( !AVAILABLE ) {
+         return;
+      }
+      ManagedStopListener listener = new ManagedStopListener();
+      for( JettyManaged managed : server.getBeans( JettyManaged.class ) ) {
+         managed.addLifeCycleListener( listener );
+      }
+   }
+
+   private static boolean isAvailable() {
+      try {
+         Class.forName( "jdk.jfr.FlightRecorder" );
+         return true;
+      }
+      catch( ClassNotFoundException e ) {
+         return false;
+      }
+   }
+
+   private static class ManagedStopListener extends AbstractLifeCycle.AbstractLifeCycleListener {
+      private final Map<LifeCycle, Span> stopping = new ConcurrentHashMap<LifeCycle, Span>();
+
+      @Override
+      public void lifeCycleStopping( LifeCycle event ) {
+         stopping.put( event, managedStop( ( ( JettyManaged )event ).getManaged().getClass().getName() ) );
+      }
+
+      @Override
+      public void lifeCycleStopped( LifeCycle event ) {
+         end( event, true );
+      }
+
+      @Override
+      public void lifeCycleFailure( LifeCycle event, Throwable cause ) {
+         end( event, false );
+      }
+
+      private void end( LifeCycle event, boolean completed ) {
+         Span span = stopping.remove( event );
+         if( span != null ) {
+            span.end( completed );
+         }
+      }
+   }
+}
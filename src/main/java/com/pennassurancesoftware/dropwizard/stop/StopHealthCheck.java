@@ -0,0 +1,24 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import com.codahale.metrics.health.HealthCheck;
+
+/**
+ * Report the node as unhealthy as soon as it is taken out of rotation by a 'drain' or 'stop',
+ * so that a load balancer polling the health checks stops sending it traffic.
+ */
+public class StopHealthCheck extends HealthCheck {
+   private final StopState state;
+
+   public StopHealthCheck( StopState state ) {
+      this.state = state;
+   }
+
+   @Override
+   protected Result check() throws Exception {
+      if( state.isOutOfRotation() ) {
+         StopPhase phase = state.getPhase();
+         return Result.unhealthy( "Out of rotation" + ( phase != null ? ", stopping: " + phase.getLabel() : "" ) );
+      }
+      return Result.healthy();
+   }
+}
@@ -0,0 +1,92 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * The metrics of the {@link StopMonitor}, registered under the name of the monitor class:
+ * <ul>
+ * <li>{@code stop} timer, how long the stop took after the deregistration delay, up to stopping the managed
+ * components</li>
+ * <li>{@code drain} timer, how long the requests in flight took to drain on a stop or quiesce</li>
+ * <li>{@code in-flight} gauge, the requests in flight now</li>
+ * <li>{@code in-flight-at-deadline} gauge, the requests still in flight when the last drain ran out of time</li>
+ * <li>{@code commands.<command>} counters, the control commands received of each type</li>
+ * <li>{@code rejected-keys} counter, the control connections rejected because of the wrong key</li>
+ * <li>{@code warm-up.iterations} and {@code warm-up.duration} gauges, the workloads run to warm up after the start
+ * and how long that took in milliseconds, registered by the {@link WarmUpCoordinator}</li>
+ * <li>{@code shed} meter, the requests turned away with a 503 once the stop began, registered by the {@link StopBundle}</li>
+ * </ul>
+ * The stop and drain are recorded as the {@link StopSequence} goes, rather than once it is over, so that the
+ * metrics reporters, which are stopped along with the managed components, get to report them.
+ */
+class StopMetrics {
+   private final Timer stop;
+   private final Timer drain;
+   private final AtomicLong inFlightAtDeadline = new AtomicLong();
+   private final Counter rejectedKeys;
+   private final Map<String, Counter> commands = new HashMap<String, Counter>();
+   private final Counter unknownCommands;
+
+   /**
+    * @param registry to register the metrics with.
+    * @param inFlight requests to report on.
+    * @param commandNames the commands the monitor knows, each counted on its own.
+    */
+   StopMetrics( MetricRegistry registry, final InFlightTracker inFlight, Collection<String> commandNames ) {
+      this.stop = registry.timer( name( StopMonitor.class, "stop" ) );
+      this.drain = registry.timer( name( StopMonitor.class, "drain" ) );
+      this.rejectedKeys = registry.counter( name( StopMonitor.class, "rejected-keys" ) );
+      for( String command : commandNames ) {
+         commands.put( command, registry.counter( name( StopMonitor.class, "commands", command ) ) );
+      }
+      this.unknownCommands = registry.counter( name( StopMonitor.class, "commands", "unknown" ) );
+      registry.register( name( StopMonitor.class, "in-flight" ), new Gauge<Long>() {
+         @Override
+         public Long getValue() {
+            return inFlight.get();
+         }
+      } );
+      registry.register( name( StopMonitor.class, "in-flight-at-deadline" ), new Gauge<Long>() {
+         @Override
+         public Long getValue() {
+            return inFlightAtDeadline.get();
+         }
+      } );
+   }
+
+   void command( String command ) {
+      Counter counter = commands.get( command );
+      ( counter != null ? counter : unknownCommands ).inc();
+   }
+
+   void rejectedKey() {
+      rejectedKeys.inc();
+   }
+
+   /**
+    * @param nanos that the drain took.
+    * @param inFlight requests still in flight as the drain ended, 0 if it completed.
+    */
+   void drained( long nanos, long inFlight ) {
+      drain.update( nanos, TimeUnit.NANOSECONDS );
+      inFlightAtDeadline.set( inFlight );
+   }
+
+   /**
+    * @param nanos that the stop took after the deregistration delay, up to stopping the managed components.
+    */
+   void stopped( long nanos ) {
+      stop.update( nanos, TimeUnit.NANOSECONDS );
+   }
+}
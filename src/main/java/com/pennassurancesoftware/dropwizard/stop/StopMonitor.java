@@ -3,41 +3,116 @@ package com.pennassurancesoftware.dropwizard.stop;
 import io.dropwizard.lifecycle.ServerLifecycleListener;
 import io.dropwizard.util.Duration;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.LineNumberReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.util.concurrent.CountDownLatch;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+
 /**
- * Establish a Stop monitor on the configured port.
- * When a stop command is issued, stop the server and wait
- * for the allocated {@link Duration} before exiting the application.
+ * Establish a Stop monitor on the configured port, or Unix domain socket if one is configured.
+ * When a stop command is issued, take the server through each {@link StopPhase}, for no more than
+ * the allocated {@link Duration}, before exiting the application.  The 'Stopped' reply carries the
+ * {@link StopReport} of how long each phase took.  A 'drain' command first takes the node out of rotation
+ * and waits for the configured deregistration delay, then stops the same way.  Either sent after 'watch' streams
+ * {@link ProgressReporter progress frames} until the reply.  A 'handover' from a new instance
+ * of the application releases the stop port to it first, see {@link StopConfiguration#isHandover()}.  A 'ready'
+ * command answers 'READY' once the {@link WarmUpCoordinator} is done and for as long as the server isn't stopping.
+ * A 'quiesce' drains the same way but then only stops the connectors, parking the warm JVM until a 'resume'.
+ * With a {@link StopConfiguration#getRegistryFile() registry file} the monitor registers where it is and what it
+ * is doing in the {@link InstanceRegistry} for as long as it serves.<p/>
+ * The monitor serves the port on a thread of its own, the monitor itself, unless another {@link MonitorExecutor} is
+ * configured or it is given an executor.  Then it runs on that executor, and it is never started as a thread, so
+ * {@link #join()} and the other methods of the thread have nothing to act on.  Either way each stop runs on a
+ * non-daemon thread of its own.
  *
  * See {@link StopConfiguration}
  */
 public class StopMonitor extends Thread implements ServerLifecycleListener {
    private static final Logger LOGGER = LoggerFactory.getLogger( StopMonitor.class );
+   private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+   private static final byte[] OK = "OK\r\n".getBytes( UTF_8 );
+   private static final byte[] NOT_OK = "NOT OK\r\n".getBytes( UTF_8 );
+   private static final byte[] READY = "READY\r\n".getBytes( UTF_8 );
+   private static final byte[] NOT_READY = "NOT READY\r\n".getBytes( UTF_8 );
+   private static final byte[] UNKNOWN = "UNKNOWN\r\n".getBytes( UTF_8 );
+   private static final byte[] HANDING_OVER = "Handing over\r\n".getBytes( UTF_8 );
+   private static final long BIND_RETRY_MS = 50;
+   private static final int MAX_REQUEST_SIZE = 1024;
+   private static final long SELECT_INTERVAL_MS = 250;
+   private static final String THREAD_NAME = "StopMonitor";
+   private static final List<String> COMMANDS = ControlCommand.names();
 
    private LifeCycle server;
    private final StopConfiguration stopConfiguration;
+   private final InFlightTracker inFlight;
+   private final StopState state = new StopState();
+   private StopMetrics metrics;
+   private List<Flushable> flushables = Collections.emptyList();
+   private List<ScheduledReporter> reporters = Collections.emptyList();
+   private List<Drainable> drainables = Collections.emptyList();
+   private ExecutorDrainer executors = new ExecutorDrainer();
+   private SnapshotStore snapshots = new SnapshotStore();
+   private WarmUpCoordinator warmUp;
+   private volatile long exitBudget = ExitCoordinator.DEFAULT_BUDGET_NANOS;
+   private final AtomicBoolean quiesced = new AtomicBoolean();
+   private final AtomicBoolean stopping = new AtomicBoolean();
+   private volatile Selector selector;
+   private ExitCoordinator exitCoordinator = new ExitCoordinator();
+   private Executor executor;
 
    private ServerSocket serverSocket;
+   private ServerSocketChannel socketChannel;
+   private File socketFile;
+   private byte[] keyBytes;
+   private String applicationName;
+   private InstanceRegistry.Registration registration;
 
    /**
     * Construct a monitor for the 'stop' command.
     * @param stopConfiguration that should be used.
     */
    public StopMonitor( StopConfiguration stopConfiguration ) {
+      this( stopConfiguration, new InFlightTracker() );
+   }
+
+   /**
+    * Construct a monitor for the 'stop' command that waits for requests to complete.
+    * @param stopConfiguration that should be used.
+    * @param inFlight requests that the stop should wait for, up to the configured wait.
+    */
+   public StopMonitor( StopConfiguration stopConfiguration, InFlightTracker inFlight ) {
       this.stopConfiguration = stopConfiguration;
+      this.inFlight = inFlight;
+      this.metrics = new StopMetrics( new MetricRegistry(), inFlight, COMMANDS );
    }
 
    /**
@@ -51,47 +126,311 @@ public class StopMonitor extends Thread implements ServerLifecycleListener {
          throw new IllegalStateException( "Expected Server to be non-null!" );
       }
       setServer( server );
+      StopEvents.watchManaged( server );
       init();
    }
 
    private void init() {
       int port = stopConfiguration.getPort();
+      String socketPath = stopConfiguration.getSocketPath();
       try {
-         if( port < 0 ) {
+         if( port < 0 && socketPath == null ) {
             LOGGER.info( "No Stop Monitor port specified, so no monitoring thread will be started." );
             return;
          }
-         // don't start the thread as a daemon.  This is because the server is a non-daemon, and if it is the only
-         // daemon than the process exists without finishing the 'stop' command.
-         //            setDaemon(true);
-         setName( "StopMonitor" );
-         serverSocket = createSocketServer( port );
-         if( port == 0 ) {
+         keyBytes = stopConfiguration.getKey().getBytes( UTF_8 );
+         if( socketPath != null ) {
+            socketFile = UnixDomainSocket.resolve( socketPath, UnixDomainSocket.pid() );
+         }
+         if( stopConfiguration.isHandover() && port == 0 && socketFile == null ) {
+            int previous = registeredPort();
+            if( previous > 0 ) {
+               handover( previous );
+            }
+            else {
+               LOGGER.info( "No instance of " + applicationName + " in the stop registry to take over from." );
+            }
+         }
+         else if( stopConfiguration.isHandover() && ( port > 0 || socketFile != null ) ) {
+            handover( port );
+         }
+         bind( port );
+         if( socketFile != null ) {
+            LOGGER.info( "Stop monitor on socket " + socketFile );
+         }
+         else if( port == 0 ) {
             port = serverSocket.getLocalPort();
-            LOGGER.info( "Stop monitor on port " + port + " This is not configured and " +
-                  "therefore is not going to work.  In that when the 'stop' is issued it will not be sent to " +
-                  "the right port, unless configured to match the dynamically generated port assignment. " +
-                  "The StopConfiguration needs a validation that works, as port 0 is not valid." );
+            if( stopConfiguration.getRegistryFile() != null ) {
+               LOGGER.info( "Stop monitor on port " + port + ", assigned when it started." );
+            }
+            else {
+               LOGGER.warn( "Stop monitor on port " + port + ", assigned when it started.  Without a registryFile " +
+                     "to look it up in the 'stop' can't find it." );
+            }
          }
       }
       catch( Exception e ) {
-         LOGGER.error( "Error binding stop monitor to port " + port + " and will abort monitoring. ", e );
+         LOGGER.error( "Error binding stop monitor to " + endpoint( port ) + " and will abort monitoring. ", e );
          return;
       }
+      register( port );
 
-      if( serverSocket != null ) {
+      if( serverSocket == null && socketChannel == null ) {
+         LOGGER.warn( "Not listening on stop monitor port: " + port );
+      }
+      else if( executor != null ) {
+         executor.execute( this );
+      }
+      else if( stopConfiguration.getMonitorExecutor() == MonitorExecutor.THREAD ) {
+         // Not a daemon, like the server's own threads, so that the process can't exit before the 'stop' finishes.
+         setName( THREAD_NAME );
          start();
       }
       else {
-         LOGGER.warn( "Not listening on stop monitor port: " + port );
+         stopConfiguration.getMonitorExecutor().executor( server ).execute( this );
+      }
+   }
+
+   /**
+    * @return the stop port or socket, for the log.
+    */
+   private String endpoint( int port ) {
+      return socketFile != null ? "stop socket " + socketFile : "stop port " + port;
+   }
+
+   /**
+    * Ask the instance on the stop port or socket, if there is one, to hand over to this one.
+    * @param port the stop port of both instances.
+    */
+   private void handover( int port ) {
+      String endpoint = endpoint( port );
+      Socket socket;
+      try {
+         if( socketFile != null && !socketFile.exists() ) {
+            throw new ConnectException( "No socket file." );
+         }
+         socket = socketFile != null ? UnixDomainSocket.connect( socketFile )
+               : new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+      }
+      catch( ConnectException e ) {
+         LOGGER.info( "No instance on " + endpoint + " to take over from." );
+         return;
+      }
+      catch( IOException e ) {
+         LOGGER.warn( "Unable to reach the instance on " + endpoint + " to take over from it.", e );
+         return;
+      }
+      try {
+         socket.setSoTimeout( ( int )stopConfiguration.getReadTimeout().toMilliseconds() );
+         socket.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nhandover\r\n" ).getBytes( UTF_8 ) );
+         socket.getOutputStream().flush();
+         LineBuffer reply = new LineBuffer( MAX_REQUEST_SIZE );
+         if( reply.readLine( socket.getInputStream() ) < 0 ) {
+            LOGGER.warn( "The instance on " + endpoint + " didn't agree to hand over.  Check the key matches." );
+            return;
+         }
+         LOGGER.info( "The instance on " + endpoint + " is handing over." );
+      }
+      catch( IOException e ) {
+         LOGGER.warn( "Error asking the instance on " + endpoint + " to hand over.", e );
+      }
+      finally {
+         closeQuietly( socket );
+      }
+   }
+
+   /**
+    * @return the stop port of another instance of the application in the registry, to take over from, or -1 if
+    *         there isn't one.
+    */
+   private int registeredPort() {
+      if( stopConfiguration.getRegistryFile() == null || applicationName == null ) {
+         return -1;
+      }
+      try {
+         long pid = Long.parseLong( UnixDomainSocket.pid() );
+         for( InstanceRegistry.Instance instance : registry().find( applicationName ) ) {
+            if( instance.getPid() != pid && instance.getPort() > 0 &&
+                  instance.getState() == InstanceRegistry.State.SERVING ) {
+               return instance.getPort();
+            }
+         }
+      }
+      catch( Exception e ) {
+         LOGGER.warn( "Unable to look up the instance to take over from in the stop registry.", e );
+      }
+      return -1;
+   }
+
+   /**
+    * Register the monitor, now that it is bound, so that the {@link StopCommand} can find it.
+    * @param port the monitor is on, if it isn't on a socket.
+    */
+   private void register( int port ) {
+      if( stopConfiguration.getRegistryFile() == null ) {
+         return;
+      }
+      InstanceRegistry registry = registry();
+      try {
+         long pid = Long.parseLong( UnixDomainSocket.pid() );
+         registration = registry.register( new InstanceRegistry.Instance( applicationName, pid, socketFile != null ? -1 : port,
+               socketFile != null ? socketFile.getPath() : null, InstanceRegistry.fingerprint( stopConfiguration.getKey() ),
+               InstanceRegistry.State.SERVING ) );
+         LOGGER.info( "Registered the stop monitor in " + registry.getFile() + " as " + applicationName + " pid=" + pid );
+      }
+      catch( Exception e ) {
+         LOGGER.warn( "Error registering the stop monitor in " + registry.getFile() + ".  The 'stop' will only find it " +
+               "on the configured port or socket.", e );
+      }
+   }
+
+   private InstanceRegistry registry() {
+      return new InstanceRegistry( new File( stopConfiguration.getRegistryFile() ) );
+   }
+
+   /**
+    * @param state of the server, for those reading the registry.
+    */
+   private void publish( InstanceRegistry.State state ) {
+      InstanceRegistry.Registration current = registration;
+      if( current != null ) {
+         current.setState( state );
+      }
+   }
+
+   /**
+    * Bind the stop port or socket.  When taking over, the old instance may not have let go of it yet, so keep
+    * trying for the read timeout.
+    */
+   private void bind( int port ) throws IOException, InterruptedException {
+      long deadline = System.nanoTime() + stopConfiguration.getReadTimeout().toNanoseconds();
+      while( true ) {
+         try {
+            if( socketFile != null ) {
+               socketChannel = UnixDomainSocket.bind( socketFile, stopConfiguration.getMaxConnections() );
+            }
+            else {
+               serverSocket = createSocketServer( port );
+            }
+            return;
+         }
+         catch( BindException e ) {
+            if( !stopConfiguration.isHandover() || System.nanoTime() - deadline > 0 ) {
+               throw e;
+            }
+            Thread.sleep( BIND_RETRY_MS );
+         }
       }
    }
 
    // Make a seam so that the class can be tested.
    protected ServerSocket createSocketServer( int port ) throws IOException {
+      if( stopConfiguration.isNonBlocking() ) {
+         ServerSocketChannel channel = ServerSocketChannel.open();
+         try {
+            channel.socket().bind( new InetSocketAddress( InetAddress.getByName( "127.0.0.1" ), port ),
+                  stopConfiguration.getMaxConnections() );
+         }
+         catch( IOException e ) {
+            channel.close();
+            throw e;
+         }
+         return channel.socket();
+      }
       return new ServerSocket( port, 1, InetAddress.getByName( "127.0.0.1" ) );
    }
 
+   /**
+    * The output that should be flushed in the flush phase, just before the exit.
+    * Flushables added to the list later are still flushed.
+    * @param flushables to flush.
+    */
+   public void setFlushables( List<Flushable> flushables ) {
+      this.flushables = flushables;
+   }
+
+   /**
+    * The metrics reporters that should report once more in the stop managed phase, before they are stopped, so
+    * that the stop and drain metrics get reported.  Reporters added to the list later still report.
+    * @param reporters to report from.
+    */
+   public void setReporters( List<ScheduledReporter> reporters ) {
+      this.reporters = reporters;
+   }
+
+   /**
+    * The long-lived sessions that should be closed in the drain phase.
+    * Drainables added to the list later are still drained.
+    * @param drainables to drain.
+    */
+   public void setDrainables( List<Drainable> drainables ) {
+      this.drainables = drainables;
+   }
+
+   /**
+    * The executors whose queued tasks are run, or spilled, in the drain executors phase, after the drain.
+    * @param executors to drain.
+    */
+   public void setExecutorDrainer( ExecutorDrainer executors ) {
+      this.executors = executors;
+   }
+
+   /**
+    * The components whose snapshots are written in the snapshot phase, after the drain.
+    * @param snapshots to write.
+    */
+   public void setSnapshotStore( SnapshotStore snapshots ) {
+      this.snapshots = snapshots;
+   }
+
+   /**
+    * @param applicationName that the monitor registers under in the {@link StopConfiguration#getRegistryFile() registry}.
+    */
+   public void setApplicationName( String applicationName ) {
+      this.applicationName = applicationName;
+   }
+
+   /**
+    * The warm-up that has to finish before the 'ready' command answers 'READY'.  Without one the server is
+    * ready for as long as it isn't stopping.
+    * @param warmUp of the server.
+    */
+   public void setWarmUp( WarmUpCoordinator warmUp ) {
+      this.warmUp = warmUp;
+   }
+
+   /**
+    * Serve the stop port on the given executor, rather than the one the {@link StopConfiguration} names.
+    * The monitor holds on to one of its threads for as long as the server runs.
+    * @param executor to run the monitor on.
+    */
+   public void setExecutor( Executor executor ) {
+      this.executor = executor;
+   }
+
+   /**
+    * @param exitCoordinator that runs the exit tasks and shutdown hooks once the server has stopped.
+    */
+   public void setExitCoordinator( ExitCoordinator exitCoordinator ) {
+      this.exitCoordinator = exitCoordinator;
+   }
+
+   /**
+    * Publish the metrics of the monitor to the given registry, named after this class: the stop and drain
+    * timers, the in-flight gauges and the counters of commands received and keys rejected.
+    * @param registry that the application reports from.
+    */
+   public void setMetricRegistry( MetricRegistry registry ) {
+      this.metrics = new StopMetrics( registry, inFlight, COMMANDS );
+   }
+
+   /**
+    * @return where the monitor is in stopping the server.
+    */
+   public StopState getStopState() {
+      return state;
+   }
+
    public LifeCycle getServer() {
       return server;
    }
@@ -102,115 +441,511 @@ public class StopMonitor extends Thread implements ServerLifecycleListener {
 
    /**
     * The 'StopMonitor' thread will wait for a stop command by listening to the configured port.
+    * A server socket that was opened from a channel, as a Unix domain socket always is, is served by a selector,
+    * otherwise each connection is accepted and served in turn.  Either way the monitor carries on serving while
+    * the server stops, until the stop lets go of the port.
     */
    @Override
    public void run() {
-      String cmd = "";
-      while( true ) {
+      ServerSocketChannel channel = socketChannel != null ? socketChannel : this.serverSocket.getChannel();
+      if( channel != null ) {
+         try {
+            serveSelector( channel );
+         }
+         catch( IOException e ) {
+            LOGGER.error( "Error occurred serving the stop monitor port.  No longer monitoring.", e );
+         }
+      }
+      else {
+         serveBlocking();
+      }
+   }
+
+   private void serveBlocking() {
+      // Only this thread serves connections, so one buffer does for all of them.
+      LineBuffer request = new LineBuffer( MAX_REQUEST_SIZE );
+      ControlCommand command = null;
+      while( !this.serverSocket.isClosed() ) {
          Socket socket = null;
          try {
             socket = this.serverSocket.accept();
+            socket.setSoTimeout( ( int )stopConfiguration.getReadTimeout().toMilliseconds() );
+            request.clear();
 
-            LineNumberReader line =
-                  new LineNumberReader( new InputStreamReader( socket.getInputStream(), Charset.forName( "UTF-8" ) ) );
-            String key = line.readLine();
-            if( !this.stopConfiguration.getKey().equals( key ) ) {
-               LOGGER.info( "Ignoring stop command with incorrect key.  Check to make sure when the server was " +
-                     "started that the configuration used is the same now to stop." );
+            InputStream in = socket.getInputStream();
+            int newline = request.readLine( in );
+            if( newline < 0 || !isAuthorized( request, newline ) ) {
                continue;
             }
+            request.consume( newline );
 
-            cmd = line.readLine();
-            if( "stop".equals( cmd ) ) {
-               issueStop( getServer() );
-
-               socket.getOutputStream().write( "Stopped\r\n".getBytes( Charset.forName( "UTF-8" ) ) );
+            newline = request.readLine( in );
+            if( newline < 0 ) {
+               continue;
+            }
+            command = request.command( newline );
+            boolean watch = command == ControlCommand.WATCH;
+            if( watch ) {
+               received( command );
+               request.consume( newline );
+               newline = request.readLine( in );
+               if( newline < 0 ) {
+                  continue;
+               }
+               command = request.command( newline );
+            }
+            received( command );
+            if( isStop( command ) ) {
+               stop( socket.getOutputStream(), socket, command, watch );
+               socket = null;
+            }
+            else if( isQuiesce( command ) ) {
+               // The drain can take the whole wait, so it replies from a thread of its own and this one keeps serving.
+               quiesceInBackground( socket.getOutputStream(), socket, command );
+               socket = null;
+            }
+            else if( command == ControlCommand.STATUS || command == ControlCommand.READY ) {
+               socket.getOutputStream().write( command == ControlCommand.STATUS ? status() : ready() );
                socket.getOutputStream().flush();
-               try {
-                  socket.close();
-                  socket = null;
+            }
+         }
+         catch( SocketTimeoutException e ) {
+            LOGGER.info( "Closing stop monitor connection that didn't send a command within " +
+                  stopConfiguration.getReadTimeout() );
+         }
+         catch( Exception e ) {
+            if( !this.serverSocket.isClosed() ) {
+               LOGGER.error( "Error occurred trying to issue command=" + command, e );
+            }
+         }
+         finally {
+            closeQuietly( socket );
+         }
+      }
+   }
+
+   private void serveSelector( ServerSocketChannel acceptChannel ) throws IOException {
+      Selector selector = Selector.open();
+      this.selector = selector;
+      try {
+         acceptChannel.configureBlocking( false );
+         acceptChannel.register( selector, SelectionKey.OP_ACCEPT );
+         while( acceptChannel.isOpen() ) {
+            selector.select( SELECT_INTERVAL_MS );
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while( selected.hasNext() ) {
+               SelectionKey key = selected.next();
+               selected.remove();
+               if( !key.isValid() ) {
+                  continue;
                }
-               catch( Exception e ) {
-                  LOGGER.debug( "Error trying to close the socket.  Continue anyway.", e );
+               if( key.isAcceptable() ) {
+                  accept( selector, acceptChannel );
                }
-
-               try {
-                  this.serverSocket.close();
+               else {
+                  serve( selector, key, ( ControlConnection )key.attachment() );
                }
-               catch( Exception e ) {
-                  LOGGER.debug( "Error trying to close the socket.  Continue anyway.", e );
+            }
+            closeExpired( selector );
+         }
+      }
+      finally {
+         for( SelectionKey key : selector.keys() ) {
+            if( key.attachment() instanceof ControlConnection ) {
+               ( ( ControlConnection )key.attachment() ).close();
+            }
+         }
+         selector.close();
+      }
+   }
+
+   private void accept( Selector selector, ServerSocketChannel acceptChannel ) throws IOException {
+      SocketChannel channel = acceptChannel.accept();
+      if( channel == null ) {
+         return;
+      }
+      // The accepting channel holds one of the keys.
+      if( selector.keys().size() > stopConfiguration.getMaxConnections() ) {
+         LOGGER.warn( "Too many stop monitor connections open.  Closing the new connection." );
+         channel.close();
+         return;
+      }
+      channel.configureBlocking( false );
+      long deadline = System.nanoTime() + stopConfiguration.getReadTimeout().toNanoseconds();
+      channel.register( selector, SelectionKey.OP_READ, new ControlConnection( channel, deadline ) );
+   }
+
+   /**
+    * Serve whatever a control connection is ready for.
+    * A connection normally carries one command, but after a 'pipeline' command it carries any number of them,
+    * each answered in order, until the client sends 'quit', closes it or is idle for the read timeout.
+    */
+   private void serve( Selector selector, SelectionKey key, ControlConnection connection ) {
+      ControlCommand command = null;
+      try {
+         if( key.isWritable() ) {
+            if( !connection.flush() ) {
+               return;
+            }
+            key.interestOps( SelectionKey.OP_READ );
+         }
+         else if( !connection.read() ) {
+            close( key, connection );
+            return;
+         }
+
+         LineBuffer request = connection.getRequest();
+         for( int newline = request.nextLine(); newline >= 0 && !connection.isClosing();
+               newline = request.nextLine() ) {
+            if( !connection.isAuthorized() ) {
+               if( !isAuthorized( request, newline ) ) {
+                  close( key, connection );
+                  return;
                }
+               request.consume( newline );
+               connection.authorize();
+               continue;
+            }
 
-               LOGGER.info( "Server is running=" + server.isRunning() );
-               exitNow();
-               break;
+            command = request.command( newline );
+            if( command == ControlCommand.WATCH ) {
+               received( command );
+               request.consume( newline );
+               connection.watch();
+               continue;
             }
-            else if( "status".equals( cmd ) ) {
-               if( server.isRunning() || server.isStarting() || server.isStarted() ) {
-                  socket.getOutputStream().write( "OK\r\n".getBytes( Charset.forName( "UTF-8" ) ) );
-                  socket.getOutputStream().flush();
+            if( isStop( command ) || isQuiesce( command ) ) {
+               received( command );
+               // The stop is answered with a blocking write once the server has stopped.
+               key.cancel();
+               selector.selectNow();
+               SocketChannel channel = connection.getChannel();
+               channel.configureBlocking( true );
+               while( !connection.flush() ) {
+                  // Replies to the commands pipelined ahead of the stop go first.
                }
-               else {
-                  socket.getOutputStream().write( "NOT OK\r\n".getBytes( Charset.forName( "UTF-8" ) ) );
-                  socket.getOutputStream().flush();
+               if( isQuiesce( command ) ) {
+                  // The monitor carries on serving while the connectors are quiesced or resumed.
+                  quiesceInBackground( Channels.newOutputStream( channel ), channel, command );
+                  return;
                }
+               // The monitor carries on serving while the server stops, until the stop closes the port.
+               stop( Channels.newOutputStream( channel ), channel, command, connection.isWatching() );
+               return;
+            }
+
+            byte[] reply = reply( command, connection );
+            if( reply != null && !connection.queue( reply ) ) {
+               // Leave the command to be answered once the replies ahead of it are written.
+               if( !connection.flush() ) {
+                  key.interestOps( SelectionKey.OP_WRITE );
+                  return;
+               }
+               continue;
+            }
+            received( command );
+            request.consume( newline );
+            if( command == ControlCommand.PIPELINE ) {
+               connection.pipeline();
+            }
+            else if( command == ControlCommand.QUIT || !connection.isPipelined() ) {
+               connection.closeWhenFlushed();
+            }
+            if( connection.isPipelined() ) {
+               connection.setDeadline( System.nanoTime() + stopConfiguration.getReadTimeout().toNanoseconds() );
             }
          }
-         catch( Exception e ) {
-            LOGGER.error( "Error occurred trying to issue command=" + cmd, e );
+
+         if( !connection.flush() ) {
+            key.interestOps( SelectionKey.OP_WRITE );
+         }
+         else if( connection.isClosing() ) {
+            close( key, connection );
+         }
+         return;
+      }
+      catch( Exception e ) {
+         LOGGER.error( "Error occurred trying to issue command=" + command, e );
+      }
+      close( key, connection );
+   }
+
+   private boolean isStop( ControlCommand command ) {
+      return command == ControlCommand.STOP || command == ControlCommand.DRAIN || command == ControlCommand.HANDOVER;
+   }
+
+   private boolean isQuiesce( ControlCommand command ) {
+      return command == ControlCommand.QUIESCE || command == ControlCommand.RESUME;
+   }
+
+   /**
+    * @return the reply to a command that doesn't stop the server, or null if there is none.
+    */
+   private byte[] reply( ControlCommand command, ControlConnection connection ) {
+      if( command == ControlCommand.STATUS ) {
+         return status();
+      }
+      else if( command == ControlCommand.READY ) {
+         return ready();
+      }
+      else if( command == ControlCommand.PIPELINE ) {
+         return OK;
+      }
+      else if( command == null && connection.isPipelined() ) {
+         return UNKNOWN;
+      }
+      return null;
+   }
+
+   private void closeExpired( Selector selector ) {
+      long now = System.nanoTime();
+      for( SelectionKey key : selector.keys() ) {
+         Object attachment = key.attachment();
+         if( attachment instanceof ControlConnection && ( ( ControlConnection )attachment ).isExpired( now ) ) {
+            LOGGER.info( "Closing stop monitor connection that didn't finish within " +
+                  stopConfiguration.getReadTimeout() );
+            close( key, ( ControlConnection )attachment );
+         }
+      }
+   }
+
+   private void close( SelectionKey key, ControlConnection connection ) {
+      key.cancel();
+      connection.close();
+   }
+
+   private void received( ControlCommand command ) {
+      String name = command == null ? null : command.getName();
+      metrics.command( name );
+      StopEvents.command( name );
+   }
+
+   private boolean isAuthorized( LineBuffer request, int newline ) {
+      boolean authorized = request.lineEquals( keyBytes, newline );
+      StopEvents.authentication( authorized );
+      if( !authorized ) {
+         metrics.rejectedKey();
+         LOGGER.info( "Ignoring stop command with incorrect key.  Check to make sure when the server was " +
+               "started that the configuration used is the same now to stop." );
+         return false;
+      }
+      return true;
+   }
+
+   private byte[] status() {
+      if( server.isRunning() || server.isStarting() || server.isStarted() ) {
+         return OK;
+      }
+      return NOT_OK;
+   }
+
+   private byte[] ready() {
+      if( stopping.get() || state.isOutOfRotation() || ( warmUp != null && !warmUp.isReady() ) ) {
+         return NOT_READY;
+      }
+      return READY;
+   }
+
+   private void quiesceInBackground( final OutputStream out, final Closeable connection, final ControlCommand command ) {
+      Thread quiescing = new Thread( command == ControlCommand.QUIESCE ? "Quiescing" : "Resuming" ) {
+         @Override
+         public void run() {
+            try {
+               quiesce( out, command );
+            }
+            catch( Exception e ) {
+               LOGGER.error( "Error occurred trying to issue command=" + command, e );
+            }
+            finally {
+               closeQuietly( connection );
+            }
+         }
+      };
+      quiescing.setDaemon( true );
+      quiescing.start();
+   }
+
+   /**
+    * Quiesce or resume the server and reply with how it went.  A 'quiesce' drains the way a 'drain' does, then
+    * stops the connectors but leaves the JVM and everything in it running, and a 'resume' reopens the connectors.
+    * Either is answered 'NOT OK' if the server is already quiesced, or isn't, or is being stopped.
+    */
+   private void quiesce( OutputStream out, ControlCommand command ) throws Exception {
+      LifeCycle server1 = getServer();
+      byte[] reply = NOT_OK;
+      if( command == ControlCommand.QUIESCE && !stopping.get() && !state.isOutOfRotation() &&
+            quiesced.compareAndSet( false, true ) ) {
+         StopSequence sequence = sequence( server1 );
+         reply = ( "Quiesced " + sequence.quiesce() + "\r\n" ).getBytes( UTF_8 );
+         publish( InstanceRegistry.State.QUIESCED );
+      }
+      else if( command == ControlCommand.RESUME && quiesced.compareAndSet( true, false ) ) {
+         long start = System.nanoTime();
+         sequence( server1 ).resume();
+         long millis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+         LOGGER.info( "Resumed in " + millis + "ms" );
+         publish( InstanceRegistry.State.SERVING );
+         reply = ( "Resumed " + millis + "ms\r\n" ).getBytes( UTF_8 );
+      }
+      out.write( reply );
+      out.flush();
+   }
+
+   /**
+    * Hand the stop to a non-daemon thread of its own, so that the JVM can't exit before the stop finishes
+    * whatever the monitor runs on, and stopping the server can't stop the thread the stop runs on.  A stop sent
+    * while one is already under way is answered 'NOT OK'.
+    * @param out to reply on.
+    * @param connection the reply is sent on, closed once the reply is sent.
+    * @param command that stops the server.
+    * @param watch true to stream the progress of the stop before the reply.
+    */
+   private void stop( final OutputStream out, final Closeable connection, final ControlCommand command,
+         final boolean watch ) {
+      if( !stopping.compareAndSet( false, true ) ) {
+         try {
+            out.write( NOT_OK );
+            out.flush();
+         }
+         catch( IOException e ) {
+            LOGGER.info( "Error answering command=" + command + " while already stopping.", e );
          }
          finally {
-            if( socket != null ) {
-               try {
-                  socket.close();
-                  socket = null;
-               }
-               catch( Exception e ) {
-                  LOGGER.debug( "Error trying to close the socket.  Continue anyway.", e );
-               }
+            closeQuietly( connection );
+         }
+         return;
+      }
+      Thread stopping = new Thread( "Stopping" ) {
+         @Override
+         public void run() {
+            try {
+               runStop( out, connection, command, watch );
+            }
+            catch( Exception e ) {
+               LOGGER.error( "Error occurred trying to issue command=" + command, e );
+               closeQuietly( connection );
+               closeServerSocket();
+            }
+         }
+      };
+      stopping.setDaemon( false );
+      stopping.start();
+   }
+
+   /**
+    * Stop the server, let the client know and exit.
+    * A 'drain' takes the node out of rotation and waits for the deregistration delay first.  A 'handover'
+    * is answered and the stop port released before stopping, as the instance taking over is already serving
+    * and is waiting to bind the stop port.  A watched stop sends progress frames until the 'Stopped' reply.
+    */
+   private void runStop( OutputStream out, Closeable connection, ControlCommand command, boolean watch )
+         throws Exception {
+      publish( InstanceRegistry.State.STOPPING );
+      if( command == ControlCommand.HANDOVER ) {
+         out.write( HANDING_OVER );
+         out.flush();
+         closeQuietly( connection );
+         closeServerSocket();
+         StopReport report = issueStop( getServer(), false );
+         LOGGER.info( "Handed over " + report );
+      }
+      else {
+         ProgressReporter progress = null;
+         if( watch ) {
+            progress = new ProgressReporter( out, connection, state, inFlight,
+                  stopConfiguration.getProgressInterval().toNanoseconds() );
+            progress.start();
+         }
+         StopReport report;
+         boolean replying = true;
+         try {
+            report = issueStop( getServer(), command == ControlCommand.DRAIN );
+         }
+         finally {
+            if( progress != null ) {
+               replying = progress.finish( stopConfiguration.getReadTimeout().toMilliseconds() );
             }
          }
+
+         if( replying ) {
+            out.write( ( "Stopped " + report + "\r\n" ).getBytes( UTF_8 ) );
+            out.flush();
+         }
+         else {
+            LOGGER.info( "Stopped " + report );
+         }
+         closeQuietly( connection );
+         closeServerSocket();
+      }
+
+      LOGGER.info( "Server is running=" + server.isRunning() );
+      exitNow();
+   }
+
+   /**
+    * Let go of the stop port or socket, and unregister.  The socket file is removed before the socket is closed,
+    * so that an instance taking over can't bind it in between and lose it.
+    */
+   private void closeServerSocket() {
+      closeQuietly( registration );
+      if( socketFile != null && socketFile.exists() && !socketFile.delete() ) {
+         LOGGER.warn( "Could not delete the stop socket " + socketFile + "." );
+      }
+      closeQuietly( this.serverSocket );
+      closeQuietly( this.socketChannel );
+      Selector serving = selector;
+      if( serving != null ) {
+         // Let go of the port now rather than at the next select.
+         serving.wakeup();
+      }
+   }
+
+   private void closeQuietly( Closeable closeable ) {
+      if( closeable != null ) {
+         try {
+            closeable.close();
+         }
+         catch( Exception e ) {
+            LOGGER.debug( "Error trying to close the socket.  Continue anyway.", e );
+         }
       }
    }
 
    /**
     * Add a seam for testing.  I.e. wouldn't be good to actually exit the JVM during testing.
+    * The exit tasks and shutdown hooks run in parallel, and the JVM is halted once the budget of the exit phase
+    * runs out.
     */
    protected void exitNow() {
-      System.exit( 0 );
+      try {
+         exitCoordinator.exit( 0, exitBudget );
+      }
+      catch( InterruptedException e ) {
+         Thread.currentThread().interrupt();
+      }
    }
 
-   private void issueStop( final LifeCycle server1 ) throws Exception {
+   private StopSequence sequence( LifeCycle server1 ) {
+      return new StopSequence( stopConfiguration, server1, inFlight, flushables, drainables, executors, snapshots,
+            state, metrics, reporters );
+   }
+
+   private StopReport issueStop( final LifeCycle server1, boolean drain ) throws Exception {
+      StopReport report = new StopReport();
       if( server1 != null ) {
+         StopSequence sequence = sequence( server1 );
+         StopEvents.Recording recording = StopEvents.startRecording( stopConfiguration.getFlightRecordingDirectory() );
          try {
-            Duration wait = stopConfiguration.getWait();
-            final CountDownLatch countDownLatch = new CountDownLatch( 1 );
-            //  Stop the server in another thread, so that the stop process can be monitored.
-            Thread stopThread = new Thread( "Stopping Server" ) {
-               @Override
-               public void run() {
-                  try {
-                     server1.stop();
-                  }
-                  catch( Exception e ) {
-                     LOGGER.info( "Error occurred while trying to stop the server.  " +
-                           "Ignoring the error for now, as there is likely nothing that " +
-                           "can be done if we stopped.", e );
-                  }
-                  finally {
-                     countDownLatch.countDown();
-                  }
-               }
-            };
-            stopThread.start();
-
-            if( countDownLatch.await( wait.getQuantity(), wait.getUnit() ) ) {
-               LOGGER.info( "Server should be stopped now." );
-            }
+            report = sequence.run( drain );
          }
          catch( InterruptedException e ) {
             LOGGER.info( "Interrupted waiting for server to be terminated.  Will exit now." );
          }
+         finally {
+            recording.finish( !report.isCompleted() );
+         }
+         exitBudget = sequence.getExitBudget();
       }
+      return report;
    }
 }
@@ -0,0 +1,46 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+/**
+ * The phases of the stop sequence, in the order they run.
+ * See {@link PhaseBudgetConfiguration} for how long each phase is given.
+ */
+public enum StopPhase {
+   /**
+    * Keep serving while a load balancer notices the failing health check and moves traffic to other nodes.
+    * Only a 'drain' has this phase, and it lasts {@link StopConfiguration#getDeregistrationDelay()}.
+    */
+   DEREGISTER( "deregister" ),
+   /** Close the connectors so that no new connections are accepted. */
+   STOP_ACCEPTING( "stopAccepting" ),
+   /** Wait for the requests in flight to complete. */
+   DRAIN( "drain" ),
+   /**
+    * Run the tasks queued on the executors of the application, spilling those that don't get to run.
+    * Only runs if there are any, see {@link ExecutorDrainer}.
+    */
+   DRAIN_EXECUTORS( "drainExecutors" ),
+   /**
+    * Write the snapshots of the {@link Snapshottable} components for the next instance to restore.
+    * Only runs if there are any, see {@link SnapshotStore}.
+    */
+   SNAPSHOT( "snapshot" ),
+   /** Stop the server, and with it the managed components of the application. */
+   STOP_MANAGED( "stopManaged" ),
+   /** Flush whatever output should survive the exit. */
+   FLUSH( "flush" ),
+   /** Exit the JVM. */
+   EXIT( "exit" );
+
+   private final String label;
+
+   private StopPhase( String label ) {
+      this.label = label;
+   }
+
+   /**
+    * @return the name used for the phase in configuration and in the stop report.
+    */
+   public String getLabel() {
+      return label;
+   }
+}
@@ -0,0 +1,80 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What happened during a stop sequence.  The report is sent back with the 'Stopped' reply as
+ * space separated name=value pairs, for example
+ * <pre>
+ * stopAccepting=1ms drain=120ms stopManaged=35ms flush=0ms
+ * </pre>
+ * A phase that ran out of its budget is marked with '(timeout)'.
+ */
+public class StopReport {
+   private final Map<String, String> entries = new LinkedHashMap<String, String>();
+   private final Map<StopPhase, Long> phaseNanos = new LinkedHashMap<StopPhase, Long>();
+   private long inFlightAtDeadline;
+   private boolean completed = true;
+
+   /**
+    * Record how long a phase took.
+    * @param phase that ran.
+    * @param nanos it took.
+    * @param completed false if the phase ran out of its budget.
+    */
+   public void phase( StopPhase phase, long nanos, boolean completed ) {
+      phaseNanos.put( phase, nanos );
+      this.completed &= completed;
+      entries.put( phase.getLabel(), TimeUnit.NANOSECONDS.toMillis( nanos ) + "ms" + ( completed ? "" : "(timeout)" ) );
+   }
+
+   /**
+    * Record some other detail of the stop.
+    * @param name of the detail.
+    * @param value of the detail.
+    */
+   public void add( String name, Object value ) {
+      entries.put( name, String.valueOf( value ) );
+   }
+
+   /**
+    * @return how long each phase that ran took, in nanoseconds.
+    */
+   public Map<StopPhase, Long> getPhaseNanos() {
+      return Collections.unmodifiableMap( phaseNanos );
+   }
+
+   /**
+    * @return true if every phase that ran completed within its budget.
+    */
+   public boolean isCompleted() {
+      return completed;
+   }
+
+   /**
+    * @return the requests still in flight when the stop ran out of time, zero if it didn't.
+    */
+   public long getInFlightAtDeadline() {
+      return inFlightAtDeadline;
+   }
+
+   public void setInFlightAtDeadline( long inFlightAtDeadline ) {
+      this.inFlightAtDeadline = inFlightAtDeadline;
+      add( "inFlight", inFlightAtDeadline );
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder result = new StringBuilder();
+      for( Map.Entry<String, String> entry : entries.entrySet() ) {
+         if( result.length() > 0 ) {
+            result.append( ' ' );
+         }
+         result.append( entry.getKey() ).append( '=' ).append( entry.getValue() );
+      }
+      return result.toString();
+   }
+}
@@ -0,0 +1,59 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the {@link StopCommand} went for one server.
+ */
+class StopResult {
+   private final String target;
+   private final int exitCode;
+   private final long nanos;
+   private final String response;
+   private final boolean skipped;
+
+   /**
+    * @param target the {@link StopMonitor} is on, such as 'port=8181'.
+    * @param exitCode 0 if the server stopped, otherwise the {@link StopCommand} error code.
+    * @param nanos from connecting to the reply or the failure.
+    * @param response from the {@link StopMonitor} or null if there wasn't one.
+    */
+   StopResult( String target, int exitCode, long nanos, String response ) {
+      this( target, exitCode, nanos, response, false );
+   }
+
+   private StopResult( String target, int exitCode, long nanos, String response, boolean skipped ) {
+      this.target = target;
+      this.exitCode = exitCode;
+      this.nanos = nanos;
+      this.response = response;
+      this.skipped = skipped;
+   }
+
+   /**
+    * @param target the {@link StopMonitor} is on.
+    * @param exitCode to report for the server, as it is still running.
+    * @return the result for a server that wasn't asked to stop, as the rolling stop was halted first.
+    */
+   static StopResult skipped( String target, int exitCode ) {
+      return new StopResult( target, exitCode, 0, null, true );
+   }
+
+   /**
+    * @return 0 if the server stopped, the error code otherwise.
+    */
+   int getExitCode() {
+      return exitCode;
+   }
+
+   boolean isStopped() {
+      return exitCode == 0;
+   }
+
+   @Override
+   public String toString() {
+      String result = skipped ? "skipped" : exitCode == 0 ? "stopped" : "failed(" + exitCode + ")";
+      return target + " result=" + result + " millis=" + TimeUnit.NANOSECONDS.toMillis( nanos ) +
+            ( response != null ? " " + response : "" );
+   }
+}
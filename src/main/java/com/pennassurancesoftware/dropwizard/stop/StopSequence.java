@@ -0,0 +1,530 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import io.dropwizard.util.Duration;
+
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.ssl.SslConnection;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpChannelState;
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.ScheduledReporter;
+
+/**
+ * Take the server through each {@link StopPhase} up to, but not including, the exit.
+ * Each phase runs within its budget from the {@link PhaseBudgetConfiguration} plus whatever the
+ * phases before it didn't use, and no phase runs past the overall wait of the {@link StopConfiguration}.
+ */
+class StopSequence {
+   private static final Logger LOGGER = LoggerFactory.getLogger( StopSequence.class );
+   private static final long IDLE_SWEEP_NANOS = TimeUnit.MILLISECONDS.toNanos( 250 );
+
+   private final StopConfiguration stopConfiguration;
+   private final LifeCycle server;
+   private final InFlightTracker inFlight;
+   private final List<Flushable> flushables;
+   private final List<Drainable> drainables;
+   private final ExecutorDrainer executors;
+   private final SnapshotStore snapshots;
+   private final StopState state;
+   private final StopMetrics metrics;
+   private final List<ScheduledReporter> reporters;
+   private long carried;
+
+   StopSequence( StopConfiguration stopConfiguration, LifeCycle server, InFlightTracker inFlight,
+         List<Flushable> flushables, List<Drainable> drainables, ExecutorDrainer executors, SnapshotStore snapshots,
+         StopState state, StopMetrics metrics, List<ScheduledReporter> reporters ) {
+      this.stopConfiguration = stopConfiguration;
+      this.server = server;
+      this.inFlight = inFlight;
+      this.flushables = flushables;
+      this.drainables = drainables;
+      this.executors = executors;
+      this.snapshots = snapshots;
+      this.state = state;
+      this.metrics = metrics;
+      this.reporters = reporters;
+   }
+
+   /**
+    * Run the phases before the exit.
+    * @param drain true to start with the {@link StopPhase#DEREGISTER} phase.
+    * @return what happened.
+    * @throws InterruptedException if interrupted while waiting on a phase.
+    */
+   StopReport run( boolean drain ) throws InterruptedException {
+      return run( drain, StopPhase.FLUSH );
+   }
+
+   /**
+    * Take the node out of rotation, stop accepting and drain the way a 'drain' does, then stop the connectors, but
+    * leave the server and its managed components running, so the JVM stays warm for a {@link #resume()}.
+    * @return what happened.
+    * @throws InterruptedException if interrupted while waiting on a phase.
+    */
+   StopReport quiesce() throws InterruptedException {
+      StopReport report = run( true, StopPhase.DRAIN );
+      long start = System.nanoTime();
+      for( Connector connector : connectors() ) {
+         try {
+            connector.stop();
+         }
+         catch( Exception e ) {
+            LOGGER.info( "Error occurred while trying to stop " + connector + ".  Continuing the quiesce.", e );
+         }
+      }
+      report.add( "connectors", TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) + "ms" );
+      return report;
+   }
+
+   /**
+    * Reopen the connectors stopped by a {@link #quiesce()} and put the node back in rotation.
+    * @throws Exception if a connector couldn't be started.
+    */
+   void resume() throws Exception {
+      for( Connector connector : connectors() ) {
+         connector.start();
+      }
+      state.setPhase( null );
+      state.setOutOfRotation( false );
+   }
+
+   /**
+    * Run the phases up to and including the last one.
+    */
+   private StopReport run( boolean drain, StopPhase last ) throws InterruptedException {
+      StopReport report = new StopReport();
+      long overall = System.nanoTime() + stopConfiguration.getWait().toNanoseconds() +
+            ( drain ? stopConfiguration.getDeregistrationDelay().toNanoseconds() : 0 );
+      state.setDeadline( overall );
+      // Set before the phase, so that a request never sees the deadline of an earlier stop.
+      state.setDrainDeadline( overall );
+      state.setOutOfRotation( true );
+      if( drain ) {
+         state.setPhase( StopPhase.DEREGISTER );
+         long start = System.nanoTime();
+         StopEvents.Span span = StopEvents.phase( StopPhase.DEREGISTER,
+               stopConfiguration.getDeregistrationDelay().toNanoseconds() );
+         LOGGER.info( "Out of rotation.  Waiting " + stopConfiguration.getDeregistrationDelay() +
+               " for traffic to move to other nodes." );
+         TimeUnit.NANOSECONDS.sleep( stopConfiguration.getDeregistrationDelay().toNanoseconds() );
+         span.end( true );
+         report.phase( StopPhase.DEREGISTER, System.nanoTime() - start, true );
+      }
+
+      long begun = System.nanoTime();
+      long deadline = begun + stopConfiguration.getWait().toNanoseconds();
+      state.setDeadline( deadline );
+      state.setDrainDeadline( deadline );
+      boolean completed = true;
+      for( StopPhase phase : StopPhase.values() ) {
+         if( phase == StopPhase.DEREGISTER || ( phase == StopPhase.DRAIN_EXECUTORS && !executors.isEnabled() ) ||
+               ( phase == StopPhase.SNAPSHOT && !snapshots.isEnabled() ) ) {
+            continue;
+         }
+         if( phase.compareTo( last ) > 0 ) {
+            if( phase == StopPhase.EXIT ) {
+               state.setPhase( phase );
+            }
+            break;
+         }
+         state.setPhase( phase );
+         if( phase == StopPhase.STOP_MANAGED ) {
+            // Ahead of the phase, as the metrics reporters are stopped along with the managed components.
+            metrics.stopped( System.nanoTime() - begun );
+         }
+         long budget = budget( phase, deadline );
+         if( phase == StopPhase.DRAIN ) {
+            budget = drainDeadline( budget, report );
+            state.setDrainDeadline( System.nanoTime() + budget );
+         }
+         long start = System.nanoTime();
+         StopEvents.Span span = StopEvents.phase( phase, budget );
+         boolean phaseCompleted = run( phase, budget, report );
+         span.end( phaseCompleted );
+         long elapsed = System.nanoTime() - start;
+         carried = Math.max( 0, budget - elapsed );
+         report.phase( phase, elapsed, phaseCompleted );
+         completed &= phaseCompleted;
+         if( phase == StopPhase.DRAIN ) {
+            metrics.drained( elapsed, phaseCompleted ? 0 : inFlight.get() );
+         }
+      }
+
+      if( completed ) {
+         LOGGER.info( ( last == StopPhase.FLUSH ? "Server should be stopped now.  " : "Drained.  " ) + report );
+      }
+      else {
+         report.setInFlightAtDeadline( inFlight.get() );
+         LOGGER.info( "Gave up waiting for the server to " + ( last == StopPhase.FLUSH ? "stop" : "drain" ) + " after " +
+               stopConfiguration.getWait() + " with " +
+               report.getInFlightAtDeadline() + " request(s) still in flight.  " + report );
+      }
+      return report;
+   }
+
+   /**
+    * @return the nanoseconds the exit may take, including what the phases before it didn't use.
+    */
+   long getExitBudget() {
+      Duration exit = stopConfiguration.getPhases().getBudget( StopPhase.EXIT );
+      return ( exit == null ? ExitCoordinator.DEFAULT_BUDGET_NANOS : exit.toNanoseconds() ) + carried;
+   }
+
+   private long budget( StopPhase phase, long deadline ) {
+      long remaining = Math.max( 0, deadline - System.nanoTime() );
+      Duration budget = stopConfiguration.getPhases().getBudget( phase );
+      if( budget == null ) {
+         return remaining;
+      }
+      return Math.min( budget.toNanoseconds() + carried, remaining );
+   }
+
+   /**
+    * Cut the drain short at the configured percentile of the request latency, if there is one.
+    * @param budget of the drain.
+    * @param report to record the deadline chosen on.
+    * @return the nanoseconds the drain may take.
+    */
+   private long drainDeadline( long budget, StopReport report ) {
+      Double percentile = stopConfiguration.getDrainPercentile();
+      if( percentile == null ) {
+         return budget;
+      }
+      LatencyHistogram latencies = inFlight.getLatencies();
+      String basis;
+      if( latencies.getCount() < stopConfiguration.getDrainMinSamples() ) {
+         basis = "too few requests";
+      }
+      else {
+         long latency = latencies.getValueAtPercentile( percentile );
+         if( latency < budget ) {
+            budget = latency;
+            basis = "p" + percentile;
+         }
+         else {
+            basis = "budget";
+         }
+      }
+      report.add( "deadline", TimeUnit.NANOSECONDS.toMillis( budget ) + "ms(" + basis + ")" );
+      return budget;
+   }
+
+   private boolean run( StopPhase phase, long budget, StopReport report ) throws InterruptedException {
+      switch( phase ) {
+         case STOP_ACCEPTING:
+            return stopAccepting( budget );
+         case DRAIN:
+            return drain( budget, report );
+         case DRAIN_EXECUTORS:
+            return executors.drain( System.nanoTime() + budget, report );
+         case SNAPSHOT:
+            return snapshot( budget, report );
+         case STOP_MANAGED:
+            return runBounded( "Stopping Server", new Runnable() {
+               @Override
+               public void run() {
+                  report();
+                  try {
+                     server.stop();
+                  }
+                  catch( Exception e ) {
+                     LOGGER.info( "Error occurred while trying to stop the server.  " +
+                           "Ignoring the error for now, as there is likely nothing that " +
+                           "can be done if we stopped.", e );
+                  }
+               }
+            }, budget );
+         case FLUSH:
+            return runBounded( "Flushing", new Runnable() {
+               @Override
+               public void run() {
+                  flush();
+               }
+            }, budget );
+         default:
+            return true;
+      }
+   }
+
+   /**
+    * Wait for the requests in flight to complete while the long-lived sessions are closed in the background.
+    * Idle keep-alive connections are closed first.  Asynchronous requests, such as long-polls, that are still
+    * waiting once the async grace has passed are completed early.
+    */
+   private boolean drain( long budget, StopReport report ) throws InterruptedException {
+      long deadline = System.nanoTime() + budget;
+      AtomicInteger idleClosed = new AtomicInteger( closeIdleConnections() );
+      SessionCloser closer = null;
+      if( !drainables.isEmpty() ) {
+         closer = new SessionCloser( drainables, stopConfiguration.getDrainBatchSize(),
+               stopConfiguration.getDrainBatchInterval().toNanoseconds(), deadline );
+         closer.start();
+      }
+
+      long grace = Math.min( stopConfiguration.getAsyncGrace().toNanoseconds(), budget );
+      boolean idle = awaitIdle( System.nanoTime() + grace, idleClosed );
+      if( !idle && inFlight.getAsync() > 0 ) {
+         report.add( "asyncCompleted", inFlight.completeAsync() );
+      }
+      if( !idle ) {
+         idle = awaitIdle( deadline, idleClosed );
+      }
+      if( server instanceof Server ) {
+         report.add( "idleClosed", idleClosed.get() );
+      }
+
+      if( closer == null ) {
+         return idle;
+      }
+      boolean closed = closer.await( Math.max( 0, deadline - System.nanoTime() ) );
+      report.add( "sessionsClosed", closer.getClosed() + "/" + closer.getTotal() );
+      return idle && closed;
+   }
+
+   private boolean snapshot( long budget, StopReport report ) throws InterruptedException {
+      final long deadline = System.nanoTime() + budget;
+      final AtomicInteger written = new AtomicInteger();
+      boolean completed = runBounded( "Writing Snapshots", new Runnable() {
+         @Override
+         public void run() {
+            written.set( snapshots.write( deadline ) );
+         }
+      }, budget );
+      report.add( "snapshots", written.get() + "/" + snapshots.size() );
+      return completed;
+   }
+
+   /**
+    * Wait for the requests in flight to complete, closing the keep-alive connections that have gone idle every
+    * so often, as those that were finishing a response when the drain started only go idle afterwards.
+    * @param deadline in {@link System#nanoTime()} terms.
+    * @param idleClosed the count of connections closed, added to.
+    * @return true if no requests are in flight.
+    */
+   private boolean awaitIdle( long deadline, AtomicInteger idleClosed ) throws InterruptedException {
+      while( true ) {
+         long remaining = Math.max( 0, deadline - System.nanoTime() );
+         if( inFlight.awaitIdle( Math.min( remaining, IDLE_SWEEP_NANOS ), TimeUnit.NANOSECONDS ) ) {
+            return true;
+         }
+         if( remaining <= IDLE_SWEEP_NANOS ) {
+            return false;
+         }
+         idleClosed.addAndGet( closeIdleConnections() );
+      }
+   }
+
+   /**
+    * Close the keep-alive connections that are idle between requests, so that clients open their next ones to
+    * other nodes rather than reusing one that is about to be cut.  The busy ones close once their response is
+    * sent, as the {@link InFlightFilter} asks for 'Connection: close' once the stop is under way.
+    * @return the number of connections closed.
+    */
+   private int closeIdleConnections() {
+      int closed = 0;
+      for( Connector connector : connectors() ) {
+         for( EndPoint endPoint : connector.getConnectedEndPoints() ) {
+            Connection connection = endPoint.getConnection();
+            if( connection instanceof SslConnection ) {
+               connection = ( ( SslConnection )connection ).getDecryptedEndPoint().getConnection();
+            }
+            if( connection instanceof HttpConnection && isIdle( ( HttpConnection )connection ) ) {
+               endPoint.close();
+               closed++;
+            }
+         }
+      }
+      return closed;
+   }
+
+   /**
+    * @return true if the connection is between requests, having not started to read the next one.
+    */
+   private static boolean isIdle( HttpConnection connection ) {
+      return connection.getParser().isStart() &&
+            connection.getHttpChannel().getState().getState() == HttpChannelState.State.IDLE;
+   }
+
+   private Connector[] connectors() {
+      return server instanceof Server ? ( ( Server )server ).getConnectors() : new Connector[0];
+   }
+
+   private boolean stopAccepting( long budget ) throws InterruptedException {
+      long deadline = System.nanoTime() + budget;
+      List<Future<Void>> shutdowns = new ArrayList<Future<Void>>();
+      for( Connector connector : connectors() ) {
+         shutdowns.add( connector.shutdown() );
+      }
+      for( Future<Void> shutdown : shutdowns ) {
+         try {
+            shutdown.get( Math.max( 0, deadline - System.nanoTime() ), TimeUnit.NANOSECONDS );
+         }
+         catch( TimeoutException e ) {
+            return false;
+         }
+         catch( ExecutionException e ) {
+            LOGGER.info( "Error occurred while trying to stop accepting connections.  Continuing the stop.", e );
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Have the metrics reporters report once more, with the stop recorded, before they are stopped along with the
+    * managed components, as they don't report on being stopped.
+    */
+   private void report() {
+      for( ScheduledReporter reporter : reporters ) {
+         try {
+            reporter.report();
+         }
+         catch( Exception e ) {
+            LOGGER.info( "Error occurred while reporting from " + reporter + ".  Continuing the stop.", e );
+         }
+      }
+   }
+
+   private void flush() {
+      System.out.flush();
+      System.err.flush();
+      for( Flushable flushable : flushables ) {
+         try {
+            flushable.flush();
+         }
+         catch( Exception e ) {
+            LOGGER.info( "Error occurred while flushing " + flushable + ".  Continuing the stop.", e );
+         }
+      }
+   }
+
+   /**
+    * Close the sessions of the {@link Drainable}s a batch at a time, pausing between batches, until they are all
+    * closed, no more will close or the deadline passes.
+    */
+   private static class SessionCloser extends Thread {
+      private final List<Drainable> drainables;
+      private final int batchSize;
+      private final long intervalNanos;
+      private final long deadline;
+      private final CountDownLatch done = new CountDownLatch( 1 );
+      private final AtomicInteger closed = new AtomicInteger();
+      private volatile int total;
+      private volatile boolean allClosed;
+
+      SessionCloser( List<Drainable> drainables, int batchSize, long intervalNanos, long deadline ) {
+         super( "Closing Sessions" );
+         setDaemon( true );
+         this.drainables = drainables;
+         this.batchSize = batchSize;
+         this.intervalNanos = intervalNanos;
+         this.deadline = deadline;
+      }
+
+      @Override
+      public void run() {
+         try {
+            int open = open();
+            total = open;
+            while( open > 0 && System.nanoTime() < deadline ) {
+               closeBatch();
+               open = open();
+               if( open == 0 ) {
+                  break;
+               }
+               // A batch that closed nothing is retried, since sessions can be slow to close or busy for a moment.
+               TimeUnit.NANOSECONDS.sleep( Math.min( intervalNanos, Math.max( 0, deadline - System.nanoTime() ) ) );
+            }
+            allClosed = open == 0;
+            if( !allClosed ) {
+               LOGGER.info( open + " session(s) still open at the end of the drain." );
+            }
+         }
+         catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+         }
+         finally {
+            done.countDown();
+         }
+      }
+
+      boolean await( long nanos ) throws InterruptedException {
+         return done.await( nanos, TimeUnit.NANOSECONDS ) && allClosed;
+      }
+
+      int getClosed() {
+         return closed.get();
+      }
+
+      int getTotal() {
+         return total;
+      }
+
+      private void closeBatch() {
+         int left = batchSize;
+         for( Drainable drainable : drainables ) {
+            if( left == 0 ) {
+               break;
+            }
+            try {
+               int max = Math.min( drainable.getOpenSessions(), left );
+               if( max > 0 ) {
+                  closed.addAndGet( drainable.closeSessions( max ) );
+                  left -= max;
+               }
+            }
+            catch( Exception e ) {
+               LOGGER.info( "Error occurred while closing the sessions of " + drainable + ".  Continuing the stop.", e );
+            }
+         }
+      }
+
+      private int open() {
+         int open = 0;
+         for( Drainable drainable : drainables ) {
+            try {
+               open += drainable.getOpenSessions();
+            }
+            catch( Exception e ) {
+               LOGGER.info( "Error occurred while counting the sessions of " + drainable + ".", e );
+            }
+         }
+         return open;
+      }
+   }
+
+   /**
+    * Run a task in another thread, so that it can be given up on once its budget runs out.
+    */
+   private boolean runBounded( String name, final Runnable task, long budget ) throws InterruptedException {
+      final CountDownLatch countDownLatch = new CountDownLatch( 1 );
+      Thread thread = new Thread( name ) {
+         @Override
+         public void run() {
+            try {
+               task.run();
+            }
+            finally {
+               countDownLatch.countDown();
+            }
+         }
+      };
+      thread.start();
+      return countDownLatch.await( budget, TimeUnit.NANOSECONDS );
+   }
+}
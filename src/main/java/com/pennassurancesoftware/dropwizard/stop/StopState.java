@@ -0,0 +1,83 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+/**
+ * Where the {@link StopMonitor} is in stopping the server, shared with the parts of the bundle
+ * that serve requests while the stop is under way.
+ */
+public class StopState {
+   private volatile boolean outOfRotation;
+   private volatile StopPhase phase;
+   private volatile long deadline;
+   private volatile long drainDeadline;
+
+   /**
+    * @return true once the node should no longer be sent traffic.
+    */
+   public boolean isOutOfRotation() {
+      return outOfRotation;
+   }
+
+   public void setOutOfRotation( boolean outOfRotation ) {
+      this.outOfRotation = outOfRotation;
+   }
+
+   /**
+    * @return the phase of the stop that is running, or null if the server isn't being stopped.
+    */
+   public StopPhase getPhase() {
+      return phase;
+   }
+
+   /**
+    * @return true once the stop has started to stop accepting, so new requests should be turned away.
+    */
+   public boolean isShedding() {
+      StopPhase current = phase;
+      return current != null && current.compareTo( StopPhase.STOP_ACCEPTING ) >= 0;
+   }
+
+   public void setPhase( StopPhase phase ) {
+      this.phase = phase;
+   }
+
+   /**
+    * @return the nanoseconds left before the stop gives up waiting, zero if it isn't under way or has run out.
+    */
+   public long getRemainingNanos() {
+      if( phase == null ) {
+         return 0;
+      }
+      return Math.max( 0, deadline - System.nanoTime() );
+   }
+
+   /**
+    * @param deadline in {@link System#nanoTime()} terms, after which the stop gives up waiting.
+    */
+   public void setDeadline( long deadline ) {
+      this.deadline = deadline;
+   }
+
+   /**
+    * @return the nanoseconds left before the {@link StopPhase#DRAIN} phase stops waiting for the requests in
+    *         flight, {@link Long#MAX_VALUE} if the server isn't being stopped and zero once the drain is over.
+    *         Until the drain starts it is the most it could be.
+    */
+   public long getDrainRemainingNanos() {
+      StopPhase current = phase;
+      if( current == null ) {
+         return Long.MAX_VALUE;
+      }
+      if( current.compareTo( StopPhase.DRAIN ) > 0 ) {
+         return 0;
+      }
+      return Math.max( 0, drainDeadline - System.nanoTime() );
+   }
+
+   /**
+    * @param drainDeadline in {@link System#nanoTime()} terms, after which the drain stops waiting for the
+    *                      requests in flight.
+    */
+   public void setDrainDeadline( long drainDeadline ) {
+      this.drainDeadline = drainDeadline;
+   }
+}
@@ -0,0 +1,325 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.BindException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection to a {@link StopMonitor} over a Unix domain socket, dressed as a {@link Socket} so that it is used
+ * the same way as one over TCP, read timeout and all.  Also binds the socket the monitor serves.<p/>
+ * Unix domain socket channels came with Java 16, so they are reached by reflection and
+ * {@link #isSupported()} is false on older runtimes.
+ */
+class UnixDomainSocket extends Socket {
+   /** Replaced in a socket path with the id of the process, giving each instance a socket of its own. */
+   static final String PID = "{pid}";
+
+   private static final Object UNIX;
+   private static final Method ADDRESS_OF;
+   private static final Method OPEN_SERVER;
+   private static final Method OPEN;
+   private static final Method BIND;
+
+   static {
+      Object unix = null;
+      Method addressOf = null;
+      Method openServer = null;
+      Method open = null;
+      Method bind = null;
+      try {
+         Class<?> family = Class.forName( "java.net.ProtocolFamily" );
+         for( Object constant : Class.forName( "java.net.StandardProtocolFamily" ).getEnumConstants() ) {
+            if( "UNIX".equals( ( ( Enum<?> )constant ).name() ) ) {
+               unix = constant;
+            }
+         }
+         addressOf = Class.forName( "java.net.UnixDomainSocketAddress" ).getMethod( "of", String.class );
+         openServer = ServerSocketChannel.class.getMethod( "open", family );
+         open = SocketChannel.class.getMethod( "open", family );
+         bind = ServerSocketChannel.class.getMethod( "bind", SocketAddress.class, int.class );
+      }
+      catch( Exception e ) {
+         unix = null;
+      }
+      UNIX = unix;
+      ADDRESS_OF = addressOf;
+      OPEN_SERVER = openServer;
+      OPEN = open;
+      BIND = bind;
+   }
+
+   private final SocketChannel channel;
+   private final Selector selector;
+   private final InputStream in = new ChannelInputStream();
+   private final OutputStream out = new ChannelOutputStream();
+   private volatile int timeout;
+
+   private UnixDomainSocket( SocketChannel channel ) throws IOException {
+      this.channel = channel;
+      channel.configureBlocking( false );
+      this.selector = Selector.open();
+   }
+
+   /**
+    * @return true if the runtime has Unix domain socket channels.
+    */
+   static boolean isSupported() {
+      return UNIX != null;
+   }
+
+   /**
+    * @param path of the socket, possibly with {@link #PID} in it.
+    * @param pid of the process that serves the socket.
+    * @return the socket file.
+    */
+   static File resolve( String path, String pid ) {
+      return new File( path.replace( PID, pid ) );
+   }
+
+   /**
+    * @return the id of this process.
+    */
+   static String pid() {
+      String name = ManagementFactory.getRuntimeMXBean().getName();
+      int at = name.indexOf( '@' );
+      return at > 0 ? name.substring( 0, at ) : name;
+   }
+
+   /**
+    * Connect to the monitor serving a socket.
+    * @param path of the socket.
+    * @return the connection.
+    * @throws IOException if nothing is serving the socket.
+    */
+   static UnixDomainSocket connect( File path ) throws IOException {
+      SocketChannel channel = ( SocketChannel )invoke( OPEN, null, UNIX );
+      try {
+         channel.connect( address( path ) );
+         return new UnixDomainSocket( channel );
+      }
+      catch( IOException e ) {
+         channel.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Bind a socket, readable and writable by the owner only, so that the file permissions keep other users from
+    * connecting.  The socket is bound in a directory only the owner can enter, restricted there and then moved to
+    * its path, so that there is no moment when it is open to others.  A socket file left behind by an instance
+    * that has gone is replaced.
+    * @param path of the socket.
+    * @param backlog of connections.
+    * @return the channel to accept connections on.
+    * @throws BindException if another instance is serving the socket.
+    * @throws IOException if the socket couldn't be bound or restricted to the owner.
+    */
+   static ServerSocketChannel bind( File path, int backlog ) throws IOException {
+      if( path.exists() ) {
+         if( isServed( path ) ) {
+            throw new BindException( "The stop socket " + path + " is in use." );
+         }
+         if( !path.delete() ) {
+            throw new BindException( "Could not delete the stale stop socket " + path + "." );
+         }
+      }
+      File parent = path.getAbsoluteFile().getParentFile();
+      File directory = new File( parent, ".stop-" + pid() );
+      File bound = new File( directory, path.getName() );
+      ServerSocketChannel channel = ( ServerSocketChannel )invoke( OPEN_SERVER, null, UNIX );
+      try {
+         createPrivateDirectory( directory );
+         invoke( BIND, channel, address( bound ), backlog );
+         restrict( bound, "rw-------" );
+         Files.move( bound.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE );
+      }
+      catch( IOException e ) {
+         channel.close();
+         bound.delete();
+         throw e;
+      }
+      finally {
+         directory.delete();
+      }
+      return channel;
+   }
+
+   private static void createPrivateDirectory( File directory ) throws IOException {
+      if( directory.exists() ) {
+         throw new IOException( "Could not bind the stop socket, as " + directory + " is in the way." );
+      }
+      if( !directory.mkdir() ) {
+         throw new IOException( "Could not create " + directory + " to bind the stop socket in." );
+      }
+      restrict( directory, "rwx------" );
+   }
+
+   private static void restrict( File file, String permissions ) throws IOException {
+      try {
+         Files.setPosixFilePermissions( file.toPath(), PosixFilePermissions.fromString( permissions ) );
+      }
+      catch( UnsupportedOperationException e ) {
+         throw new IOException( "Could not restrict " + file + " to its owner, the file system doesn't have " +
+               "POSIX permissions.", e );
+      }
+   }
+
+   private static boolean isServed( File path ) {
+      try {
+         connect( path ).close();
+         return true;
+      }
+      catch( IOException e ) {
+         return false;
+      }
+   }
+
+   private static SocketAddress address( File path ) throws IOException {
+      return ( SocketAddress )invoke( ADDRESS_OF, null, path.getPath() );
+   }
+
+   private static Object invoke( Method method, Object target, Object... args ) throws IOException {
+      if( !isSupported() ) {
+         throw new IOException( "Unix domain sockets need Java 16 or later." );
+      }
+      try {
+         return method.invoke( target, args );
+      }
+      catch( InvocationTargetException e ) {
+         if( e.getCause() instanceof IOException ) {
+            throw ( IOException )e.getCause();
+         }
+         throw new IOException( "Error occurred using a Unix domain socket.", e.getCause() );
+      }
+      catch( IllegalAccessException e ) {
+         throw new IOException( "Error occurred using a Unix domain socket.", e );
+      }
+   }
+
+   @Override
+   public InputStream getInputStream() {
+      return in;
+   }
+
+   @Override
+   public OutputStream getOutputStream() {
+      return out;
+   }
+
+   @Override
+   public void setSoTimeout( int timeout ) {
+      this.timeout = timeout;
+   }
+
+   @Override
+   public int getSoTimeout() {
+      return timeout;
+   }
+
+   @Override
+   public boolean isConnected() {
+      return channel.isConnected();
+   }
+
+   @Override
+   public boolean isClosed() {
+      return !channel.isOpen();
+   }
+
+   @Override
+   public void close() throws IOException {
+      try {
+         selector.close();
+      }
+      finally {
+         channel.close();
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "UnixDomainSocket[" + channel + "]";
+   }
+
+   /**
+    * Wait for the channel to be ready.
+    * @param ops to wait for.
+    * @param millis the most to wait, or 0 to wait for as long as it takes.
+    */
+   private void await( int ops, long millis ) throws IOException {
+      SelectionKey key = channel.keyFor( selector );
+      if( key == null ) {
+         channel.register( selector, ops );
+      }
+      else {
+         key.interestOps( ops );
+      }
+      selector.select( millis );
+      selector.selectedKeys().clear();
+   }
+
+   private class ChannelInputStream extends InputStream {
+      @Override
+      public int read() throws IOException {
+         byte[] b = new byte[1];
+         return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read( byte[] b, int off, int len ) throws IOException {
+         if( len == 0 ) {
+            return 0;
+         }
+         ByteBuffer buffer = ByteBuffer.wrap( b, off, len );
+         long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeout );
+         while( true ) {
+            int read = channel.read( buffer );
+            if( read != 0 ) {
+               return read;
+            }
+            long remaining = 0;
+            if( timeout > 0 ) {
+               remaining = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+               if( remaining < 1 ) {
+                  throw new SocketTimeoutException( "Read timed out" );
+               }
+            }
+            await( SelectionKey.OP_READ, remaining );
+         }
+      }
+   }
+
+   private class ChannelOutputStream extends OutputStream {
+      @Override
+      public void write( int b ) throws IOException {
+         write( new byte[] { ( byte )b }, 0, 1 );
+      }
+
+      @Override
+      public void write( byte[] b, int off, int len ) throws IOException {
+         ByteBuffer buffer = ByteBuffer.wrap( b, off, len );
+         while( buffer.hasRemaining() ) {
+            if( channel.write( buffer ) == 0 ) {
+               await( SelectionKey.OP_WRITE, 0 );
+            }
+         }
+      }
+   }
+}
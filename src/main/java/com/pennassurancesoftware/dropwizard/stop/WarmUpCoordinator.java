@@ -0,0 +1,150 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import io.dropwizard.lifecycle.ServerLifecycleListener;
+import io.dropwizard.util.Duration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.server.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Warm the application up once the server has started, by running the workloads registered here over and over,
+ * so that the JIT has compiled the hot paths before real traffic arrives.  Until the warm-up is done the
+ * 'ready' command of the {@link StopMonitor} answers 'NOT READY' and the {@link WarmUpHealthCheck} fails, so
+ * that a load balancer holds traffic back.<p/>
+ * A workload should exercise the application's own resources the way its clients do, for example by calling
+ * them over HTTP on the local port, and be safe to run many times.  Each workload is run for the configured
+ * number of iterations, all within the configured budget, after which the application is ready regardless.
+ */
+public class WarmUpCoordinator implements ServerLifecycleListener {
+   private static final Logger LOGGER = LoggerFactory.getLogger( WarmUpCoordinator.class );
+
+   private final Map<String, Runnable> workloads = new LinkedHashMap<String, Runnable>();
+   private final AtomicLong iterations = new AtomicLong();
+   private volatile long warmUpNanos;
+   private volatile boolean ready;
+   private int iterationsPerWorkload = 100;
+   private long budgetNanos = TimeUnit.MINUTES.toNanos( 2 );
+
+   /**
+    * Register a workload to warm up with.
+    * @param name of the workload, unique within the coordinator.
+    * @param workload to run.
+    */
+   public synchronized void register( String name, Runnable workload ) {
+      if( workloads.containsKey( name ) ) {
+         throw new IllegalArgumentException( "A warm-up workload named '" + name + "' is already registered." );
+      }
+      workloads.put( name, workload );
+   }
+
+   /**
+    * @param iterationsPerWorkload the number of times each workload is run.
+    */
+   public void setIterations( int iterationsPerWorkload ) {
+      this.iterationsPerWorkload = iterationsPerWorkload;
+   }
+
+   /**
+    * @param budget the most the warm-up may take.
+    */
+   public void setBudget( Duration budget ) {
+      this.budgetNanos = budget.toNanoseconds();
+   }
+
+   /**
+    * Report the progress of the warm-up under the name of the {@link StopMonitor}: the {@code warm-up.iterations}
+    * run so far and the {@code warm-up.duration} in milliseconds once done.
+    * @param registry to register the metrics with.
+    */
+   public void setMetricRegistry( MetricRegistry registry ) {
+      registry.register( name( StopMonitor.class, "warm-up", "iterations" ), new Gauge<Long>() {
+         @Override
+         public Long getValue() {
+            return iterations.get();
+         }
+      } );
+      registry.register( name( StopMonitor.class, "warm-up", "duration" ), new Gauge<Long>() {
+         @Override
+         public Long getValue() {
+            return TimeUnit.NANOSECONDS.toMillis( warmUpNanos );
+         }
+      } );
+   }
+
+   /**
+    * @return true once the warm-up is done.
+    */
+   public boolean isReady() {
+      return ready;
+   }
+
+   /**
+    * @return the number of times a workload has been run so far.
+    */
+   public long getIterations() {
+      return iterations.get();
+   }
+
+   /**
+    * Warm up in the background, as the server has to be serving for the workloads to call it.
+    */
+   @Override
+   public void serverStarted( Server server ) {
+      Thread warming = new Thread( "Warming Up" ) {
+         @Override
+         public void run() {
+            warmUp();
+         }
+      };
+      warming.setDaemon( true );
+      warming.start();
+   }
+
+   /**
+    * Run the workloads, then report the application ready.
+    */
+   public void warmUp() {
+      long start = System.nanoTime();
+      long deadline = start + budgetNanos;
+      Map<String, Runnable> running;
+      synchronized( this ) {
+         running = new LinkedHashMap<String, Runnable>( workloads );
+      }
+      Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+      try {
+         for( int i = 0; i < iterationsPerWorkload && System.nanoTime() < deadline; i++ ) {
+            for( Map.Entry<String, Runnable> workload : running.entrySet() ) {
+               try {
+                  workload.getValue().run();
+               }
+               catch( Exception e ) {
+                  if( !failures.containsKey( workload.getKey() ) ) {
+                     failures.put( workload.getKey(), e );
+                     LOGGER.warn( "Warm-up workload '" + workload.getKey() + "' failed.  Carrying on warming up.", e );
+                  }
+               }
+               iterations.incrementAndGet();
+            }
+         }
+      }
+      finally {
+         warmUpNanos = System.nanoTime() - start;
+         ready = true;
+      }
+      if( !running.isEmpty() ) {
+         LOGGER.info( "Warmed up with " + iterations.get() + " iteration(s) of " + running.size() + " workload(s) in " +
+               TimeUnit.NANOSECONDS.toMillis( warmUpNanos ) + "ms" +
+               ( System.nanoTime() >= deadline ? ", having run out of time" : "" ) + ".  Ready." );
+      }
+   }
+}
@@ -0,0 +1,23 @@
+package com.pennassurancesoftware.dropwizard.stop;
+
+import com.codahale.metrics.health.HealthCheck;
+
+/**
+ * Report the node as unhealthy until it has warmed up, so that a load balancer polling the health checks holds
+ * traffic back from a cold node.
+ */
+public class WarmUpHealthCheck extends HealthCheck {
+   private final WarmUpCoordinator warmUp;
+
+   public WarmUpHealthCheck( WarmUpCoordinator warmUp ) {
+      this.warmUp = warmUp;
+   }
+
+   @Override
+   protected Result check() throws Exception {
+      if( !warmUp.isReady() ) {
+         return Result.unhealthy( "Warming up, " + warmUp.getIterations() + " iteration(s) so far" );
+      }
+      return Result.healthy();
+   }
+}
@@ -0,0 +1,222 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pennassurancesoftware.dropwizard.stop.ExecutorDrainer;
+import com.pennassurancesoftware.dropwizard.stop.FileSpillHandler;
+import com.pennassurancesoftware.dropwizard.stop.SpillHandler;
+import com.pennassurancesoftware.dropwizard.stop.StopReport;
+
+/**
+ * Tests for ExecutorDrainer class.
+ */
+public class ExecutorDrainerTest {
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private ExecutorDrainer fixture;
+   private ExecutorService executor;
+   private CountDownLatch running;
+   private CountDownLatch release;
+   private AtomicInteger ran;
+
+   @Before
+   public void setUp() throws Exception {
+      fixture = new ExecutorDrainer();
+      executor = fixture.register( "mail",
+            new ThreadPoolExecutor( 1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>() ) );
+      running = new CountDownLatch( 1 );
+      release = new CountDownLatch( 1 );
+      ran = new AtomicInteger();
+      // The first task holds the others in the queue until released.
+      executor.execute( new Runnable() {
+         @Override
+         public void run() {
+            running.countDown();
+            try {
+               release.await();
+            }
+            catch( InterruptedException e ) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      } );
+      for( int i = 0; i < 3; i++ ) {
+         executor.execute( new Task( i ) );
+      }
+      running.await();
+   }
+
+   @After
+   public void tearDown() {
+      executor.shutdownNow();
+   }
+
+   @Test
+   public void runsTheQueuedTasksAndStopsTheIntake() throws Exception {
+      Thread releasing = new Thread() {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep( 100 );
+            }
+            catch( InterruptedException e ) {
+               return;
+            }
+            release.countDown();
+         }
+      };
+      releasing.start();
+      StopReport report = new StopReport();
+
+      assertThat( fixture.drain( System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 ), report ) ).isTrue();
+
+      assertThat( ran.get() ).isEqualTo( 3 );
+      assertThat( report.toString() ).contains( "tasksQueued=3 tasksRun=4 tasksSpilled=0 taskRate=" );
+      try {
+         executor.execute( new Task( 3 ) );
+         throw new AssertionError( "The executor took a task after the drain." );
+      }
+      catch( RejectedExecutionException e ) {
+         // The intake is stopped.
+      }
+   }
+
+   @Test
+   public void spillsTheTasksLeftOnceTheBudgetRunsOut() throws Exception {
+      final List<String> spilled = new CopyOnWriteArrayList<String>();
+      fixture.setSpillHandler( new SpillHandler() {
+         @Override
+         public void spill( String executor, List<Runnable> tasks ) {
+            for( Runnable task : tasks ) {
+               spilled.add( executor + ":" + task );
+            }
+         }
+      } );
+      StopReport report = new StopReport();
+
+      assertThat( fixture.drain( System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( 100 ), report ) ).isFalse();
+
+      assertThat( ran.get() ).isEqualTo( 0 );
+      assertThat( spilled ).containsExactly( "mail:task-0", "mail:task-1", "mail:task-2" );
+      assertThat( report.toString() ).contains( "tasksQueued=3 tasksRun=" ).contains( "tasksSpilled=3" );
+   }
+
+   @Test
+   public void fileSpillHandlerAppendsATaskALine() throws Exception {
+      File file = new File( folder.getRoot(), "spill/tasks.log" );
+      FileSpillHandler handler = new FileSpillHandler( file );
+
+      handler.spill( "mail", Arrays.<Runnable> asList( new Task( 0 ), new Task( 1 ) ) );
+      handler.spill( "reports", Arrays.<Runnable> asList( new Task( 2 ) ) );
+
+      List<String> lines = new ArrayList<String>();
+      BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+      try {
+         for( String line = in.readLine(); line != null; line = in.readLine() ) {
+            lines.add( line.substring( line.indexOf( '\t' ) + 1 ) );
+         }
+      }
+      finally {
+         in.close();
+      }
+      assertThat( lines ).containsExactly( "mail\ttask-0", "mail\ttask-1", "reports\ttask-2" );
+   }
+
+   @Test
+   public void fileSpillHandlerWritesSubmittedTasksInTheFormatGiven() throws Exception {
+      File file = new File( folder.getRoot(), "tasks.log" );
+      final List<Runnable> queued = new ArrayList<Runnable>();
+      // An executor that queues its submitted tasks as a future that keeps the task.
+      ThreadPoolExecutor submitting = new ThreadPoolExecutor( 1, 1, 0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>() ) {
+         @Override
+         protected <T> RunnableFuture<T> newTaskFor( Runnable runnable, T value ) {
+            return new TaskFuture<T>( runnable, value );
+         }
+
+         @Override
+         public void execute( Runnable command ) {
+            queued.add( command );
+         }
+      };
+      submitting.submit( new Task( 0 ) );
+      submitting.execute( new Task( 1 ) );
+      submitting.shutdown();
+      FileSpillHandler handler = new FileSpillHandler( file, new FileSpillHandler.TaskFormat() {
+         @Override
+         public String format( Runnable task ) {
+            return task instanceof TaskFuture ? "submitted " + ( ( TaskFuture<?> )task ).task : "executed " + task;
+         }
+      } );
+
+      handler.spill( "mail", queued );
+
+      BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+      try {
+         assertThat( in.readLine() ).endsWith( "\tmail\tsubmitted task-0" );
+         assertThat( in.readLine() ).endsWith( "\tmail\texecuted task-1" );
+         assertThat( in.readLine() ).isNull();
+      }
+      finally {
+         in.close();
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void registeringTheSameNameTwiceFails() {
+      fixture.register( "mail", Executors.newSingleThreadExecutor() );
+   }
+
+   private static class TaskFuture<T> extends FutureTask<T> {
+      private final Runnable task;
+
+      private TaskFuture( Runnable task, T value ) {
+         super( task, value );
+         this.task = task;
+      }
+   }
+
+   private class Task implements Runnable {
+      private final int id;
+
+      private Task( int id ) {
+         this.id = id;
+      }
+
+      @Override
+      public void run() {
+         ran.incrementAndGet();
+      }
+
+      @Override
+      public String toString() {
+         return "task-" + id;
+      }
+   }
+}
@@ -0,0 +1,174 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pennassurancesoftware.dropwizard.stop.ExitCoordinator;
+
+/**
+ * Test the ExitCoordinator class.
+ */
+public class ExitCoordinatorTest {
+   private TestExitCoordinator fixture;
+
+   @Before
+   public void setUp() {
+      fixture = new TestExitCoordinator();
+   }
+
+   @Test
+   public void runsTasksInParallelAndTimesThem() throws Exception {
+      final CountDownLatch bothRunning = new CountDownLatch( 2 );
+      for( String name : new String[] { "first", "second" } ) {
+         fixture.register( name, new Runnable() {
+            @Override
+            public void run() {
+               bothRunning.countDown();
+               try {
+                  // Only finishes if the other task is running at the same time.
+                  bothRunning.await( 2, TimeUnit.SECONDS );
+               }
+               catch( InterruptedException e ) {
+                  Thread.currentThread().interrupt();
+               }
+            }
+         } );
+      }
+      long start = System.nanoTime();
+      fixture.exit( 3, TimeUnit.SECONDS.toNanos( 5 ) );
+
+      assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isLessThan( 1000 );
+      assertThat( fixture.haltedWith ).isEqualTo( 3 );
+      assertThat( fixture.getExitNanos().keySet() ).contains( "first", "second" );
+   }
+
+   @Test
+   public void haltsAtTheDeadline() throws Exception {
+      fixture.register( "quick", new Runnable() {
+         @Override
+         public void run() {}
+      } );
+      fixture.register( "stuck", new Runnable() {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep( 10000 );
+            }
+            catch( InterruptedException e ) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      } );
+      long start = System.nanoTime();
+      fixture.exit( 0, TimeUnit.MILLISECONDS.toNanos( 200 ) );
+
+      assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isLessThan( 2000 );
+      assertThat( fixture.haltedWith ).isEqualTo( 0 );
+      assertThat( fixture.getExitNanos().keySet() ).contains( "quick" ).excludes( "stuck" );
+   }
+
+   @Test
+   public void runsTasksAlongsideTheShutdownHooks() throws Exception {
+      final CountDownLatch bothRunning = new CountDownLatch( 2 );
+      Runnable waiting = new Runnable() {
+         @Override
+         public void run() {
+            bothRunning.countDown();
+            try {
+               bothRunning.await( 2, TimeUnit.SECONDS );
+            }
+            catch( InterruptedException e ) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      };
+      // A hook the application registered with the JVM.
+      fixture.hooks.add( new Thread( waiting, "test-hook" ) );
+      fixture.register( "task", waiting );
+
+      long start = System.nanoTime();
+      fixture.exit( 0, TimeUnit.SECONDS.toNanos( 5 ) );
+
+      assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isLessThan( 1000 );
+      assertThat( fixture.exitedWith ).isEqualTo( 0 );
+      assertThat( fixture.getExitNanos().keySet() ).containsOnly( "task" );
+   }
+
+   @Test
+   public void haltsWhenTheShutdownHooksRunPastTheDeadline() throws Exception {
+      fixture.hooks.add( new Thread( "stuck-hook" ) {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep( 10000 );
+            }
+            catch( InterruptedException e ) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      } );
+      long start = System.nanoTime();
+      fixture.exit( 2, TimeUnit.MILLISECONDS.toNanos( 200 ) );
+
+      assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isLessThan( 2000 );
+      assertThat( fixture.haltedWith ).isEqualTo( 2 );
+      // Threads left running by the other tests may be named too.
+      assertThat( fixture.stillRunning ).contains( "stuck-hook at java.lang.Thread.sleep" );
+   }
+
+   @Test
+   public void exitsOnce() throws Exception {
+      fixture.exit( 1, 0 );
+      fixture.exit( 2, 0 );
+      assertThat( fixture.haltedWith ).isEqualTo( 1 );
+   }
+
+   /**
+    * Runs the hooks the way the JVM does on exit, rather than adding them to the JVM running the tests.
+    */
+   private static class TestExitCoordinator extends ExitCoordinator {
+      private volatile Integer haltedWith;
+      private volatile Integer exitedWith;
+      private final List<Thread> hooks = new CopyOnWriteArrayList<Thread>();
+      private final List<String> stillRunning = new CopyOnWriteArrayList<String>();
+
+      @Override
+      protected void stillRunning( Thread thread, StackTraceElement[] stack ) {
+         stillRunning.add( thread.getName() + " at " + stack[ 0 ].getClassName() + "." + stack[ 0 ].getMethodName() );
+      }
+
+      @Override
+      protected void halt( int status ) {
+         haltedWith = status;
+      }
+
+      @Override
+      protected void addShutdownHook( Thread hook ) {
+         hooks.add( hook );
+      }
+
+      @Override
+      protected void exitJvm( int status ) {
+         exitedWith = status;
+         for( Thread hook : hooks ) {
+            hook.start();
+         }
+         for( Thread hook : hooks ) {
+            try {
+               hook.join();
+            }
+            catch( InterruptedException e ) {
+               Thread.currentThread().interrupt();
+               return;
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,102 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.pennassurancesoftware.dropwizard.stop.InFlightFilter;
+import com.pennassurancesoftware.dropwizard.stop.InFlightTracker;
+import com.pennassurancesoftware.dropwizard.stop.StopDeadline;
+import com.pennassurancesoftware.dropwizard.stop.StopPhase;
+import com.pennassurancesoftware.dropwizard.stop.StopState;
+
+/**
+ * Test the InFlightFilter class.
+ */
+public class InFlightFilterTest {
+   private StopState state;
+   private InFlightTracker tracker;
+   private InFlightFilter fixture;
+   private HttpServletRequest request;
+   private HttpServletResponse response;
+   private FilterChain chain;
+
+   @Before
+   public void setUp() {
+      state = new StopState();
+      tracker = new InFlightTracker();
+      fixture = new InFlightFilter( tracker, state );
+      request = mock( HttpServletRequest.class );
+      response = mock( HttpServletResponse.class );
+      chain = mock( FilterChain.class );
+   }
+
+   @Test
+   public void keepsTheConnectionWhileRunning() throws Exception {
+      fixture.doFilter( request, response, chain );
+
+      verify( chain ).doFilter( request, response );
+      verify( response, never() ).setHeader( "Connection", "close" );
+      assertThat( tracker.get() ).isEqualTo( 0 );
+      assertThat( tracker.getLatencies().getCount() ).isEqualTo( 1 );
+   }
+
+   @Test
+   public void closesTheConnectionWhileDraining() throws Exception {
+      state.setPhase( StopPhase.DRAIN );
+      fixture.doFilter( request, response, chain );
+
+      verify( chain ).doFilter( request, response );
+      verify( response ).setHeader( "Connection", "close" );
+   }
+
+   @Test
+   public void carriesTheDrainDeadline() throws Exception {
+      fixture.doFilter( request, response, chain );
+      ArgumentCaptor<Object> attribute = ArgumentCaptor.forClass( Object.class );
+      verify( request ).setAttribute( eq( StopDeadline.ATTRIBUTE ), attribute.capture() );
+      when( request.getAttribute( StopDeadline.ATTRIBUTE ) ).thenReturn( attribute.getValue() );
+      StopDeadline deadline = StopDeadline.of( request );
+
+      assertThat( deadline.isStopping() ).isFalse();
+      assertThat( deadline.getRemaining( TimeUnit.MILLISECONDS ) ).isEqualTo( Long.MAX_VALUE );
+
+      state.setDrainDeadline( System.nanoTime() + TimeUnit.SECONDS.toNanos( 10 ) );
+      state.setPhase( StopPhase.DRAIN );
+      assertThat( deadline.isStopping() ).isTrue();
+      assertThat( deadline.getRemaining( TimeUnit.SECONDS ) ).isGreaterThan( 8 ).isLessThan( 11 );
+
+      state.setPhase( StopPhase.STOP_MANAGED );
+      assertThat( deadline.getRemaining( TimeUnit.MILLISECONDS ) ).isEqualTo( 0 );
+   }
+
+   @Test
+   public void aRequestTheFilterDidNotSeeNeverStops() {
+      StopDeadline deadline = StopDeadline.of( request );
+
+      assertThat( deadline.isStopping() ).isFalse();
+      assertThat( deadline.getRemaining( TimeUnit.MILLISECONDS ) ).isEqualTo( Long.MAX_VALUE );
+   }
+
+   @Test
+   public void leavesACommittedResponseAlone() throws Exception {
+      state.setPhase( StopPhase.DRAIN );
+      when( response.isCommitted() ).thenReturn( true );
+      fixture.doFilter( request, response, chain );
+
+      verify( response, never() ).setHeader( "Connection", "close" );
+   }
+}
@@ -0,0 +1,78 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pennassurancesoftware.dropwizard.stop.InFlightTracker;
+
+/**
+ * Test the InFlightTracker class.
+ */
+public class InFlightTrackerTest {
+   private InFlightTracker fixture;
+
+   @Before
+   public void setUp() {
+      fixture = new InFlightTracker();
+   }
+
+   @Test
+   public void countsAcrossThreads() throws Exception {
+      final int threads = 8;
+      final CountDownLatch entered = new CountDownLatch( threads );
+      for( int i = 0; i < threads; i++ ) {
+         new Thread() {
+            @Override
+            public void run() {
+               fixture.enter();
+               entered.countDown();
+            }
+         }.start();
+      }
+      assertThat( entered.await( 2, TimeUnit.SECONDS ) ).isTrue();
+      assertThat( fixture.get() ).isEqualTo( threads );
+
+      // Requests may complete on a different thread than they started on.
+      for( int i = 0; i < threads; i++ ) {
+         fixture.exit();
+      }
+      assertThat( fixture.get() ).isEqualTo( 0 );
+   }
+
+   @Test
+   public void awaitIdleWhenNothingInFlight() throws Exception {
+      assertThat( fixture.awaitIdle( 0, TimeUnit.MILLISECONDS ) ).isTrue();
+   }
+
+   @Test
+   public void awaitIdleTimesOut() throws Exception {
+      fixture.enter();
+      assertThat( fixture.awaitIdle( 50, TimeUnit.MILLISECONDS ) ).isFalse();
+   }
+
+   @Test
+   public void awaitIdleReturnsWhenLastRequestCompletes() throws Exception {
+      fixture.enter();
+      new Thread() {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep( 50 );
+            }
+            catch( InterruptedException e ) {
+               Thread.currentThread().interrupt();
+            }
+            fixture.exit();
+         }
+      }.start();
+
+      long start = System.nanoTime();
+      assertThat( fixture.awaitIdle( 10, TimeUnit.SECONDS ) ).isTrue();
+      assertThat( TimeUnit.NANOSECONDS.toSeconds( System.nanoTime() - start ) ).isLessThan( 5 );
+   }
+}
@@ -0,0 +1,160 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pennassurancesoftware.dropwizard.stop.InstanceRegistry;
+
+/**
+ * Tests for InstanceRegistry class.
+ */
+public class InstanceRegistryTest {
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private File file;
+   private InstanceRegistry registry;
+
+   @Before
+   public void setUp() {
+      file = new File( folder.getRoot(), "stop.registry" );
+      registry = new InstanceRegistry( file );
+   }
+
+   @Test
+   public void registersUntilClosed() throws Exception {
+      InstanceRegistry.Registration registration = registry.register( instance( "app", 42, 9042 ) );
+
+      List<InstanceRegistry.Instance> instances = new InstanceRegistry( file ).find( "app" );
+      assertThat( instances ).hasSize( 1 );
+      assertThat( instances.get( 0 ).getPid() ).isEqualTo( 42 );
+      assertThat( instances.get( 0 ).getPort() ).isEqualTo( 9042 );
+      assertThat( instances.get( 0 ).getSocket() ).isNull();
+      assertThat( instances.get( 0 ).getFingerprint() ).isEqualTo( InstanceRegistry.fingerprint( "key" ) );
+
+      registration.close();
+
+      assertThat( registry.getInstances() ).isEmpty();
+   }
+
+   @Test
+   public void publishesTheState() throws Exception {
+      InstanceRegistry.Registration registration = registry.register( new InstanceRegistry.Instance( "app", 42, -1,
+            "/var/run/app/stop-42.sock", InstanceRegistry.fingerprint( "key" ), InstanceRegistry.State.SERVING ) );
+      try {
+         registration.setState( InstanceRegistry.State.STOPPING );
+
+         InstanceRegistry.Instance instance = registry.find( 42 );
+         assertThat( instance.getState() ).isEqualTo( InstanceRegistry.State.STOPPING );
+         assertThat( instance.getSocket() ).isEqualTo( "/var/run/app/stop-42.sock" );
+         assertThat( registry.find( 43 ) ).isNull();
+      }
+      finally {
+         registration.close();
+      }
+   }
+
+   @Test
+   public void concurrentRegistrationsEachGetASlot() throws Exception {
+      int writers = 16;
+      final CountDownLatch start = new CountDownLatch( 1 );
+      ExecutorService executor = Executors.newFixedThreadPool( writers );
+      List<Future<InstanceRegistry.Registration>> futures = new ArrayList<Future<InstanceRegistry.Registration>>();
+      for( int i = 0; i < writers; i++ ) {
+         final int pid = 100 + i;
+         futures.add( executor.submit( new Callable<InstanceRegistry.Registration>() {
+            @Override
+            public InstanceRegistry.Registration call() throws Exception {
+               start.await();
+               return new InstanceRegistry( file ).register( instance( "app", pid, 9000 + pid ) );
+            }
+         } ) );
+      }
+      start.countDown();
+      List<InstanceRegistry.Registration> registrations = new ArrayList<InstanceRegistry.Registration>();
+      for( Future<InstanceRegistry.Registration> future : futures ) {
+         registrations.add( future.get() );
+      }
+      executor.shutdown();
+
+      Set<Long> pids = new HashSet<Long>();
+      for( InstanceRegistry.Instance instance : registry.find( "app" ) ) {
+         assertThat( instance.getPort() ).isEqualTo( 9000 + ( int )instance.getPid() );
+         pids.add( instance.getPid() );
+      }
+      assertThat( pids ).hasSize( writers );
+      for( InstanceRegistry.Registration registration : registrations ) {
+         registration.close();
+      }
+   }
+
+   @Test
+   public void reclaimsTheSlotOfAProcessThatHasGone() throws Exception {
+      Process process = new ProcessBuilder( new File( System.getProperty( "java.home" ), "bin/java" ).getPath(),
+            "-cp", System.getProperty( "java.class.path" ), Registering.class.getName(), file.getPath() )
+            .redirectErrorStream( true ).start();
+      try {
+         LineNumberReader out = new LineNumberReader( new InputStreamReader( process.getInputStream() ) );
+         String line;
+         while( ( line = out.readLine() ) != null && !line.equals( "Registered" ) ) {
+            // Skip whatever the child logs.
+         }
+         assertThat( line ).isEqualTo( "Registered" );
+         assertThat( registry.find( "gone" ) ).hasSize( 1 );
+      }
+      finally {
+         // Killed, so the child never unregisters.
+         process.destroy();
+         process.waitFor();
+      }
+
+      assertThat( registry.find( "gone" ) ).isEmpty();
+      InstanceRegistry.Registration registration = registry.register( instance( "app", 42, 9042 ) );
+      registration.close();
+   }
+
+   @Test(expected = IOException.class)
+   public void refusesAFileThatIsNotARegistry() throws Exception {
+      file = folder.newFile( "not.registry" );
+      FileWriter writer = new FileWriter( file );
+      writer.write( "not a registry" );
+      writer.close();
+      new InstanceRegistry( file ).getInstances();
+   }
+
+   private static InstanceRegistry.Instance instance( String name, long pid, int port ) {
+      return new InstanceRegistry.Instance( name, pid, port, null, InstanceRegistry.fingerprint( "key" ),
+            InstanceRegistry.State.SERVING );
+   }
+
+   /**
+    * Registers in the registry given and waits to be killed.
+    */
+   public static class Registering {
+      public static void main( String[] args ) throws Exception {
+         new InstanceRegistry( new File( args[0] ) ).register( instance( "gone", 7, 9007 ) );
+         System.out.println( "Registered" );
+         System.out.flush();
+         Thread.sleep( 60000 );
+      }
+   }
+}
@@ -0,0 +1,54 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pennassurancesoftware.dropwizard.stop.LatencyHistogram;
+
+/**
+ * Test the LatencyHistogram class.
+ */
+public class LatencyHistogramTest {
+   private LatencyHistogram fixture;
+
+   @Before
+   public void setUp() {
+      fixture = new LatencyHistogram();
+   }
+
+   @Test
+   public void emptyReportsZero() {
+      assertThat( fixture.getCount() ).isEqualTo( 0 );
+      assertThat( fixture.getValueAtPercentile( 99 ) ).isEqualTo( 0 );
+   }
+
+   @Test
+   public void percentilesWithinABucket() {
+      for( int i = 1; i <= 1000; i++ ) {
+         fixture.record( TimeUnit.MILLISECONDS.toNanos( i ) );
+      }
+      assertThat( fixture.getCount() ).isEqualTo( 1000 );
+      assertWithin( fixture.getValueAtPercentile( 50 ), TimeUnit.MILLISECONDS.toNanos( 500 ) );
+      assertWithin( fixture.getValueAtPercentile( 99 ), TimeUnit.MILLISECONDS.toNanos( 990 ) );
+      assertWithin( fixture.getValueAtPercentile( 100 ), TimeUnit.MILLISECONDS.toNanos( 1000 ) );
+   }
+
+   @Test
+   public void smallAndHugeLatencies() {
+      fixture.record( 3 );
+      assertThat( fixture.getValueAtPercentile( 100 ) ).isEqualTo( 3 );
+      fixture.record( Long.MAX_VALUE );
+      assertThat( fixture.getValueAtPercentile( 100 ) ).isEqualTo( ( 1L << 41 ) - 1 );
+      assertThat( fixture.getValueAtPercentile( 50 ) ).isEqualTo( 3 );
+   }
+
+   private void assertWithin( long value, long expected ) {
+      // A bucket spans an eighth of its power of two.
+      assertThat( value ).isGreaterThanOrEqualTo( expected );
+      assertThat( value ).isLessThanOrEqualTo( expected + expected / 8 );
+   }
+}
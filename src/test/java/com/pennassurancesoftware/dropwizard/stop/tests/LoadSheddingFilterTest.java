@@ -0,0 +1,79 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import io.dropwizard.util.Duration;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.Meter;
+import com.pennassurancesoftware.dropwizard.stop.LoadSheddingFilter;
+import com.pennassurancesoftware.dropwizard.stop.StopPhase;
+import com.pennassurancesoftware.dropwizard.stop.StopState;
+
+/**
+ * Test the LoadSheddingFilter class.
+ */
+public class LoadSheddingFilterTest {
+   private StopState state;
+   private Meter shed;
+   private LoadSheddingFilter fixture;
+   private HttpServletRequest request;
+   private HttpServletResponse response;
+   private FilterChain chain;
+
+   @Before
+   public void setUp() {
+      state = new StopState();
+      shed = new Meter();
+      fixture = new LoadSheddingFilter( state, Duration.milliseconds( 500 ), shed );
+      request = mock( HttpServletRequest.class );
+      response = mock( HttpServletResponse.class );
+      chain = mock( FilterChain.class );
+   }
+
+   @Test
+   public void servesWhileRunning() throws Exception {
+      fixture.doFilter( request, response, chain );
+
+      verify( chain ).doFilter( request, response );
+      assertThat( shed.getCount() ).isEqualTo( 0 );
+   }
+
+   @Test
+   public void servesWhileDeregistering() throws Exception {
+      state.setPhase( StopPhase.DEREGISTER );
+      fixture.doFilter( request, response, chain );
+
+      verify( chain ).doFilter( request, response );
+      assertThat( shed.getCount() ).isEqualTo( 0 );
+   }
+
+   @Test
+   public void shedsOnceStoppingAccepting() throws Exception {
+      state.setPhase( StopPhase.STOP_ACCEPTING );
+      fixture.doFilter( request, response, chain );
+
+      verify( chain, never() ).doFilter( request, response );
+      verify( response ).setHeader( "Retry-After", "1" );
+      verify( response ).setHeader( "Connection", "close" );
+      verify( response ).sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+      assertThat( shed.getCount() ).isEqualTo( 1 );
+   }
+
+   @Test
+   public void shedsWhileDraining() throws Exception {
+      state.setPhase( StopPhase.DRAIN );
+      fixture.doFilter( request, response, chain );
+
+      verify( response ).sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+      assertThat( shed.getCount() ).isEqualTo( 1 );
+   }
+}
@@ -0,0 +1,96 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pennassurancesoftware.dropwizard.stop.ReusePortServerConnector;
+
+/**
+ * Test the ReusePortServerConnector class.
+ */
+public class ReusePortServerConnectorTest {
+   private Server server;
+   private Server other;
+
+   @Before
+   public void setUp() {
+      server = new Server();
+      other = new Server();
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      server.stop();
+      other.stop();
+   }
+
+   @Test
+   public void servesLikeServerConnector() throws Exception {
+      ReusePortServerConnector connector = start( server, 0 );
+      assertThat( connector.isOpen() ).isTrue();
+      assertThat( connector.getLocalPort() ).isGreaterThan( 0 );
+      assertThat( get( connector.getLocalPort() ) ).isEqualTo( "HTTP/1.1 200 OK" );
+
+      server.stop();
+      assertThat( connector.isOpen() ).isFalse();
+   }
+
+   @Test
+   public void sharesPortWithAnotherInstance() throws Exception {
+      Assume.assumeTrue( ReusePortServerConnector.isReusePortSupported() );
+      ReusePortServerConnector connector = start( server, 0 );
+      int port = connector.getLocalPort();
+      ReusePortServerConnector taking = start( other, port );
+      assertThat( taking.getLocalPort() ).isEqualTo( port );
+
+      server.stop();
+      assertThat( get( port ) ).isEqualTo( "HTTP/1.1 200 OK" );
+   }
+
+   private ReusePortServerConnector start( Server server, int port ) throws Exception {
+      ReusePortServerConnector connector = new ReusePortServerConnector( server, null, null, null, 1, 1,
+            new HttpConnectionFactory() );
+      connector.setHost( "127.0.0.1" );
+      connector.setPort( port );
+      server.addConnector( connector );
+      server.setHandler( new AbstractHandler() {
+         @Override
+         public void handle( String target, Request baseRequest, HttpServletRequest request,
+               HttpServletResponse response ) throws IOException {
+            baseRequest.setHandled( true );
+            response.setStatus( 200 );
+         }
+      } );
+      server.start();
+      return connector;
+   }
+
+   private String get( int port ) throws IOException {
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+      try {
+         client.setSoTimeout( 2000 );
+         client.getOutputStream().write( "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes() );
+         return new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine();
+      }
+      finally {
+         client.close();
+      }
+   }
+}
@@ -0,0 +1,129 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pennassurancesoftware.dropwizard.stop.ShutdownCoordinator;
+
+/**
+ * Test the ShutdownCoordinator class.
+ */
+public class ShutdownCoordinatorTest {
+   private ShutdownCoordinator fixture;
+   private List<String> events;
+
+   @Before
+   public void setUp() {
+      fixture = new ShutdownCoordinator();
+      events = new CopyOnWriteArrayList<String>();
+   }
+
+   @Test
+   public void startsDependenciesFirstAndStopsThemLast() throws Exception {
+      fixture.register( "producer", new Recording( "producer", 0 ), "pool" );
+      fixture.register( "pool", new Recording( "pool", 0 ) );
+
+      fixture.start();
+      assertThat( events ).containsExactly( "start pool", "start producer" );
+
+      events.clear();
+      fixture.stop();
+      assertThat( events ).containsExactly( "stop producer", "stop pool" );
+      assertThat( fixture.getStopNanos().keySet() ).containsOnly( "producer", "pool" );
+   }
+
+   @Test
+   public void stopsIndependentComponentsConcurrently() throws Exception {
+      for( int i = 0; i < 4; i++ ) {
+         fixture.register( "cache-" + i, new Recording( "cache-" + i, 200 ) );
+      }
+      fixture.start();
+
+      long start = System.nanoTime();
+      fixture.stop();
+      assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isLessThan( 600 );
+      assertThat( fixture.getStopNanos().size() ).isEqualTo( 4 );
+   }
+
+   @Test
+   public void stopsOnlyOnce() throws Exception {
+      fixture.register( "pool", new Recording( "pool", 0 ) );
+      fixture.stop();
+      fixture.stop();
+      assertThat( events ).containsExactly( "stop pool" );
+   }
+
+   @Test
+   public void givesUpOnAComponentThatNeverStopsOnceTheBudgetRunsOut() throws Exception {
+      fixture.register( "stuck", new Recording( "stuck", Long.MAX_VALUE ) );
+      fixture.register( "pool", new Recording( "pool", 0 ) );
+      fixture.setBudget( Duration.milliseconds( 200 ) );
+
+      long start = System.nanoTime();
+      fixture.stop();
+      assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isLessThan( 2000 );
+      assertThat( events ).containsExactly( "stop pool" );
+   }
+
+   @Test
+   public void stopsTheDependenciesOfAComponentThatFailsWithAnError() throws Exception {
+      fixture.register( "producer", new Managed() {
+         @Override
+         public void start() {}
+
+         @Override
+         public void stop() {
+            throw new AssertionError( "Failed to stop." );
+         }
+      }, "pool" );
+      fixture.register( "pool", new Recording( "pool", 0 ) );
+      fixture.setBudget( Duration.seconds( 5 ) );
+
+      long start = System.nanoTime();
+      fixture.stop();
+      assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isLessThan( 2000 );
+      assertThat( events ).containsExactly( "stop pool" );
+   }
+
+   @Test(expected = IllegalStateException.class)
+   public void cycleIsRejected() throws Exception {
+      fixture.register( "a", new Recording( "a", 0 ), "b" );
+      fixture.register( "b", new Recording( "b", 0 ), "a" );
+      fixture.start();
+   }
+
+   @Test(expected = IllegalStateException.class)
+   public void unknownDependencyIsRejected() throws Exception {
+      fixture.register( "a", new Recording( "a", 0 ), "missing" );
+      fixture.start();
+   }
+
+   private class Recording implements Managed {
+      private final String name;
+      private final long stopMillis;
+
+      private Recording( String name, long stopMillis ) {
+         this.name = name;
+         this.stopMillis = stopMillis;
+      }
+
+      @Override
+      public void start() throws Exception {
+         events.add( "start " + name );
+      }
+
+      @Override
+      public void stop() throws Exception {
+         Thread.sleep( stopMillis );
+         events.add( "stop " + name );
+      }
+   }
+}
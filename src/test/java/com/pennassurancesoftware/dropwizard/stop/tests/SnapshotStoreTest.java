@@ -0,0 +1,171 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+import io.dropwizard.util.Duration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pennassurancesoftware.dropwizard.stop.SnapshotStore;
+import com.pennassurancesoftware.dropwizard.stop.Snapshottable;
+
+/**
+ * Test the SnapshotStore class.
+ */
+public class SnapshotStoreTest {
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private SnapshotStore fixture;
+   private File directory;
+   private Cache cache;
+
+   @Before
+   public void setUp() throws Exception {
+      directory = folder.newFolder( "snapshots" );
+      fixture = new SnapshotStore();
+      fixture.setDirectory( directory );
+      cache = new Cache( "cache", 1 );
+      cache.state = new byte[200000];
+      for( int i = 0; i < cache.state.length; i++ ) {
+         cache.state[i] = ( byte )i;
+      }
+      fixture.register( cache );
+   }
+
+   @Test
+   public void restoresWhatWasWritten() throws Exception {
+      assertThat( write() ).isEqualTo( 1 );
+      assertThat( new File( directory, "cache.snapshot" ).isFile() ).isTrue();
+
+      Cache next = new Cache( "cache", 1 );
+      assertThat( fixture.restore( next ) ).isTrue();
+      assertThat( next.restored ).isEqualTo( cache.state );
+      // A snapshot is only ever restored once.
+      assertThat( new File( directory, "cache.snapshot" ).exists() ).isFalse();
+      assertThat( fixture.restore( next ) ).isFalse();
+   }
+
+   @Test
+   public void discardsAnotherVersion() throws Exception {
+      write();
+
+      Cache next = new Cache( "cache", 2 );
+      assertThat( fixture.restore( next ) ).isFalse();
+      assertThat( next.restored ).isNull();
+      assertThat( new File( directory, "cache.snapshot" ).exists() ).isFalse();
+   }
+
+   @Test
+   public void discardsACorruptSnapshot() throws Exception {
+      write();
+      RandomAccessFile file = new RandomAccessFile( new File( directory, "cache.snapshot" ), "rw" );
+      try {
+         file.seek( 1000 );
+         file.write( file.read() ^ 0xff );
+      }
+      finally {
+         file.close();
+      }
+
+      Cache next = new Cache( "cache", 1 );
+      assertThat( fixture.restore( next ) ).isFalse();
+      assertThat( next.restored ).isNull();
+   }
+
+   @Test
+   public void discardsAStaleSnapshot() throws Exception {
+      write();
+      Thread.sleep( 5 );
+      fixture.setMaxAge( Duration.milliseconds( 1 ) );
+
+      Cache next = new Cache( "cache", 1 );
+      assertThat( fixture.restore( next ) ).isFalse();
+      assertThat( next.restored ).isNull();
+   }
+
+   @Test
+   public void leavesNoSnapshotPastTheDeadline() throws Exception {
+      assertThat( write( System.nanoTime() - 1 ) ).isEqualTo( 0 );
+      assertThat( directory.list() ).isEmpty();
+   }
+
+   @Test
+   public void discardsASnapshotThatFailedToWrite() throws Exception {
+      cache.failWrite = true;
+      assertThat( write() ).isEqualTo( 0 );
+      assertThat( directory.list() ).isEmpty();
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsTheSameNameTwice() {
+      fixture.register( new Cache( "cache", 1 ) );
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsANameThatIsntAFileName() {
+      fixture.register( new Cache( "../cache", 1 ) );
+   }
+
+   private int write() {
+      return write( System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 ) );
+   }
+
+   private int write( long deadline ) {
+      return fixture.write( deadline );
+   }
+
+   private static class Cache implements Snapshottable {
+      private final String name;
+      private final int version;
+      private byte[] state;
+      private byte[] restored;
+      private boolean failWrite;
+
+      private Cache( String name, int version ) {
+         this.name = name;
+         this.version = version;
+      }
+
+      @Override
+      public String getSnapshotName() {
+         return name;
+      }
+
+      @Override
+      public int getSnapshotVersion() {
+         return version;
+      }
+
+      @Override
+      public void writeSnapshot( OutputStream out ) throws IOException {
+         out.write( state, 0, state.length / 2 );
+         if( failWrite ) {
+            throw new IOException( "Testing a failed write." );
+         }
+         for( int i = state.length / 2; i < state.length; i++ ) {
+            out.write( state[i] );
+         }
+      }
+
+      @Override
+      public void restoreSnapshot( InputStream in ) throws IOException {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         byte[] chunk = new byte[4096];
+         for( int read = in.read( chunk ); read >= 0; read = in.read( chunk ) ) {
+            bytes.write( chunk, 0, read );
+         }
+         restored = bytes.toByteArray();
+      }
+   }
+}
@@ -1,20 +1,37 @@
 package com.pennassurancesoftware.dropwizard.stop.tests;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import io.dropwizard.cli.Command;
+import io.dropwizard.jetty.setup.ServletEnvironment;
 import io.dropwizard.lifecycle.ServerLifecycleListener;
+import io.dropwizard.lifecycle.setup.LifecycleEnvironment;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 
+import java.util.EnumSet;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterRegistration;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.health.HealthCheckRegistry;
 import com.google.common.collect.ImmutableList;
+import com.pennassurancesoftware.dropwizard.stop.InFlightFilter;
+import com.pennassurancesoftware.dropwizard.stop.LoadSheddingFilter;
 import com.pennassurancesoftware.dropwizard.stop.StopBundle;
 import com.pennassurancesoftware.dropwizard.stop.StopConfiguration;
+import com.pennassurancesoftware.dropwizard.stop.StopMonitor;
 
 /**
  * Test the StopBundle class.
@@ -44,12 +61,43 @@ public class StopBundleTest extends AbstractStopTests {
    @Test
    public void run() throws Exception {
       Environment environment = mock( Environment.class );
+      LifecycleEnvironment lifecycle = mock( LifecycleEnvironment.class );
+      ServletEnvironment servlets = mock( ServletEnvironment.class );
+      FilterRegistration.Dynamic registration = mock( FilterRegistration.Dynamic.class );
+      FilterRegistration.Dynamic sheddingRegistration = mock( FilterRegistration.Dynamic.class );
+      when( environment.lifecycle() ).thenReturn( lifecycle );
+      when( environment.servlets() ).thenReturn( servlets );
+      HealthCheckRegistry healthChecks = new HealthCheckRegistry();
+      when( environment.healthChecks() ).thenReturn( healthChecks );
+      MetricRegistry metrics = new MetricRegistry();
+      when( environment.metrics() ).thenReturn( metrics );
+      when( servlets.addFilter( eq( "stop-in-flight" ), any( Filter.class ) ) ).thenReturn( registration );
+      when( servlets.addFilter( eq( "stop-load-shedding" ), any( Filter.class ) ) ).thenReturn( sheddingRegistration );
       fixture.run( new TestMeConfiguration(), environment );
 
       ArgumentCaptor<ServerLifecycleListener> captor = ArgumentCaptor.forClass( ServerLifecycleListener.class );
 
-      verify( environment ).lifecycle().addServerLifecycleListener( captor.capture() );
-      ServerLifecycleListener serverLifecycleListener = captor.getValue();
-      assertThat( serverLifecycleListener ).isNotNull();
+      verify( lifecycle ).manage( fixture.getShutdownCoordinator() );
+      verify( lifecycle ).manage( fixture.getSnapshotStore() );
+      verify( lifecycle, times( 2 ) ).addServerLifecycleListener( captor.capture() );
+      ServerLifecycleListener serverLifecycleListener = captor.getAllValues().get( 0 );
+      assertThat( serverLifecycleListener ).isInstanceOf( StopMonitor.class );
+      assertThat( captor.getAllValues().get( 1 ) ).isSameAs( fixture.getWarmUpCoordinator() );
+
+      ArgumentCaptor<Filter> filterCaptor = ArgumentCaptor.forClass( Filter.class );
+      verify( servlets ).addFilter( eq( "stop-in-flight" ), filterCaptor.capture() );
+      assertThat( filterCaptor.getValue() ).isInstanceOf( InFlightFilter.class );
+      verify( registration ).setAsyncSupported( true );
+      verify( registration ).addMappingForUrlPatterns( EnumSet.of( DispatcherType.REQUEST ), true, "/*" );
+      verify( servlets ).addFilter( eq( "stop-load-shedding" ), filterCaptor.capture() );
+      assertThat( filterCaptor.getValue() ).isInstanceOf( LoadSheddingFilter.class );
+      verify( sheddingRegistration ).setAsyncSupported( true );
+      verify( sheddingRegistration ).addMappingForUrlPatterns( EnumSet.of( DispatcherType.REQUEST ), true, "/*" );
+      assertThat( healthChecks.getNames() ).contains( "stop", "warm-up" );
+      assertThat( metrics.getTimers().keySet() ).contains( MetricRegistry.name( StopMonitor.class, "stop" ) );
+      assertThat( metrics.getGauges().keySet() ).contains( MetricRegistry.name( StopMonitor.class, "in-flight" ),
+            MetricRegistry.name( StopMonitor.class, "warm-up", "iterations" ),
+            MetricRegistry.name( StopMonitor.class, "warm-up", "duration" ) );
+      assertThat( metrics.getMeters().keySet() ).contains( MetricRegistry.name( StopMonitor.class, "shed" ) );
    }
 }
@@ -9,20 +9,36 @@ import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.util.Duration;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 
 import com.pennassurancesoftware.dropwizard.stop.ConfigurationStrategy;
+import com.pennassurancesoftware.dropwizard.stop.InstanceRegistry;
 import com.pennassurancesoftware.dropwizard.stop.StopCommand;
 import com.pennassurancesoftware.dropwizard.stop.StopConfiguration;
 
@@ -30,6 +46,8 @@ import com.pennassurancesoftware.dropwizard.stop.StopConfiguration;
  * Tests for StopCommand class.
  */
 public class StopCommandTest extends AbstractStopTests {
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
 
    private TestStopCommand fixture;
    private Socket mockSocket;
@@ -37,6 +55,14 @@ public class StopCommandTest extends AbstractStopTests {
    private int exitErrorCode;
    private TestMeConfiguration configuration;
    private Bootstrap<TestMeConfiguration> bootstrap;
+   private final Map<Integer, Socket> sockets = new HashMap<Integer, Socket>();
+   private final List<Integer> connectedPorts = new CopyOnWriteArrayList<Integer>();
+   private final List<File> connectedSockets = new CopyOnWriteArrayList<File>();
+   private final List<InstanceRegistry.Registration> registrations = new ArrayList<InstanceRegistry.Registration>();
+   private final List<String> events = new CopyOnWriteArrayList<String>();
+   private final Map<Integer, Integer> probes = new HashMap<Integer, Integer>();
+   /** The probes of a stopped server before its replacement answers 'READY', or -1 for never. */
+   private int probesToReplace;
 
    @Before
    public void setUp() throws IOException {
@@ -73,6 +99,197 @@ public class StopCommandTest extends AbstractStopTests {
       verify( mockSocket ).close();
    }
 
+   @Test
+   public void runDrain() throws Exception {
+      Namespace namespace = new Namespace( Collections.<String, Object> singletonMap( "drain", Boolean.TRUE ) );
+      fixture.run( bootstrap, namespace, configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 0 );
+
+      ArgumentCaptor<byte[]> captorWrite = ArgumentCaptor.forClass( byte[].class );
+      verify( mockOut ).write( captorWrite.capture() );
+      byte[] expectedDrainCommand = ( configuration.getStopConfiguration().getKey() + "\r\ndrain\r\n" ).getBytes();
+      assertThat( captorWrite.getValue() ).isEqualTo( expectedDrainCommand );
+      verify( mockSocket ).close();
+   }
+
+   @Test
+   public void runSocketPathConnectsToTheInstanceWithThePid() throws Exception {
+      configuration.getStopConfiguration().setSocketPath( "/var/run/app/stop-{pid}.sock" );
+      Namespace namespace = new Namespace( Collections.<String, Object> singletonMap( "pid", 1234 ) );
+      fixture.run( bootstrap, namespace, configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 0 );
+      assertThat( connectedSockets ).containsOnly( new File( "/var/run/app/stop-1234.sock" ) );
+      assertThat( connectedPorts ).isEmpty();
+      verify( mockSocket ).close();
+   }
+
+   @Test
+   public void runPerInstanceSocketPathNeedsThePid() throws Exception {
+      configuration.getStopConfiguration().setSocketPath( "/var/run/app/stop-{pid}.sock" );
+      fixture.run( bootstrap, null, configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 1 );
+      assertThat( connectedSockets ).isEmpty();
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      for( InstanceRegistry.Registration registration : registrations ) {
+         registration.close();
+      }
+   }
+
+   @Test
+   public void runRegistryFindsTheAssignedPortsOfTheApplication() throws Exception {
+      configuration.getStopConfiguration().setPort( 0 );
+      String key = configuration.getStopConfiguration().getKey();
+      register( "TestMeService", 101, 9101, key );
+      register( "TestMeService", 102, 9102, key );
+      register( "another", 103, 9103, key );
+
+      fixture.run( bootstrap, null, configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 0 );
+      assertThat( connectedPorts ).containsOnly( 9101, 9102 );
+   }
+
+   @Test
+   public void runRegistryFindsTheInstanceWithThePid() throws Exception {
+      String key = configuration.getStopConfiguration().getKey();
+      register( "TestMeService", 101, 9101, key );
+      register( "TestMeService", 102, 9102, key );
+
+      fixture.run( bootstrap, new Namespace( Collections.<String, Object> singletonMap( "pid", 102 ) ), configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 0 );
+      assertThat( connectedPorts ).containsOnly( 9102 );
+   }
+
+   @Test
+   public void runRegistryDoesNotSendTheKeyToAnInstanceWithAnother() throws Exception {
+      register( "another", 103, 9103, "another-key" );
+
+      fixture.run( bootstrap, new Namespace( Collections.<String, Object> singletonMap( "name", "another" ) ),
+            configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 3 );
+      assertThat( connectedPorts ).isEmpty();
+   }
+
+   @Test
+   public void runRegistryWithoutTheInstanceFails() throws Exception {
+      configuration.getStopConfiguration().setPort( 0 );
+      register( "another", 103, 9103, configuration.getStopConfiguration().getKey() );
+
+      fixture.run( bootstrap, null, configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 3 );
+      assertThat( connectedPorts ).isEmpty();
+   }
+
+   private void register( String name, long pid, int port, String key ) throws IOException {
+      File file = new File( folder.getRoot(), "stop.registry" );
+      configuration.getStopConfiguration().setRegistryFile( file.getPath() );
+      registrations.add( new InstanceRegistry( file ).register( new InstanceRegistry.Instance( name, pid, port, null,
+            InstanceRegistry.fingerprint( key ), InstanceRegistry.State.SERVING ) ) );
+   }
+
+   @Test
+   public void runPortsReportsPartialFailure() throws Exception {
+      Socket refusing = mock( Socket.class );
+      when( refusing.getOutputStream() ).thenThrow( new ConnectException( "Testing connection exception." ) );
+      sockets.put( 9002, refusing );
+
+      fixture.run( bootstrap, ports( null, 9001, 9002, 9003 ), configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 5 );
+      assertThat( connectedPorts ).containsOnly( 9001, 9002, 9003 );
+      verify( refusing ).close();
+   }
+
+   @Test
+   public void runPortsAllFailingReportsTheirError() throws Exception {
+      Socket refusing = mock( Socket.class );
+      when( refusing.getOutputStream() ).thenThrow( new ConnectException( "Testing connection exception." ) );
+      sockets.put( 9001, refusing );
+      sockets.put( 9002, refusing );
+
+      fixture.run( bootstrap, ports( null, 9001, 9002 ), configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 3 );
+   }
+
+   @Test
+   public void runRollingHaltsAfterAFailedWave() throws Exception {
+      Socket refusing = mock( Socket.class );
+      when( refusing.getOutputStream() ).thenThrow( new ConnectException( "Testing connection exception." ) );
+      sockets.put( 9001, refusing );
+
+      // Keeping half serving, the four servers stop two at a time.
+      fixture.run( bootstrap, ports( 0.5, 9001, 9002, 9003, 9004 ), configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 5 );
+      assertThat( connectedPorts ).containsOnly( 9001, 9002 );
+   }
+
+   @Test
+   public void runRollingStopsEveryWave() throws Exception {
+      fixture.run( bootstrap, ports( 0.5, 9001, 9002, 9003, 9004 ), configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 0 );
+      assertThat( connectedPorts ).containsOnly( 9001, 9002, 9003, 9004 );
+   }
+
+   @Test
+   public void runRollingWaitsForTheStoppedServersToBeReplaced() throws Exception {
+      probesToReplace = 2;
+
+      // Keeping three of four serving, the servers stop one at a time.
+      fixture.run( bootstrap, ports( 0.75, 9001, 9002, 9003, 9004 ), configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 0 );
+      // The second wave waits until the server that replaced the first answers 'READY' on its second probe.
+      assertThat( events.subList( 0, 10 ) ).isEqualTo( Arrays.asList( "stop 9001",
+            "ready 9001", "ready 9002", "ready 9003", "ready 9004",
+            "ready 9001", "ready 9002", "ready 9003", "ready 9004", "stop 9002" ) );
+      assertThat( connectedPorts ).containsOnly( 9001, 9002, 9003, 9004 );
+   }
+
+   @Test
+   public void runRollingHaltsWhenTheStoppedServersAreNotReplaced() throws Exception {
+      probesToReplace = -1;
+      Map<String, Object> attrs = new HashMap<String, Object>( ports( 0.5, 9001, 9002, 9003, 9004 ).getAttrs() );
+      attrs.put( "replace_timeout", Duration.seconds( 1 ) );
+      Namespace namespace = new Namespace( attrs );
+
+      long start = System.nanoTime();
+      fixture.run( bootstrap, namespace, configuration );
+
+      assertThat( exitErrorCode ).isEqualTo( 5 );
+      assertThat( connectedPorts ).containsOnly( 9001, 9002 );
+      assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isGreaterThanOrEqualTo( 1000 );
+   }
+
+   @Test
+   public void replaceTimeoutIsParsedAsADuration() throws Exception {
+      assertThat( parse( "stop", "config.yml" ).get( "replace_timeout" ) ).isEqualTo( Duration.minutes( 1 ) );
+      assertThat( parse( "stop", "--replace-timeout", "30 seconds", "config.yml" ).get( "replace_timeout" ) )
+            .isEqualTo( Duration.seconds( 30 ) );
+   }
+
+   @Test(expected = ArgumentParserException.class)
+   public void replaceTimeoutWithoutAUnitIsRejected() throws Exception {
+      parse( "stop", "--replace-timeout", "30", "config.yml" );
+   }
+
+   private Namespace parse( String... args ) throws ArgumentParserException {
+      ArgumentParser parser = ArgumentParsers.newArgumentParser( "app" );
+      fixture.configure( parser.addSubparsers().addParser( "stop" ) );
+      return parser.parseArgs( args );
+   }
+
    @Test
    public void runWithTimeout() throws Exception {
       int waitTime = 1;
@@ -137,6 +354,57 @@ public class StopCommandTest extends AbstractStopTests {
       verify( mockSocket ).close();
    }
 
+   @Test
+   public void runWatchLogsProgressUntilStopped() throws Exception {
+      configuration.getStopConfiguration().setWait( Duration.seconds( 1 ) );
+      InputStream frames = new ByteArrayInputStream( ( "Progress phase=drain inFlight=2 remaining=900ms\r\n" +
+            "Progress phase=stopManaged inFlight=0 remaining=400ms\r\nStopped drain=100ms\r\n" ).getBytes() );
+      when( mockSocket.getInputStream() ).thenReturn( frames );
+
+      fixture.run( bootstrap, watch(), configuration );
+      assertThat( exitErrorCode ).isEqualTo( 0 );
+
+      ArgumentCaptor<byte[]> captorWrite = ArgumentCaptor.forClass( byte[].class );
+      verify( mockOut ).write( captorWrite.capture() );
+      byte[] expectedWatchCommand = ( configuration.getStopConfiguration().getKey() + "\r\nwatch\r\nstop\r\n" ).getBytes();
+      assertThat( captorWrite.getValue() ).isEqualTo( expectedWatchCommand );
+      verify( mockSocket ).close();
+   }
+
+   @Test
+   public void runWatchTimesOutAfterLastProgress() throws Exception {
+      configuration.getStopConfiguration().setWait( Duration.seconds( 1 ) );
+      final byte[] frame = "Progress phase=drain inFlight=2 remaining=900ms\r\n".getBytes();
+      InputStream stalling = new InputStream() {
+         private int next;
+
+         @Override
+         public int read() throws IOException {
+            if( next == frame.length ) {
+               throw new SocketTimeoutException( "Testing timeout" );
+            }
+            return frame[next++];
+         }
+      };
+      when( mockSocket.getInputStream() ).thenReturn( stalling );
+
+      fixture.run( bootstrap, watch(), configuration );
+      assertThat( exitErrorCode ).isEqualTo( 2 );
+      verify( mockSocket ).close();
+   }
+
+   private Namespace watch() {
+      return new Namespace( Collections.<String, Object> singletonMap( "watch", Boolean.TRUE ) );
+   }
+
+   private Namespace ports( Double minServing, Integer... ports ) {
+      Map<String, Object> attrs = new HashMap<String, Object>();
+      attrs.put( "ports", Arrays.asList( ports ) );
+      attrs.put( "parallelism", 2 );
+      attrs.put( "min_serving", minServing );
+      return new Namespace( attrs );
+   }
+
    private class TestStopCommand extends StopCommand<AbstractStopTests.TestMeConfiguration> {
       private TestStopCommand( ConfigurationStrategy<TestMeConfiguration> strategy, Class<AbstractStopTests.TestMeConfiguration> configurationClass ) {
          super( strategy, configurationClass );
@@ -147,8 +415,28 @@ public class StopCommandTest extends AbstractStopTests {
          exitErrorCode = exitCode;
       }
 
+      @Override
+      protected boolean isReady( InstanceRegistry.Instance instance, String key ) {
+         int port = instance.getPort();
+         events.add( "ready " + port );
+         if( !connectedPorts.contains( port ) ) {
+            return true;
+         }
+         int probed = probes.containsKey( port ) ? probes.get( port ) + 1 : 1;
+         probes.put( port, probed );
+         return probesToReplace >= 0 && probed >= probesToReplace;
+      }
+
       @Override
       protected Socket getSocket( int port ) {
+         events.add( "stop " + port );
+         connectedPorts.add( port );
+         return sockets.containsKey( port ) ? sockets.get( port ) : mockSocket;
+      }
+
+      @Override
+      protected Socket getSocket( File socket ) {
+         connectedSockets.add( socket );
          return mockSocket;
       }
 
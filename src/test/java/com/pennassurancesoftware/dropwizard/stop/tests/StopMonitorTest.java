@@ -1,6 +1,7 @@
 package com.pennassurancesoftware.dropwizard.stop.tests;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -9,30 +10,85 @@ import io.dropwizard.lifecycle.ServerLifecycleListener;
 import io.dropwizard.util.Duration;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ProtocolFamily;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.component.LifeCycle;
+import org.junit.Assume;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.internal.verification.AtLeast;
 import org.mockito.internal.verification.Times;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Timer;
+import com.pennassurancesoftware.dropwizard.stop.Drainable;
+import com.pennassurancesoftware.dropwizard.stop.ExecutorDrainer;
+import com.pennassurancesoftware.dropwizard.stop.InFlightTracker;
+import com.pennassurancesoftware.dropwizard.stop.InstanceRegistry;
+import com.pennassurancesoftware.dropwizard.stop.SnapshotStore;
+import com.pennassurancesoftware.dropwizard.stop.Snapshottable;
 import com.pennassurancesoftware.dropwizard.stop.StopConfiguration;
+import com.pennassurancesoftware.dropwizard.stop.StopHealthCheck;
 import com.pennassurancesoftware.dropwizard.stop.StopMonitor;
+import com.pennassurancesoftware.dropwizard.stop.StopPhase;
+import com.pennassurancesoftware.dropwizard.stop.WarmUpCoordinator;
 
 /**
  * Test the StopMonitor class.
  */
 public class StopMonitorTest extends AbstractStopTests implements ServerLifecycleListener {
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
 
    private ShortStopMonitor fixture;
    private ServerSocket mockServerSocket;
@@ -163,13 +219,922 @@ public class StopMonitorTest extends AbstractStopTests implements ServerLifecycl
       }
       assertThat( stringValues ).contains( "NOT OK\r\n" );
       assertThat( stringValues ).contains( "OK\r\n" );
-      assertThat( stringValues ).contains( "Stopped\r\n" );
+      String stopped = stringValues.get( 2 );
+      assertThat( stopped ).startsWith( "Stopped " ).endsWith( "\r\n" );
+      for( StopPhase phase : new StopPhase[] { StopPhase.STOP_ACCEPTING, StopPhase.DRAIN, StopPhase.STOP_MANAGED, StopPhase.FLUSH } ) {
+         assertThat( stopped ).contains( " " + phase.getLabel() + "=" );
+      }
 
       verify( mockOut, new Times( 3 ) ).flush();
       verify( mockSocket, new AtLeast( 1 ) ).close();
       verify( mockLifeCycle ).stop();
    }
 
+   @Test
+   public void nonBlockingServesStatusWhileAnotherClientStalls() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      when( mockServer.isRunning() ).thenReturn( true );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.serverStarted( mockServer );
+      int port = monitor.boundSocket.getLocalPort();
+
+      Socket stalled = new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+      Socket probe = new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+      try {
+         stalled.getOutputStream().write( stopConfiguration.getKey().getBytes() );
+         probe.setSoTimeout( 2000 );
+         probe.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nstatus\r\n" ).getBytes() );
+         LineNumberReader reader = new LineNumberReader( new InputStreamReader( probe.getInputStream() ) );
+         assertThat( reader.readLine() ).isEqualTo( "OK" );
+      }
+      finally {
+         stalled.close();
+         probe.close();
+         monitor.boundSocket.close();
+      }
+   }
+
+   @Test
+   public void nonBlockingPipelinesCommandsOnOneConnection() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      when( mockServer.isRunning() ).thenReturn( true, true, false );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.serverStarted( mockServer );
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 2000 );
+         client.getOutputStream().write(
+               ( stopConfiguration.getKey() + "\r\npipeline\r\nstatus\r\nstatus\r\nbogus\r\n" ).getBytes() );
+         LineNumberReader reader = new LineNumberReader( new InputStreamReader( client.getInputStream() ) );
+         assertThat( reader.readLine() ).isEqualTo( "OK" );
+         assertThat( reader.readLine() ).isEqualTo( "OK" );
+         assertThat( reader.readLine() ).isEqualTo( "OK" );
+         assertThat( reader.readLine() ).isEqualTo( "UNKNOWN" );
+
+         client.getOutputStream().write( "status\r\nquit\r\n".getBytes() );
+         assertThat( reader.readLine() ).isEqualTo( "NOT OK" );
+         assertThat( reader.readLine() ).isNull();
+      }
+      finally {
+         client.close();
+         monitor.boundSocket.close();
+      }
+   }
+
+   @Test
+   public void readyOnceWarmedUpAndUntilStopping() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.setDeregistrationDelay( Duration.milliseconds( 500 ) );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      WarmUpCoordinator warmUp = new WarmUpCoordinator();
+      monitor.setWarmUp( warmUp );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      Socket draining = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 2000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\npipeline\r\nready\r\n" ).getBytes() );
+         LineNumberReader reader = new LineNumberReader( new InputStreamReader( client.getInputStream() ) );
+         assertThat( reader.readLine() ).isEqualTo( "OK" );
+         assertThat( reader.readLine() ).isEqualTo( "NOT READY" );
+
+         warmUp.warmUp();
+         client.getOutputStream().write( "ready\r\n".getBytes() );
+         assertThat( reader.readLine() ).isEqualTo( "READY" );
+
+         draining.setSoTimeout( 5000 );
+         draining.getOutputStream().write( ( stopConfiguration.getKey() + "\r\ndrain\r\n" ).getBytes() );
+         long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 2 );
+         while( !monitor.getStopState().isOutOfRotation() && System.nanoTime() < deadline ) {
+            Thread.sleep( 10 );
+         }
+         client.getOutputStream().write( "ready\r\n".getBytes() );
+         assertThat( reader.readLine() ).isEqualTo( "NOT READY" );
+         assertThat( command( monitor, "drain" ) ).isEqualTo( "NOT OK" );
+         assertThat( command( monitor, "ready" ) ).isEqualTo( "NOT READY" );
+         assertThat( monitor.getStopState().getPhase() ).isEqualTo( StopPhase.DEREGISTER );
+
+         assertThat( new LineNumberReader( new InputStreamReader( draining.getInputStream() ) ).readLine() )
+               .startsWith( "Stopped " );
+         // The monitor lets go of its connections once the stop is done.
+         assertThat( reader.readLine() ).isNull();
+      }
+      finally {
+         client.close();
+         draining.close();
+         monitor.boundSocket.close();
+      }
+   }
+
+   @Test
+   public void blockingMonitorAnswersWhileDraining() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( false );
+      stopConfiguration.setDeregistrationDelay( Duration.milliseconds( 500 ) );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+      Socket draining = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         draining.setSoTimeout( 5000 );
+         draining.getOutputStream().write( ( stopConfiguration.getKey() + "\r\ndrain\r\n" ).getBytes() );
+         assertThat( command( monitor, "ready" ) ).isEqualTo( "NOT READY" );
+         assertThat( command( monitor, "stop" ) ).isEqualTo( "NOT OK" );
+
+         assertThat( new LineNumberReader( new InputStreamReader( draining.getInputStream() ) ).readLine() )
+               .startsWith( "Stopped " );
+         assertThat( exitCountDown.await( 2, TimeUnit.SECONDS ) ).isTrue();
+         monitor.join( 2000 );
+         assertThat( monitor.isAlive() ).isFalse();
+         assertThat( monitor.boundSocket.isClosed() ).isTrue();
+      }
+      finally {
+         draining.close();
+      }
+   }
+
+   @Test
+   public void quiesceParksTheServerUntilResumed() throws Exception {
+      ServerSocket free = new ServerSocket( 0 );
+      int httpPort = free.getLocalPort();
+      free.close();
+      Server server = new Server();
+      ServerConnector connector = new ServerConnector( server );
+      connector.setHost( "127.0.0.1" );
+      connector.setPort( httpPort );
+      server.addConnector( connector );
+      server.start();
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.setDeregistrationDelay( Duration.milliseconds( 0 ) );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( server );
+      try {
+         assertThat( command( monitor, "resume" ) ).isEqualTo( "NOT OK" );
+         assertThat( command( monitor, "quiesce" ) ).startsWith( "Quiesced " );
+         assertThat( monitor.getStopState().isOutOfRotation() ).isTrue();
+         assertThat( accepts( httpPort ) ).isFalse();
+         assertThat( command( monitor, "quiesce" ) ).isEqualTo( "NOT OK" );
+
+         assertThat( command( monitor, "resume" ) ).startsWith( "Resumed " );
+         assertThat( monitor.getStopState().isOutOfRotation() ).isFalse();
+         assertThat( accepts( httpPort ) ).isTrue();
+         assertThat( server.isRunning() ).isTrue();
+      }
+      finally {
+         monitor.boundSocket.close();
+         server.stop();
+      }
+   }
+
+   @Test
+   public void blockingMonitorKeepsServingWhileQuiescing() throws Exception {
+      Server server = new Server();
+      ServerConnector connector = new ServerConnector( server );
+      connector.setHost( "127.0.0.1" );
+      server.addConnector( connector );
+      server.start();
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( false );
+      stopConfiguration.setDeregistrationDelay( Duration.milliseconds( 1000 ) );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( server );
+      Socket quiescing = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         quiescing.setSoTimeout( 5000 );
+         long start = System.nanoTime();
+         quiescing.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nquiesce\r\n" ).getBytes() );
+
+         assertThat( command( monitor, "status" ) ).isEqualTo( "OK" );
+         assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isLessThan( 1000 );
+         assertThat( new LineNumberReader( new InputStreamReader( quiescing.getInputStream() ) ).readLine() )
+               .startsWith( "Quiesced " );
+      }
+      finally {
+         quiescing.close();
+         monitor.boundSocket.close();
+         server.stop();
+      }
+   }
+
+   @Test
+   public void drainClosesIdleKeepAliveConnectionsAtOnce() throws Exception {
+      Server server = new Server();
+      ServerConnector connector = new ServerConnector( server );
+      connector.setHost( "127.0.0.1" );
+      server.addConnector( connector );
+      server.setHandler( new AbstractHandler() {
+         @Override
+         public void handle( String target, Request baseRequest, HttpServletRequest request,
+               HttpServletResponse response ) throws IOException {
+            response.setContentLength( 2 );
+            response.getOutputStream().write( "OK".getBytes() );
+            baseRequest.setHandled( true );
+         }
+      } );
+      server.start();
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.setWait( Duration.seconds( 2 ) );
+      InFlightTracker inFlight = new InFlightTracker();
+      // A request that never completes, so the drain takes the whole wait.
+      inFlight.enter();
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration, inFlight );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( server );
+
+      Socket keepAlive = new Socket( InetAddress.getByName( "127.0.0.1" ), connector.getLocalPort() );
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         keepAlive.setSoTimeout( 5000 );
+         keepAlive.getOutputStream().write( "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes() );
+         LineNumberReader response = new LineNumberReader( new InputStreamReader( keepAlive.getInputStream() ) );
+         assertThat( response.readLine() ).contains( "200" );
+         String line = response.readLine();
+         while( line != null && !line.isEmpty() ) {
+            line = response.readLine();
+         }
+         assertThat( ( char )response.read() ).isEqualTo( 'O' );
+         assertThat( ( char )response.read() ).isEqualTo( 'K' );
+
+         client.setSoTimeout( 5000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nstop\r\n" ).getBytes() );
+         // The idle connection is closed as the drain starts, long before the drain gives up.
+         assertThat( response.read() ).isEqualTo( -1 );
+         assertThat( monitor.getStopState().getPhase() ).isEqualTo( StopPhase.DRAIN );
+         String stopped = new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine();
+         assertThat( stopped ).contains( "idleClosed=1" );
+      }
+      finally {
+         keepAlive.close();
+         client.close();
+         monitor.boundSocket.close();
+         server.stop();
+      }
+   }
+
+   private String command( NonBlockingStopMonitor monitor, String command ) throws IOException {
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 5000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\n" + command + "\r\n" ).getBytes() );
+         return new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine();
+      }
+      finally {
+         client.close();
+      }
+   }
+
+   private boolean accepts( int port ) {
+      try {
+         new Socket( InetAddress.getByName( "127.0.0.1" ), port ).close();
+         return true;
+      }
+      catch( IOException e ) {
+         return false;
+      }
+   }
+
+   @Test
+   public void registersTheAssignedPortUntilStopped() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.setRegistryFile( new File( folder.getRoot(), "stop.registry" ).getPath() );
+      InstanceRegistry registry = new InstanceRegistry( new File( stopConfiguration.getRegistryFile() ) );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.setApplicationName( "test-app" );
+      monitor.serverStarted( mockServer );
+      LifeCycle mockLifeCycle = mock( LifeCycle.class );
+      monitor.setServer( mockLifeCycle );
+
+      List<InstanceRegistry.Instance> instances = registry.find( "test-app" );
+      assertThat( instances ).hasSize( 1 );
+      assertThat( instances.get( 0 ).getPort() ).isEqualTo( monitor.boundSocket.getLocalPort() );
+      assertThat( instances.get( 0 ).getFingerprint() ).isEqualTo( InstanceRegistry.fingerprint( stopConfiguration.getKey() ) );
+      assertThat( instances.get( 0 ).getState() ).isEqualTo( InstanceRegistry.State.SERVING );
+
+      assertThat( command( monitor, "stop" ) ).startsWith( "Stopped" );
+      assertThat( exitCountDown.await( 5, TimeUnit.SECONDS ) ).isTrue();
+      assertThat( registry.find( "test-app" ) ).isEmpty();
+   }
+
+   @Test
+   public void servesAUnixDomainSocketPerInstance() throws Exception {
+      Assume.assumeTrue( isUnixDomainSocketSupported() );
+      stopConfiguration.setSocketPath( new File( folder.getRoot(), "stop-{pid}.sock" ).getPath() );
+      String name = ManagementFactory.getRuntimeMXBean().getName();
+      File socket = new File( folder.getRoot(), "stop-" + name.substring( 0, name.indexOf( '@' ) ) + ".sock" );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.serverStarted( mockServer );
+      LifeCycle mockLifeCycle = mock( LifeCycle.class );
+      when( mockLifeCycle.isRunning() ).thenReturn( true );
+      monitor.setServer( mockLifeCycle );
+
+      assertThat( monitor.boundSocket ).isNull();
+      assertThat( socket.exists() ).isTrue();
+      assertThat( PosixFilePermissions.toString( Files.getPosixFilePermissions( socket.toPath() ) ) )
+            .isEqualTo( "rw-------" );
+      assertThat( folder.getRoot().list() ).containsOnly( socket.getName() );
+      assertThat( unixCommand( socket, "status" ) ).isEqualTo( "OK" );
+      assertThat( unixCommand( socket, "stop" ) ).startsWith( "Stopped" );
+      assertThat( exitCountDown.await( 5, TimeUnit.SECONDS ) ).isTrue();
+      assertThat( socket.exists() ).isFalse();
+   }
+
+   private boolean isUnixDomainSocketSupported() {
+      try {
+         Class.forName( "java.net.UnixDomainSocketAddress" );
+         return true;
+      }
+      catch( ClassNotFoundException e ) {
+         return false;
+      }
+   }
+
+   private String unixCommand( File socket, String command ) throws Exception {
+      ProtocolFamily unix = StandardProtocolFamily.valueOf( "UNIX" );
+      SocketChannel channel = ( SocketChannel )SocketChannel.class.getMethod( "open", ProtocolFamily.class )
+            .invoke( null, unix );
+      try {
+         channel.connect( ( SocketAddress )Class.forName( "java.net.UnixDomainSocketAddress" )
+               .getMethod( "of", String.class ).invoke( null, socket.getPath() ) );
+         channel.write( ByteBuffer.wrap( ( stopConfiguration.getKey() + "\r\n" + command + "\r\n" )
+               .getBytes( Charset.forName( "UTF-8" ) ) ) );
+         ByteBuffer reply = ByteBuffer.allocate( 1024 );
+         while( ( reply.position() == 0 || reply.get( reply.position() - 1 ) != '\n' ) &&
+               channel.read( reply ) >= 0 ) {
+            // Read the whole reply line.
+         }
+         return new String( reply.array(), 0, reply.position(), Charset.forName( "UTF-8" ) ).trim();
+      }
+      finally {
+         channel.close();
+      }
+   }
+
+   @Test
+   public void handoverReleasesStopPortToNewInstance() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      LifeCycle mockLifeCycle = mock( LifeCycle.class );
+      NonBlockingStopMonitor old = new NonBlockingStopMonitor( stopConfiguration );
+      old.serverStarted( mockServer );
+      old.setServer( mockLifeCycle );
+      int port = old.boundSocket.getLocalPort();
+
+      StopConfiguration newConfiguration = new StopConfiguration();
+      newConfiguration.setPort( port );
+      newConfiguration.setNonBlocking( true );
+      newConfiguration.setHandover( true );
+      NonBlockingStopMonitor taking = new NonBlockingStopMonitor( newConfiguration );
+      taking.serverStarted( mockServer );
+      try {
+         assertThat( taking.boundSocket ).isNotNull();
+         assertThat( taking.boundSocket.getLocalPort() ).isEqualTo( port );
+         assertThat( exitCountDown.await( 2, TimeUnit.SECONDS ) ).isTrue();
+         verify( mockLifeCycle ).stop();
+      }
+      finally {
+         taking.boundSocket.close();
+      }
+   }
+
+   @Test
+   public void adaptiveDrainStopsWaitingAtPercentile() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.setWait( Duration.seconds( 5 ) );
+      stopConfiguration.setDrainPercentile( 99.0 );
+      InFlightTracker inFlight = new InFlightTracker();
+      for( int i = 0; i < 200; i++ ) {
+         inFlight.getLatencies().record( TimeUnit.MILLISECONDS.toNanos( 100 ) );
+      }
+      // A request that never completes.
+      inFlight.enter();
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration, inFlight );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 5000 );
+         long start = System.nanoTime();
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nstop\r\n" ).getBytes() );
+         String stopped = new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine();
+         assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isLessThan( 2000 );
+         assertThat( stopped ).contains( " deadline=" ).contains( "(p99.0)" ).contains( " drain=" );
+         assertThat( stopped ).contains( "(timeout)" ).contains( "inFlight=1" );
+      }
+      finally {
+         client.close();
+      }
+   }
+
+   @Test
+   public void drainCompletesAsyncRequestsAndClosesSessionsInBatches() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.setWait( Duration.seconds( 5 ) );
+      stopConfiguration.setAsyncGrace( Duration.milliseconds( 100 ) );
+      stopConfiguration.setDrainBatchSize( 100 );
+      stopConfiguration.setDrainBatchInterval( Duration.milliseconds( 1 ) );
+      final InFlightTracker inFlight = new InFlightTracker();
+      // A long-poll that would otherwise hold up the drain for the whole wait.
+      final AsyncContext longPoll = mock( AsyncContext.class );
+      HttpServletResponse response = mock( HttpServletResponse.class );
+      when( longPoll.getResponse() ).thenReturn( response );
+      doAnswer( new Answer<Void>() {
+         @Override
+         public Void answer( InvocationOnMock invocation ) {
+            inFlight.exitAsync( longPoll );
+            return null;
+         }
+      } ).when( longPoll ).complete();
+      inFlight.enter();
+      inFlight.enterAsync( longPoll );
+      final List<Integer> batches = Collections.synchronizedList( new ArrayList<Integer>() );
+      Drainable sockets = new Drainable() {
+         private int open = 250;
+
+         @Override
+         public synchronized int getOpenSessions() {
+            return open;
+         }
+
+         @Override
+         public synchronized int closeSessions( int max ) {
+            batches.add( max );
+            open -= max;
+            return max;
+         }
+      };
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration, inFlight );
+      monitor.setDrainables( Collections.singletonList( sockets ) );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 5000 );
+         long start = System.nanoTime();
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nstop\r\n" ).getBytes() );
+         String stopped = new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine();
+         assertThat( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) ).isLessThan( 2000 );
+         assertThat( stopped ).contains( " asyncCompleted=1" ).contains( " sessionsClosed=250/250" );
+         assertThat( stopped ).excludes( "(timeout)" );
+      }
+      finally {
+         client.close();
+      }
+      verify( response ).sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+      assertThat( batches ).containsExactly( 100, 100, 50 );
+      assertThat( inFlight.get() ).isEqualTo( 0 );
+   }
+
+   @Test
+   public void drainKeepsClosingSessionsAfterABatchThatClosesNone() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.setWait( Duration.seconds( 5 ) );
+      stopConfiguration.setDrainBatchSize( 100 );
+      stopConfiguration.setDrainBatchInterval( Duration.milliseconds( 1 ) );
+      final List<Integer> batches = Collections.synchronizedList( new ArrayList<Integer>() );
+      Drainable sockets = new Drainable() {
+         private int open = 250;
+
+         @Override
+         public synchronized int getOpenSessions() {
+            return open;
+         }
+
+         @Override
+         public synchronized int closeSessions( int max ) {
+            batches.add( max );
+            // The sessions are busy the first time round.
+            if( batches.size() == 1 ) {
+               return 0;
+            }
+            open -= max;
+            return max;
+         }
+      };
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.setDrainables( Collections.singletonList( sockets ) );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 5000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nstop\r\n" ).getBytes() );
+         String stopped = new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine();
+         assertThat( stopped ).contains( " sessionsClosed=250/250" );
+      }
+      finally {
+         client.close();
+      }
+      assertThat( batches ).containsExactly( 100, 100, 100, 50 );
+   }
+
+   @Test
+   public void stopWritesSnapshotsAfterTheDrain() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      final List<StopPhase> phases = new ArrayList<StopPhase>();
+      final NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      SnapshotStore snapshots = new SnapshotStore();
+      snapshots.setDirectory( folder.newFolder( "snapshots" ) );
+      snapshots.register( new Snapshottable() {
+         @Override
+         public String getSnapshotName() {
+            return "cache";
+         }
+
+         @Override
+         public int getSnapshotVersion() {
+            return 1;
+         }
+
+         @Override
+         public void writeSnapshot( OutputStream out ) throws IOException {
+            phases.add( monitor.getStopState().getPhase() );
+            out.write( 42 );
+         }
+
+         @Override
+         public void restoreSnapshot( InputStream in ) {}
+      } );
+      monitor.setSnapshotStore( snapshots );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 5000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nstop\r\n" ).getBytes() );
+         String stopped = new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine();
+         assertThat( stopped ).contains( " drain=" ).contains( " snapshot=" ).contains( " snapshots=1/1" );
+         assertThat( stopped.indexOf( " snapshot=" ) ).isGreaterThan( stopped.indexOf( " drain=" ) );
+      }
+      finally {
+         client.close();
+      }
+      assertThat( phases ).containsExactly( StopPhase.SNAPSHOT );
+   }
+
+   @Test
+   public void stopDrainsTheExecutorsAfterTheDrain() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      final List<StopPhase> phases = new ArrayList<StopPhase>();
+      final NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      ExecutorDrainer executors = new ExecutorDrainer();
+      final ExecutorService mail = executors.register( "mail",
+            new ThreadPoolExecutor( 1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>() ) );
+      monitor.setExecutorDrainer( executors );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+      // Holds the next task in the queue until the executors are drained.
+      mail.execute( new Runnable() {
+         @Override
+         public void run() {
+            try {
+               while( !mail.isShutdown() ) {
+                  Thread.sleep( 5 );
+               }
+            }
+            catch( InterruptedException e ) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      } );
+      mail.execute( new Runnable() {
+         @Override
+         public void run() {
+            phases.add( monitor.getStopState().getPhase() );
+         }
+      } );
+
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 5000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nstop\r\n" ).getBytes() );
+         String stopped = new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine();
+         assertThat( stopped ).contains( " drain=" ).contains( " drainExecutors=" ).contains( " tasksQueued=1 tasksRun=2 tasksSpilled=0" );
+         assertThat( stopped.indexOf( " drainExecutors=" ) ).isGreaterThan( stopped.indexOf( " drain=" ) );
+      }
+      finally {
+         client.close();
+      }
+      assertThat( phases ).containsExactly( StopPhase.DRAIN_EXECUTORS );
+   }
+
+   @Test
+   public void watchStreamsProgressUntilStopped() throws Exception {
+      assertWatchStreamsProgress( false );
+   }
+
+   @Test
+   public void nonBlockingWatchStreamsProgressUntilStopped() throws Exception {
+      assertWatchStreamsProgress( true );
+   }
+
+   private void assertWatchStreamsProgress( boolean nonBlocking ) throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( nonBlocking );
+      stopConfiguration.setWait( Duration.milliseconds( 500 ) );
+      stopConfiguration.setProgressInterval( Duration.milliseconds( 50 ) );
+      InFlightTracker inFlight = new InFlightTracker();
+      // A request that never completes.
+      inFlight.enter();
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration, inFlight );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 5000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nwatch\r\nstop\r\n" ).getBytes() );
+         LineNumberReader reader = new LineNumberReader( new InputStreamReader( client.getInputStream() ) );
+         List<String> frames = new ArrayList<String>();
+         String line = reader.readLine();
+         while( line != null && line.startsWith( "Progress " ) ) {
+            frames.add( line );
+            line = reader.readLine();
+         }
+         assertThat( line ).startsWith( "Stopped " );
+         assertThat( frames.size() ).isGreaterThan( 3 );
+         assertThat( frames.get( frames.size() / 2 ) ).contains( "phase=drain" ).contains( "inFlight=1" )
+               .contains( "remaining=" );
+         assertThat( reader.readLine() ).isNull();
+      }
+      finally {
+         client.close();
+      }
+   }
+
+   @Test
+   public void overrunningStopDumpsAFlightRecording() throws Exception {
+      Assume.assumeTrue( isFlightRecorderSupported() );
+      File recordings = new File( folder.getRoot(), "recordings" );
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.setWait( Duration.milliseconds( 200 ) );
+      stopConfiguration.setFlightRecordingDirectory( recordings.getPath() );
+      InFlightTracker inFlight = new InFlightTracker();
+      // A request that never completes.
+      inFlight.enter();
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration, inFlight );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 10000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nstop\r\n" ).getBytes() );
+         String stopped = new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine();
+         assertThat( stopped ).contains( "(timeout)" );
+      }
+      finally {
+         client.close();
+      }
+
+      File[] dumped = recordings.listFiles();
+      assertThat( dumped ).hasSize( 1 );
+      List<String> phases = new ArrayList<String>();
+      for( RecordedEvent event : RecordingFile.readAllEvents( dumped[0].toPath() ) ) {
+         if( event.getEventType().getName().equals( "com.pennassurancesoftware.dropwizard.stop.Phase" ) ) {
+            phases.add( event.getString( "phase" ) + "=" + event.getBoolean( "completed" ) );
+         }
+      }
+      assertThat( phases ).contains( "stopAccepting=true", "drain=false" );
+   }
+
+   private boolean isFlightRecorderSupported() {
+      try {
+         Class.forName( "jdk.jfr.Recording" );
+         return true;
+      }
+      catch( ClassNotFoundException e ) {
+         return false;
+      }
+   }
+
+   @Test
+   public void runsOnSuppliedExecutorAndStopsOnNonDaemonThread() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      final List<Thread> monitorThreads = new ArrayList<Thread>();
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.setExecutor( new Executor() {
+         @Override
+         public void execute( Runnable command ) {
+            Thread thread = new Thread( command, "shared-pool" );
+            thread.setDaemon( true );
+            monitorThreads.add( thread );
+            thread.start();
+         }
+      } );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+      assertThat( monitorThreads ).hasSize( 1 );
+
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 5000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nstop\r\n" ).getBytes() );
+         assertThat( new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine() )
+               .startsWith( "Stopped " );
+         assertThat( exitCountDown.await( 2, TimeUnit.SECONDS ) ).isTrue();
+         assertThat( monitor.exitThread.isDaemon() ).isFalse();
+         assertThat( monitor.exitThread ).isNotSameAs( monitorThreads.get( 0 ) );
+      }
+      finally {
+         client.close();
+      }
+   }
+
+   @Test
+   public void runsAsItsOwnThreadByDefault() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mock( LifeCycle.class ) );
+
+      assertThat( monitor.isAlive() ).isTrue();
+      assertThat( monitor.isDaemon() ).isFalse();
+      assertThat( monitor.getName() ).isEqualTo( "StopMonitor" );
+
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 5000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\nstop\r\n" ).getBytes() );
+         assertThat( new LineNumberReader( new InputStreamReader( client.getInputStream() ) ).readLine() )
+               .startsWith( "Stopped " );
+      }
+      finally {
+         client.close();
+      }
+      monitor.join( 5000 );
+      assertThat( monitor.isAlive() ).isFalse();
+   }
+
+   @Test
+   public void countsCommandsAndRejectedKeys() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      when( mockServer.isRunning() ).thenReturn( true );
+      MetricRegistry registry = new MetricRegistry();
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.setMetricRegistry( registry );
+      monitor.serverStarted( mockServer );
+      int port = monitor.boundSocket.getLocalPort();
+      try {
+         for( String request : new String[] { "bad key\r\nstatus\r\n", stopConfiguration.getKey() + "\r\nstatus\r\n" } ) {
+            Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), port );
+            try {
+               client.setSoTimeout( 2000 );
+               client.getOutputStream().write( request.getBytes() );
+               client.getInputStream().read();
+            }
+            finally {
+               client.close();
+            }
+         }
+      }
+      finally {
+         monitor.boundSocket.close();
+      }
+      assertThat( registry.counter( MetricRegistry.name( StopMonitor.class, "rejected-keys" ) ).getCount() ).isEqualTo( 1 );
+      assertThat( registry.counter( MetricRegistry.name( StopMonitor.class, "commands", "status" ) ).getCount() ).isEqualTo( 1 );
+   }
+
+   @Test
+   public void reportsTheStopBeforeTheManagedComponentsStop() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.getPhases().setDrain( Duration.milliseconds( 200 ) );
+      MetricRegistry registry = new MetricRegistry();
+      final List<String> reported = new CopyOnWriteArrayList<String>();
+      final ScheduledReporter reporter = new ScheduledReporter( registry, "test", MetricFilter.ALL, TimeUnit.SECONDS,
+            TimeUnit.MILLISECONDS ) {
+         @Override
+         @SuppressWarnings("rawtypes")
+         public void report( SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+               SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+               SortedMap<String, Timer> timers ) {
+            reported.add( "stop=" + timers.get( MetricRegistry.name( StopMonitor.class, "stop" ) ).getCount() +
+                  " drain=" + timers.get( MetricRegistry.name( StopMonitor.class, "drain" ) ).getCount() +
+                  " inFlightAtDeadline=" +
+                  gauges.get( MetricRegistry.name( StopMonitor.class, "in-flight-at-deadline" ) ).getValue() );
+         }
+      };
+      InFlightTracker inFlight = new InFlightTracker();
+      // A request that never completes.
+      inFlight.enter();
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration, inFlight );
+      monitor.setMetricRegistry( registry );
+      monitor.setReporters( Collections.singletonList( reporter ) );
+      monitor.serverStarted( mockServer );
+      LifeCycle managed = mock( LifeCycle.class );
+      // Stopping the managed components stops the reporter, which doesn't report on being stopped.
+      doAnswer( new Answer<Void>() {
+         @Override
+         public Void answer( InvocationOnMock invocation ) {
+            reporter.stop();
+            reported.add( "stopped" );
+            return null;
+         }
+      } ).when( managed ).stop();
+      monitor.setServer( managed );
+
+      assertThat( command( monitor, "stop" ) ).startsWith( "Stopped" );
+      assertThat( exitCountDown.await( 5, TimeUnit.SECONDS ) ).isTrue();
+      assertThat( reported ).containsExactly( "stop=1 drain=1 inFlightAtDeadline=1", "stopped" );
+   }
+
+   @Test
+   public void nonBlockingClosesConnectionAfterReadTimeout() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.setReadTimeout( Duration.milliseconds( 100 ) );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.serverStarted( mockServer );
+
+      Socket stalled = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         stalled.setSoTimeout( 2000 );
+         assertThat( stalled.getInputStream().read() ).isEqualTo( -1 );
+      }
+      finally {
+         stalled.close();
+         monitor.boundSocket.close();
+      }
+   }
+
+   @Test
+   public void drainTakesNodeOutOfRotationBeforeStopping() throws Exception {
+      stopConfiguration.setPort( 0 );
+      stopConfiguration.setNonBlocking( true );
+      stopConfiguration.setDeregistrationDelay( Duration.milliseconds( 500 ) );
+      LifeCycle mockLifeCycle = mock( LifeCycle.class );
+      NonBlockingStopMonitor monitor = new NonBlockingStopMonitor( stopConfiguration );
+      monitor.serverStarted( mockServer );
+      monitor.setServer( mockLifeCycle );
+      StopHealthCheck healthCheck = new StopHealthCheck( monitor.getStopState() );
+      assertThat( healthCheck.execute().isHealthy() ).isTrue();
+
+      Socket client = new Socket( InetAddress.getByName( "127.0.0.1" ), monitor.boundSocket.getLocalPort() );
+      try {
+         client.setSoTimeout( 5000 );
+         client.getOutputStream().write( ( stopConfiguration.getKey() + "\r\ndrain\r\n" ).getBytes() );
+         Thread.sleep( 200 );
+         assertThat( healthCheck.execute().isHealthy() ).isFalse();
+         assertThat( monitor.getStopState().getPhase() ).isEqualTo( StopPhase.DEREGISTER );
+         verify( mockLifeCycle, new Times( 0 ) ).stop();
+
+         LineNumberReader reader = new LineNumberReader( new InputStreamReader( client.getInputStream() ) );
+         assertThat( reader.readLine() ).startsWith( "Stopped deregister=" );
+         assertThat( exitCountDown.await( 2, TimeUnit.SECONDS ) ).isTrue();
+         verify( mockLifeCycle ).stop();
+      }
+      finally {
+         client.close();
+      }
+   }
+
+   private class NonBlockingStopMonitor extends StopMonitor {
+      private ServerSocket boundSocket;
+      private volatile Thread exitThread;
+
+      public NonBlockingStopMonitor( StopConfiguration stopConfiguration ) {
+         super( stopConfiguration );
+      }
+
+      public NonBlockingStopMonitor( StopConfiguration stopConfiguration, InFlightTracker inFlight ) {
+         super( stopConfiguration, inFlight );
+      }
+
+      @Override
+      protected ServerSocket createSocketServer( int port ) throws IOException {
+         boundSocket = super.createSocketServer( port );
+         return boundSocket;
+      }
+
+      @Override
+      protected void exitNow() {
+         exitThread = Thread.currentThread();
+         exitCountDown.countDown();
+      }
+   }
+
    private class ShortStopMonitor extends StopMonitor {
 
       /**
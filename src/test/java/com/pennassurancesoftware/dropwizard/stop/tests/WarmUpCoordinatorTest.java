@@ -0,0 +1,107 @@
+package com.pennassurancesoftware.dropwizard.stop.tests;
+
+import static org.fest.assertions.Assertions.assertThat;
+import io.dropwizard.util.Duration;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.pennassurancesoftware.dropwizard.stop.StopMonitor;
+import com.pennassurancesoftware.dropwizard.stop.WarmUpCoordinator;
+import com.pennassurancesoftware.dropwizard.stop.WarmUpHealthCheck;
+
+/**
+ * Test the WarmUpCoordinator class.
+ */
+public class WarmUpCoordinatorTest {
+   private WarmUpCoordinator fixture;
+   private WarmUpHealthCheck healthCheck;
+
+   @Before
+   public void setUp() {
+      fixture = new WarmUpCoordinator();
+      healthCheck = new WarmUpHealthCheck( fixture );
+   }
+
+   @Test
+   public void readyOnceEveryWorkloadHasRun() {
+      final AtomicInteger resource = new AtomicInteger();
+      final AtomicInteger report = new AtomicInteger();
+      fixture.register( "resource", counting( resource ) );
+      fixture.register( "report", counting( report ) );
+      fixture.setIterations( 25 );
+      MetricRegistry metrics = new MetricRegistry();
+      fixture.setMetricRegistry( metrics );
+      assertThat( fixture.isReady() ).isFalse();
+      assertThat( healthCheck.execute().isHealthy() ).isFalse();
+
+      fixture.warmUp();
+
+      assertThat( fixture.isReady() ).isTrue();
+      assertThat( healthCheck.execute().isHealthy() ).isTrue();
+      assertThat( resource.get() ).isEqualTo( 25 );
+      assertThat( report.get() ).isEqualTo( 25 );
+      assertThat( metrics.getGauges().get( MetricRegistry.name( StopMonitor.class, "warm-up", "iterations" ) )
+            .getValue() ).isEqualTo( 50L );
+   }
+
+   @Test
+   public void readyEvenIfAWorkloadFails() {
+      final AtomicInteger calls = new AtomicInteger();
+      fixture.register( "broken", new Runnable() {
+         @Override
+         public void run() {
+            calls.incrementAndGet();
+            throw new IllegalStateException( "Testing a failing workload." );
+         }
+      } );
+      fixture.setIterations( 3 );
+
+      fixture.warmUp();
+
+      assertThat( fixture.isReady() ).isTrue();
+      assertThat( calls.get() ).isEqualTo( 3 );
+   }
+
+   @Test
+   public void readyOnceTheBudgetRunsOut() {
+      fixture.register( "slow", new Runnable() {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep( 20 );
+            }
+            catch( InterruptedException e ) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      } );
+      fixture.setIterations( 1000 );
+      fixture.setBudget( Duration.milliseconds( 100 ) );
+
+      long start = System.currentTimeMillis();
+      fixture.warmUp();
+
+      assertThat( System.currentTimeMillis() - start ).isLessThan( 1000 );
+      assertThat( fixture.isReady() ).isTrue();
+      assertThat( fixture.getIterations() ).isLessThan( 1000 );
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsTheSameNameTwice() {
+      fixture.register( "resource", counting( new AtomicInteger() ) );
+      fixture.register( "resource", counting( new AtomicInteger() ) );
+   }
+
+   private Runnable counting( final AtomicInteger count ) {
+      return new Runnable() {
+         @Override
+         public void run() {
+            count.incrementAndGet();
+         }
+      };
+   }
+}